@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the front of the commandline fetch loop: parsing IDs from
+ * <code>data/test/test-ids-300.txt</code> (repeated to make a longer input) and packing
+ * them into batches of 100, as {@link LookupEngine} does before handing batches to its
+ * workers, optionally de-duplicating them on the way as <code>--dedupe</code> does.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdBatchingBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"data/test/test-ids-300.txt"})
+    public String idsFile;
+
+    /** How many times to repeat the file's IDs in the input. */
+    @Param({"100"})
+    public int repeats;
+
+    private byte[] input;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] ids = Files.readAllBytes(Paths.get(idsFile));
+        input = new byte[ids.length * repeats];
+        for (int i = 0; i < repeats; i++) {
+            System.arraycopy(ids, 0, input, i * ids.length, ids.length);
+        }
+    }
+
+    @Benchmark
+    public long parseIds() throws IOException {
+        long sum = 0;
+        try (IdReader ids = new IdReader(new ByteArrayInputStream(input))) {
+            while (ids.hasNext()) {
+                sum += ids.nextLong();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void parseAndBatch(final Blackhole blackhole) throws IOException {
+        batch(null, blackhole);
+    }
+
+    @Benchmark
+    public void parseDedupeAndBatch(final Blackhole blackhole) throws IOException {
+        batch(new LongHashSet(), blackhole);
+    }
+
+    private void batch(final LongHashSet seen, final Blackhole blackhole) throws IOException {
+        final IdBatch batch = new IdBatch(BATCH_SIZE);
+        try (IdReader ids = new IdReader(new ByteArrayInputStream(input))) {
+            for (long ordinal = 0; ids.hasNext(); ordinal++) {
+                final long id = ids.nextLong();
+                if (seen != null && ! seen.add(id)) {
+                    continue;
+                }
+                if (batch.add(ordinal, id)) {
+                    blackhole.consume(batch.ids());
+                    batch.reset(ordinal + 1);
+                }
+            }
+            if (! batch.isEmpty()) {
+                blackhole.consume(batch.ids());
+            }
+        }
+    }
+}
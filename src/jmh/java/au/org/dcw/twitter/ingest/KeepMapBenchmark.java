@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures turning a list of fields to keep into the nested map of fields, and
+ * into a ready to use {@link TweetSanitiser}, which the GUI does each time the
+ * fields are edited.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeepMapBenchmark {
+
+    /** "default" for the fields kept by default, otherwise a keep file. */
+    @Param({"default", "data/test/properties-to-keep.txt"})
+    public String fieldsToKeep;
+
+    private List<String> fields;
+
+    @Setup
+    public void setUp() throws IOException {
+        fields = loadFields(fieldsToKeep);
+    }
+
+    @Benchmark
+    public Map<String, Object> buildFieldStructure() {
+        return TweetSanitiser.buildFieldStructure(fields);
+    }
+
+    @Benchmark
+    public TweetSanitiser makeSanitiser() {
+        return new TweetSanitiser(fields);
+    }
+
+    /**
+     * Reads the fields to keep as {@link FetchTweets} does.
+     *
+     * @param fieldsToKeep "default" for the default fields, otherwise a keep file.
+     * @return The fields to keep.
+     * @throws IOException if the keep file can't be read.
+     */
+    static List<String> loadFields(final String fieldsToKeep) throws IOException {
+        return FetchTweets.loadFieldsToKeep("default".equals(fieldsToKeep) ? null : fieldsToKeep);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures sanitising the tweets in <code>test.json</code> (a mix of original tweets,
+ * retweets and extended tweets), either one tweet per operation, cycling through the
+ * file, or the whole file per operation, by the streaming {@link TweetSanitiser} and,
+ * as a baseline, the {@link TreeSanitiser} it replaced.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitiseBenchmark {
+
+    @Param({"test.json"})
+    public String tweetsFile;
+
+    /** "default" for the fields kept by default, otherwise a keep file. */
+    @Param({"default", "data/test/properties-to-keep.txt"})
+    public String fieldsToKeep;
+
+    private String[] tweets;
+    private TweetSanitiser sanitiser;
+    private TreeSanitiser treeSanitiser;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        tweets = Files.readAllLines(Paths.get(tweetsFile), StandardCharsets.UTF_8).stream()
+            .filter(l -> ! l.trim().isEmpty())
+            .toArray(String[]::new);
+        sanitiser = new TweetSanitiser(KeepMapBenchmark.loadFields(fieldsToKeep));
+        treeSanitiser = new TreeSanitiser(KeepMapBenchmark.loadFields(fieldsToKeep));
+    }
+
+    @Benchmark
+    public String sanitise() throws IOException {
+        final String tweet = tweets[next];
+        next = (next + 1) % tweets.length;
+        return sanitiser.sanitise(tweet);
+    }
+
+    @Benchmark
+    public void sanitiseAll(final Blackhole blackhole) throws IOException {
+        for (String tweet : tweets) {
+            blackhole.consume(sanitiser.sanitise(tweet));
+        }
+    }
+
+    @Benchmark
+    public String sanitiseTree() throws IOException {
+        final String tweet = tweets[next];
+        next = (next + 1) % tweets.length;
+        return treeSanitiser.sanitise(tweet);
+    }
+
+    @Benchmark
+    public void sanitiseAllTree(final Blackhole blackhole) throws IOException {
+        for (String tweet : tweets) {
+            blackhole.consume(treeSanitiser.sanitise(tweet));
+        }
+    }
+}
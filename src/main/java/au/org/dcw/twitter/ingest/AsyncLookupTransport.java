@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import twitter4j.HttpClientConfiguration;
+import twitter4j.HttpParameter;
+import twitter4j.HttpRequest;
+import twitter4j.RequestMethod;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.auth.Authorization;
+import twitter4j.conf.Configuration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>Looks up tweets with a non-blocking HTTP client (Apache HttpAsyncClient), so
+ * many lookups can be in flight at once, over persistent connections, while only
+ * a couple of I/O threads service them all. The client is shared by the transports
+ * of all the workers, each of which signs its requests with its own credentials,
+ * using its Twitter4J instance's authorisation (OAuth 1.0a, or an app-only bearer
+ * token). Requests go to the Twitter4J instance's REST base URL, so pointing that
+ * elsewhere (e.g. at a local stub) redirects them. Response bodies are split into
+ * tweets in place, as by a {@link RawLookupTransport}.</p>
+ *
+ * <p>Failures are turned into the same {@link TwitterException}s Twitter4J would
+ * throw: network problems have an {@link IOException} as their cause, and error
+ * responses carry their status code, Twitter's error message and the rate limit
+ * headers.</p>
+ */
+class AsyncLookupTransport extends RawLookupTransport {
+
+    private final CloseableHttpAsyncClient client;
+    private final boolean gzip;
+
+    /**
+     * Constructor
+     *
+     * @param client The started client, as made by {@link #makeClient(Configuration, int, int)}.
+     * @param twitter The Twitter instance whose credentials and configuration to use.
+     */
+    AsyncLookupTransport(final CloseableHttpAsyncClient client, final Twitter twitter) {
+        super(twitter);
+        this.client = client;
+        this.gzip = twitter.getConfiguration().getHttpClientConfiguration().isGZIPEnabled();
+    }
+
+    /**
+     * Makes and starts a client to be shared by all the workers' transports, with the
+     * timeouts and proxy of the given configuration.
+     *
+     * @param conf The configuration of (any of) the workers' Twitter instances.
+     * @param maxConnections The most connections to keep open to Twitter.
+     * @param ioThreads The number of threads to service the connections with.
+     * @return The started client, which should be closed when the lookups are done.
+     */
+    static CloseableHttpAsyncClient makeClient(final Configuration conf, final int maxConnections, final int ioThreads) {
+        final HttpClientConfiguration http = conf.getHttpClientConfiguration();
+        final HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+            .setMaxConnTotal(maxConnections)
+            .setMaxConnPerRoute(maxConnections)
+            .setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(ioThreads).build())
+            .setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(http.getHttpConnectionTimeout())
+                .setSocketTimeout(http.getHttpReadTimeout())
+                .build());
+        if (http.getHttpProxyHost() != null) {
+            builder.setProxy(new HttpHost(http.getHttpProxyHost(), http.getHttpProxyPort()));
+            if (http.getHttpProxyUser() != null) {
+                final BasicCredentialsProvider credentials = new BasicCredentialsProvider();
+                credentials.setCredentials(
+                    new AuthScope(http.getHttpProxyHost(), http.getHttpProxyPort()),
+                    new UsernamePasswordCredentials(http.getHttpProxyUser(), http.getHttpProxyPassword())
+                );
+                builder.setDefaultCredentialsProvider(credentials);
+            }
+        }
+        final CloseableHttpAsyncClient client = builder.build();
+        client.start();
+        return client;
+    }
+
+    @Override
+    public CompletableFuture<LookupResult> lookup(final long[] ids) {
+        final HttpParameter[] params = params(ids);
+
+        // sign the request just as Twitter4J would
+        final Authorization auth = twitter().getAuthorization();
+        final HttpRequest signable = new HttpRequest(RequestMethod.GET, lookupURL(), params, auth, null);
+        final HttpGet request = new HttpGet(lookupURL() + "?" + HttpParameter.encodeParameters(params));
+        request.setHeader(HttpHeaders.AUTHORIZATION, auth.getAuthorizationHeader(signable));
+        if (gzip) {
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        }
+
+        final CompletableFuture<LookupResult> result = new CompletableFuture<>();
+        client.execute(request, new FutureCallback<org.apache.http.HttpResponse>() {
+            @Override
+            public void completed(final org.apache.http.HttpResponse response) {
+                try {
+                    final Body body = readBody(response);
+                    final int status = response.getStatusLine().getStatusCode();
+                    if (status == 200) {
+                        result.complete(body.split(rateLimitStatus(name -> header(response, name))));
+                    } else {
+                        final HttpClientConfiguration http = twitter().getConfiguration().getHttpClientConfiguration();
+                        final String message = body.asString();
+                        result.completeExceptionally(
+                            new TwitterException(message, new ErrorResponse(http, status, message, response))
+                        );
+                    }
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                result.completeExceptionally(new TwitterException(e.getMessage(), e));
+            }
+
+            @Override
+            public void cancelled() {
+                result.completeExceptionally(new TwitterException("Lookup cancelled"));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads the whole body of a response, which the client has already buffered,
+     * decompressing it if necessary.
+     */
+    private static Body readBody(final org.apache.http.HttpResponse response) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return new Body(0);
+        }
+        final Header encoding = entity.getContentEncoding();
+        final boolean gzipped = encoding != null && "gzip".equalsIgnoreCase(encoding.getValue());
+        try (InputStream in = gzipped ? new GZIPInputStream(entity.getContent()) : entity.getContent()) {
+            return Body.read(in, gzipped ? 0 : (int) Math.max(0, entity.getContentLength()));
+        }
+    }
+
+    /**
+     * @return The value of the named header of the response, or null if it doesn't have one.
+     */
+    private static String header(final org.apache.http.HttpResponse response, final String name) {
+        final Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * An error response, presented as Twitter4J's own responses are, so that a
+     * {@link TwitterException} made from it can read its status code, error message
+     * and rate limit headers.
+     */
+    private static final class ErrorResponse extends twitter4j.HttpResponse {
+
+        private final org.apache.http.HttpResponse response;
+
+        ErrorResponse(
+            final HttpClientConfiguration conf,
+            final int statusCode,
+            final String body,
+            final org.apache.http.HttpResponse response
+        ) {
+            super(conf);
+            this.statusCode = statusCode;
+            this.responseAsString = body;
+            this.response = response;
+        }
+
+        @Override
+        public String getResponseHeader(final String name) {
+            return header(response, name);
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaderFields() {
+            final Map<String, List<String>> fields = new HashMap<>();
+            for (Header header : response.getAllHeaders()) {
+                fields.computeIfAbsent(header.getName(), k -> new ArrayList<>()).add(header.getValue());
+            }
+            return fields;
+        }
+
+        @Override
+        public void disconnect() {
+            // the client has already consumed the response
+        }
+    }
+}
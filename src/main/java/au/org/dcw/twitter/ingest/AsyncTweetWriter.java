@@ -0,0 +1,479 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Writes lines of output (e.g. tweets' raw JSON) on a dedicated thread, so the
+ * threads fetching tweets only have to encode each line and hand the bytes off,
+ * and never wait on the disk.</p>
+ *
+ * <p>Output goes to <code>stdout</code> or to a file, optionally compressed with
+ * gzip or zstd, and optionally rotated to a new file after a given number of lines
+ * or bytes (counted before compression). Rotated files are numbered, with the number
+ * inserted before the file's extensions, e.g. <code>tweets-00001.json.gz</code>.
+ * When appending, e.g. to resume an interrupted run, a single file is appended to,
+ * and rotated files carry on after the highest numbered file already there.
+ * Lines can be {@link Converter converted} as they're written instead, e.g. to
+ * Parquet by a {@link ParquetTweetWriter}, in which case the compression applies to
+ * its pages, or to CSV by a {@link DelimitedTweetWriter}.</p>
+ *
+ * <p>{@link #checkpoint(Runnable)} allows a caller to find out when everything it
+ * has written so far has been flushed out of the writer's buffers and, if it's going
+ * to a file, synced to disk. Checkpoints reached together share a single sync.</p>
+ */
+class AsyncTweetWriter implements Closeable {
+
+    /** The ways in which output files can be compressed. */
+    enum Compression { NONE, GZIP, ZSTD }
+
+    /**
+     * Converts the lines written to an output into another format as they're written.
+     */
+    interface Converter {
+        /**
+         * @param out The output, which is to be closed when the returned stream is.
+         * @param compression How the output is to be compressed.
+         * @param continuing True if the output already holds earlier lines, i.e. it's being appended to.
+         * @return The stream to write the lines to.
+         * @throws IOException if the output can't be started.
+         */
+        OutputStream open(OutputStream out, Compression compression, boolean continuing) throws IOException;
+    }
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Object END_OF_OUTPUT = new Object();
+
+    private final Path file;
+    private final Compression compression;
+    private final long rotateLines;
+    private final long rotateBytes;
+    private final Converter converter;
+    private final boolean append;
+
+    /** Holds encoded lines (byte[] or Lines) and checkpoint callbacks (Runnable). */
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    private volatile IOException failure;
+
+    /**
+     * Lines held in a shared buffer.
+     */
+    private static final class Lines {
+        final byte[] buffer;
+        final int[] starts;
+        final int[] ends;
+        final int count;
+
+        Lines(final byte[] buffer, final int[] starts, final int[] ends, final int count) {
+            this.buffer = buffer;
+            this.starts = starts;
+            this.ends = ends;
+            this.count = count;
+        }
+    }
+
+    private OutputStream out;
+    /** The current file's channel, to sync it with, or null for <code>stdout</code>. */
+    private FileChannel channel;
+    /** True once a checkpoint has been asked for, after which files are synced before they're closed. */
+    private boolean checkpointed;
+    private int fileNumber;
+    private long linesInFile;
+    private long bytesInFile;
+
+    /**
+     * Creates a writer to <code>stdout</code>.
+     */
+    AsyncTweetWriter() {
+        this(null);
+    }
+
+    /**
+     * Creates a writer to <code>stdout</code>, converting the lines written.
+     *
+     * @param converter How to convert the lines written, or null to write them as they are.
+     */
+    AsyncTweetWriter(final Converter converter) {
+        this(null, Compression.NONE, 0, 0, converter, false);
+    }
+
+    /**
+     * Creates a writer to a file, or files if rotating.
+     *
+     * @param file The file to write to, or null for <code>stdout</code>.
+     * @param compression How to compress the file(s).
+     * @param rotateLines Start a new file after this many lines (0 to never rotate by lines).
+     * @param rotateBytes Start a new file after this many bytes (0 to never rotate by size).
+     * @param converter How to convert the lines written (e.g. to Parquet), or null to write them as they are.
+     * @param append True to add to the file rather than replace it, or if rotating, to carry on numbering
+     *               the files after those already there.
+     */
+    AsyncTweetWriter(
+        final Path file,
+        final Compression compression,
+        final long rotateLines,
+        final long rotateBytes,
+        final Converter converter,
+        final boolean append
+    ) {
+        this.file = file;
+        this.compression = compression;
+        this.rotateLines = rotateLines;
+        this.rotateBytes = rotateBytes;
+        this.converter = converter;
+        this.append = append;
+        this.writerThread = new Thread(this::drain, "output-writer");
+        this.writerThread.setDaemon(true); // close() waits for it, so it mustn't keep a failed run alive
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues a line to be written, waiting only if the writer has fallen a long way behind.
+     *
+     * @param line The line, without a line terminator.
+     * @throws IOException if the writer has failed.
+     */
+    void write(final String line) throws IOException {
+        final byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        final byte[] bytes = new byte[text.length + 1];
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        bytes[text.length] = '\n';
+        enqueue(bytes);
+    }
+
+    /**
+     * Queues a line that has already been encoded, waiting only if the writer has fallen
+     * a long way behind.
+     *
+     * @param line The line as UTF-8, including its terminating '\n'.
+     * @throws IOException if the writer has failed.
+     */
+    void write(final byte[] line) throws IOException {
+        enqueue(line);
+    }
+
+    /**
+     * Queues lines held in a shared buffer, such as the tweets in a lookup's response
+     * body, waiting only if the writer has fallen a long way behind. The buffer must
+     * not be changed until they've been written.
+     *
+     * @param buffer The lines as UTF-8.
+     * @param starts Where each line starts in the buffer.
+     * @param ends Where each line's terminating '\n' is in the buffer.
+     * @param count The number of lines.
+     * @throws IOException if the writer has failed.
+     */
+    void write(final byte[] buffer, final int[] starts, final int[] ends, final int count) throws IOException {
+        enqueue(new Lines(buffer, starts, ends, count));
+    }
+
+    /**
+     * Arranges for the given callback to be run, on the writer's thread, once
+     * everything queued before it has been flushed from the writer's buffers and,
+     * if it's going to a file, synced to disk, so it survives a crash of the OS.
+     *
+     * @param callback What to do once the output so far is on disk.
+     * @throws IOException if the writer has failed.
+     */
+    void checkpoint(final Runnable callback) throws IOException {
+        enqueue(callback);
+    }
+
+    /**
+     * Writes out everything queued, closes the output and waits for the writer's thread to finish,
+     * even if the calling thread has been interrupted.
+     *
+     * @throws IOException if the writer failed at any point.
+     */
+    @Override
+    public void close() throws IOException {
+        // so what was written isn't lost, keeping the interrupt for the caller
+        final boolean interrupted = Thread.interrupted();
+        try {
+            if (writerThread.isAlive()) {
+                enqueue(END_OF_OUTPUT);
+                writerThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing output", e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void enqueue(final Object item) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing output", e);
+        }
+    }
+
+    /**
+     * The writer's thread: writes queued lines, taking whatever is available at once,
+     * and syncs before running the checkpoint callbacks among them.
+     */
+    private void drain() {
+        final List<Object> items = Lists.newArrayListWithCapacity(1024);
+        final List<Runnable> checkpoints = Lists.newArrayList();
+        boolean finished = false;
+        try {
+            if (append && file != null && isRotating()) {
+                fileNumber = highestNumber(file) + 1; // leave the earlier files as they are
+            }
+            out = open();
+            while (! finished) {
+                items.add(queue.take());
+                queue.drainTo(items, 1023);
+                for (Object item : items) {
+                    if (item == END_OF_OUTPUT) {
+                        if (file == null) {
+                            out.flush(); // leave stdout open for anyone else
+                        } else {
+                            if (checkpointed) {
+                                sync();
+                            }
+                            out.close();
+                        }
+                        finished = true;
+                        break;
+                    } else if (item instanceof Runnable) {
+                        checkpoints.add((Runnable) item); // once the lines queued after it are written too
+                        checkpointed = true;
+                    } else if (item instanceof Lines) {
+                        final Lines lines = (Lines) item;
+                        for (int i = 0; i < lines.count; i++) {
+                            writeLine(lines.buffer, lines.starts[i], lines.ends[i] + 1 - lines.starts[i]);
+                        }
+                    } else {
+                        final byte[] line = (byte[]) item;
+                        writeLine(line, 0, line.length);
+                    }
+                }
+                items.clear();
+                if (! checkpoints.isEmpty()) {
+                    if (! finished) {
+                        sync();
+                    }
+                    checkpoints.forEach(Runnable::run);
+                    checkpoints.clear();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Output writer interrupted", e);
+        } finally {
+            if (! finished) {
+                if (failure == null) {
+                    failure = new IOException("Output writer stopped unexpectedly");
+                }
+                System.err.println("Failed to write output: " + failure.getMessage());
+                queue.clear(); // release anyone waiting to queue more
+            }
+        }
+    }
+
+    private void writeLine(final byte[] line, final int offset, final int length) throws IOException {
+        if (file != null && isRotating() &&
+            ((rotateLines > 0 && linesInFile >= rotateLines) || (rotateBytes > 0 && bytesInFile >= rotateBytes))) {
+            if (checkpointed) {
+                sync(); // as checkpoints reached later may cover lines in this file
+            }
+            out.close();
+            fileNumber++;
+            out = open();
+        }
+        out.write(line, offset, length);
+        linesInFile++;
+        bytesInFile += length;
+    }
+
+    /**
+     * Flushes the output and, if it's a file, forces what's been written onto the disk.
+     */
+    private void sync() throws IOException {
+        out.flush();
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Opens the next output stream: <code>stdout</code>, or the current file, compressed as required.
+     */
+    private OutputStream open() throws IOException {
+        linesInFile = 0;
+        bytesInFile = 0;
+        if (file == null) {
+            // bypass System.out's PrintStream, which locks and flushes on every line
+            final OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+            return converter != null
+                ? converter.open(stdout, Compression.NONE, false)
+                : compressed(stdout, Compression.NONE);
+        }
+        // rotated files are each new, as appending carries on numbering them instead
+        final Path target = isRotating() ? numbered(file, fileNumber) : file;
+        final boolean appending = append && ! isRotating();
+        final boolean continuing = appending && Files.exists(target) && Files.size(target) > 0;
+        final FileOutputStream fileOut = new FileOutputStream(target.toFile(), appending);
+        channel = fileOut.getChannel();
+        return converter != null
+            ? converter.open(fileOut, compression, continuing)
+            : compressed(fileOut, compression);
+    }
+
+    private boolean isRotating() {
+        return rotateLines > 0 || rotateBytes > 0;
+    }
+
+    /**
+     * Opens a buffered stream of lines to a new file, compressed as required, or converted.
+     *
+     * @param target The file to write to, which is replaced if it exists.
+     * @param compression How to compress it.
+     * @param converter How to convert the lines written, or null to write them as they are.
+     * @return The stream to write to.
+     * @throws IOException if the file can't be created.
+     */
+    static OutputStream openFile(final Path target, final Compression compression, final Converter converter)
+        throws IOException {
+        final OutputStream fileOut = Files.newOutputStream(target);
+        return converter != null ? converter.open(fileOut, compression, false) : compressed(fileOut, compression);
+    }
+
+    /**
+     * @param columns The columns to write.
+     * @return A converter of lines of tweets to the rows of a Parquet file.
+     */
+    static Converter toParquet(final TweetColumns columns) {
+        return (out, compression, continuing) ->
+            new ParquetTweetWriter(new BufferedOutputStream(out, BUFFER_SIZE), columns, compression);
+    }
+
+    /**
+     * @param columns The columns to write.
+     * @param dialect How to delimit the columns.
+     * @return A converter of lines of tweets to the rows of a delimited text file, compressed as a whole.
+     */
+    static Converter toDelimited(final TweetColumns columns, final DelimitedTweetWriter.Dialect dialect) {
+        return (out, compression, continuing) ->
+            new DelimitedTweetWriter(compressed(out, compression), columns, dialect, ! continuing);
+    }
+
+    /**
+     * @param columns The columns written.
+     * @param dialect How they're delimited.
+     * @return A converter that writes lines already converted into rows (see
+     *         {@link DelimitedTweetWriter#row}) as they are, after a header.
+     */
+    static Converter toDelimitedRows(final TweetColumns columns, final DelimitedTweetWriter.Dialect dialect) {
+        return (out, compression, continuing) -> {
+            final OutputStream rows = compressed(out, compression);
+            if (! continuing) {
+                rows.write(DelimitedTweetWriter.header(columns, dialect).getBytes(StandardCharsets.UTF_8));
+            }
+            return rows;
+        };
+    }
+
+    /**
+     * @param out The stream to write to.
+     * @param compression How to compress what's written.
+     * @return A buffered stream that compresses what's written to it as required.
+     * @throws IOException if the compression can't be started.
+     */
+    private static OutputStream compressed(final OutputStream out, final Compression compression)
+        throws IOException {
+        switch (compression) {
+            case GZIP:
+                return new BufferedOutputStream(new GZIPOutputStream(out, BUFFER_SIZE), BUFFER_SIZE);
+            case ZSTD:
+                return new BufferedOutputStream(new ZstdOutputStream(out), BUFFER_SIZE);
+            default:
+                return new BufferedOutputStream(out, BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Inserts a file number before a file's extensions, e.g. "tweets.json.gz" becomes
+     * "tweets-00001.json.gz".
+     */
+    static Path numbered(final Path file, final int number) {
+        final String name = file.getFileName().toString();
+        final int dot = name.indexOf('.', 1);
+        final String numberedName = dot < 0
+            ? String.format("%s-%05d", name, number)
+            : String.format("%s-%05d%s", name.substring(0, dot), number, name.substring(dot));
+        return file.resolveSibling(numberedName);
+    }
+
+    /**
+     * @return The highest number of the {@link #numbered(Path, int) numbered} versions
+     *         of a file that exist, or -1 if there are none.
+     * @throws IOException if the file's directory can't be listed.
+     */
+    static int highestNumber(final Path file) throws IOException {
+        final String name = file.getFileName().toString();
+        final int dot = name.indexOf('.', 1);
+        final Pattern numberedName = Pattern.compile(dot < 0
+            ? Pattern.quote(name) + "-(\\d{5,})"
+            : Pattern.quote(name.substring(0, dot)) + "-(\\d{5,})" + Pattern.quote(name.substring(dot)));
+        final Path dir = file.toAbsolutePath().getParent();
+        int highest = -1;
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(dir)) {
+            for (Path sibling : siblings) {
+                final Matcher m = numberedName.matcher(sibling.getFileName().toString());
+                if (m.matches()) {
+                    highest = Math.max(highest, Integer.parseInt(m.group(1)));
+                }
+            }
+        }
+        return highest;
+    }
+}
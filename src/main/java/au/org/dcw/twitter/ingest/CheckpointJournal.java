@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An append-only journal of which parts of the input have been fetched and
+ * written out, so a run that crashes or is killed can be resumed without fetching
+ * everything again.</p>
+ *
+ * <p>Progress is recorded as ranges of input positions ("ordinals": the first ID
+ * given is 0, the next is 1, etc.), one <code>start,end</code> line per completed
+ * batch, where <code>end</code> is exclusive. Batches complete out of order, so on
+ * resume the ranges are sorted and merged, and the journal is rewritten in that
+ * compact form before new ranges are appended. A resumed run must be given the
+ * same IDs in the same order.</p>
+ *
+ * <p>To keep the journal from throttling the fetch loop, records are buffered and
+ * only written and synced to disk every {@link #SYNC_EVERY} records or
+ * {@link #SYNC_INTERVAL_MS} milliseconds, whichever comes first, including while
+ * nothing is being recorded, e.g. as fetching waits for the rate limit. A batch
+ * should only be recorded once its tweets are on disk (see
+ * {@link AsyncTweetWriter#checkpoint}), so the journal never gets ahead of the
+ * output. A crash can still lose the last second or so of records, in which case
+ * those batches are fetched again, and as a resumed run appends to the output,
+ * their tweets appear in it twice.</p>
+ */
+class CheckpointJournal implements Closeable {
+
+    private static final int SYNC_EVERY = 64;
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    private final FileChannel channel;
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingRecords;
+    private long lastSync = System.currentTimeMillis();
+    private final ScheduledExecutorService syncer;
+
+    /** Completed ranges from previous runs, sorted and merged. */
+    private final long[] doneStarts;
+    private final long[] doneEnds;
+    private int cursor;
+
+    /**
+     * Opens a journal, either picking up where a previous run left off or starting afresh.
+     *
+     * @param file The journal file.
+     * @param resume If true, load the ranges already completed, otherwise discard them.
+     * @throws IOException if there's a problem reading or creating the journal.
+     */
+    CheckpointJournal(final Path file, final boolean resume) throws IOException {
+        long[][] ranges = resume && Files.exists(file) ? load(file) : new long[][] {new long[0], new long[0]};
+        doneStarts = ranges[0];
+        doneEnds = ranges[1];
+
+        // rewrite compactly, atomically, so a crash now doesn't lose what was there
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < doneStarts.length; i++) {
+            sb.append(doneStarts[i]).append(',').append(doneEnds[i]).append('\n');
+        }
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::syncIfDue, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Says whether the ID at the given position in the input was completed in a previous
+     * run. Must be asked about positions in increasing order.
+     *
+     * @param ordinal The position of an ID in the input.
+     * @return True if the ID can be skipped.
+     */
+    boolean isDone(final long ordinal) {
+        while (cursor < doneEnds.length && doneEnds[cursor] <= ordinal) {
+            cursor++;
+        }
+        return cursor < doneStarts.length && doneStarts[cursor] <= ordinal;
+    }
+
+    /**
+     * @return The number of input positions completed in previous runs.
+     */
+    long previouslyDone() {
+        long total = 0;
+        for (int i = 0; i < doneStarts.length; i++) {
+            total += doneEnds[i] - doneStarts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Records that the IDs at input positions <code>start</code> (inclusive) to
+     * <code>end</code> (exclusive) have been fetched and written out.
+     *
+     * @param start The first position in the range.
+     * @param end The position after the last one in the range.
+     * @throws IOException if there's a problem writing to the journal.
+     */
+    synchronized void record(final long start, final long end) throws IOException {
+        pending.append(start).append(',').append(end).append('\n');
+        pendingRecords++;
+        if (pendingRecords >= SYNC_EVERY || System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS) {
+            sync();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        syncer.shutdownNow();
+        sync();
+        channel.close();
+    }
+
+    /**
+     * Syncs the records buffered, if they've waited long enough, when nothing has been
+     * recorded lately.
+     */
+    private synchronized void syncIfDue() {
+        if (channel.isOpen() && System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS) {
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("Failed to record progress in journal: " + e.getMessage());
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        if (pendingRecords > 0) {
+            final ByteBuffer bytes = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+            pending.setLength(0);
+            pendingRecords = 0;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the ranges in a journal, ignoring lines that can't be parsed and a partly
+     * written final line, and sorts and merges them.
+     *
+     * @param file The journal file.
+     * @return The merged starts and ends, in that order.
+     * @throws IOException if there's a problem reading the file.
+     */
+    private static long[][] load(final Path file) throws IOException {
+        long[] starts = new long[1024];
+        long[] ends = new long[1024];
+        int count = 0;
+        final boolean lastLineComplete = endsWithNewline(file);
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String next = reader.readLine();
+            while (next != null) {
+                final String line = next;
+                next = reader.readLine();
+                if (next == null && ! lastLineComplete) {
+                    // cut short by a crash, and may still parse, e.g. "1200,13" for "1200,1300"
+                    System.err.println("Ignoring partly written journal entry: " + line);
+                    break;
+                }
+                final int comma = line.indexOf(',');
+                if (comma < 0) continue;
+                try {
+                    final long start = Long.parseLong(line.substring(0, comma));
+                    final long end = Long.parseLong(line.substring(comma + 1));
+                    if (end <= start) {
+                        System.err.println("Ignoring empty journal entry: " + line);
+                        continue;
+                    }
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        ends = Arrays.copyOf(ends, count * 2);
+                    }
+                    starts[count] = start;
+                    ends[count] = end;
+                    count++;
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring unreadable journal entry: " + line);
+                }
+            }
+        }
+
+        /* Sorting the starts and ends independently loses which end went with which
+         * start, but the pairs it makes up cover exactly the same positions (at any
+         * position, the number of starts before it less the number of ends before it
+         * is unchanged), which is all that matters once they're merged. */
+        Arrays.sort(starts, 0, count);
+        Arrays.sort(ends, 0, count);
+
+        final long[] mergedStarts = new long[count];
+        final long[] mergedEnds = new long[count];
+        int merged = 0;
+        for (int i = 0; i < count; i++) {
+            final long start = starts[i];
+            final long end = ends[i];
+            if (merged > 0 && start <= mergedEnds[merged - 1]) {
+                mergedEnds[merged - 1] = Math.max(mergedEnds[merged - 1], end);
+            } else {
+                mergedStarts[merged] = start;
+                mergedEnds[merged] = end;
+                merged++;
+            }
+        }
+        return new long[][] {Arrays.copyOf(mergedStarts, merged), Arrays.copyOf(mergedEnds, merged)};
+    }
+
+    /**
+     * @return True if the file is empty or its last line is complete.
+     */
+    private static boolean endsWithNewline(final Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (in.size() == 0) {
+                return true;
+            }
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            in.read(last, in.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+}
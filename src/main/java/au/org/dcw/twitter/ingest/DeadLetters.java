@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+/**
+ * <p>A file of the IDs that couldn't be looked up, even after retrying and splitting
+ * their batch, so they can be tried again in a later run by giving the file as the
+ * IDs file. Each group of IDs is preceded by a comment saying when and why it failed,
+ * which {@link IdReader} ignores. The file is appended to, and flushed after each
+ * group. Thread safe.</p>
+ */
+class DeadLetters implements Closeable {
+
+    private final BufferedWriter out;
+    private long count;
+
+    /**
+     * Constructor
+     *
+     * @param file The file to append the IDs to.
+     * @throws IOException if the file can't be opened.
+     */
+    DeadLetters(final Path file) throws IOException {
+        out = Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Records IDs that couldn't be looked up.
+     *
+     * @param ids The IDs.
+     * @param reason Why they couldn't be looked up.
+     * @throws IOException if there's a problem writing them.
+     */
+    synchronized void add(final long[] ids, final String reason) throws IOException {
+        out.write("# " + new Date() + ": " + reason.replace('\n', ' '));
+        out.newLine();
+        for (long id : ids) {
+            out.write(Long.toString(id));
+            out.newLine();
+        }
+        out.flush();
+        count += ids.length;
+    }
+
+    /**
+     * @return The number of IDs recorded in this run.
+     */
+    synchronized long count() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * <p>Converts the tweets written to it, as lines of JSON, into rows of delimited text
+ * (CSV or TSV), with a header row naming a column for each field to keep (see
+ * {@link TweetColumns}). Each row is extracted from its tweet in a single streaming
+ * pass, and written as soon as its line is complete, so, unlike Parquet, the output
+ * can be read (or piped on) while it's being written. As it's a stream of lines, it
+ * can stand in for a plain file wherever JSONL is written, including when the output
+ * is rotated, in which case each file has its own header. Rows can also be made with
+ * {@link #row} on other threads, several at once, and written as they are (see
+ * {@link AsyncTweetWriter#toDelimitedRows}).</p>
+ *
+ * <p>Objects and arrays are written as JSON, and creation dates as ISO-8601 UTC
+ * timestamps (e.g. <code>2017-10-11T02:46:58Z</code>). CSV values are quoted as
+ * RFC 4180 has it, when they hold a comma, quote or line break. TSV values can't be
+ * quoted, so tabs, line breaks and backslashes in them are escaped with backslashes
+ * (e.g. <code>\t</code>), as PostgreSQL's and MySQL's text formats have it.</p>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc4180">RFC 4180</a>
+ */
+final class DelimitedTweetWriter extends JsonLinesOutputStream {
+
+    /** The delimited formats. */
+    enum Dialect {
+        CSV(','), TSV('\t');
+
+        final char delimiter;
+
+        Dialect(final char delimiter) {
+            this.delimiter = delimiter;
+        }
+    }
+
+    private final Writer out;
+    private final TweetColumns columns;
+    private final Dialect dialect;
+    private final Object[] row;
+    private final StringBuilder text = new StringBuilder(1024);
+    private long skipped;
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param out Where to write the rows, which is closed when this is.
+     * @param columns The columns to write.
+     * @param dialect How to delimit the columns.
+     * @param withHeader True to start with a header row, e.g. unless appending to earlier rows.
+     * @throws IOException if the header can't be written.
+     */
+    DelimitedTweetWriter(
+        final OutputStream out,
+        final TweetColumns columns,
+        final Dialect dialect,
+        final boolean withHeader
+    ) throws IOException {
+        this.out = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        this.columns = columns;
+        this.dialect = dialect;
+        this.row = new Object[columns.columnCount()];
+        if (withHeader) {
+            appendHeader(text, columns, dialect);
+            writeLine();
+        }
+    }
+
+    /**
+     * @param columns The columns to name.
+     * @param dialect How to delimit them.
+     * @return The header row naming the columns, with its '\n'.
+     */
+    static String header(final TweetColumns columns, final Dialect dialect) {
+        final StringBuilder header = new StringBuilder();
+        appendHeader(header, columns, dialect);
+        return header.append('\n').toString();
+    }
+
+    /**
+     * Converts a tweet into a row, on any thread.
+     *
+     * @param columns The columns to extract.
+     * @param dialect How to delimit them.
+     * @param tweet The tweet's JSON.
+     * @return The row, without its '\n'.
+     * @throws IOException if the JSON isn't a tweet.
+     */
+    static String row(final TweetColumns columns, final Dialect dialect, final String tweet) throws IOException {
+        final byte[] json = tweet.getBytes(StandardCharsets.UTF_8);
+        final Object[] row = new Object[columns.columnCount()];
+        columns.extract(json, 0, json.length, row);
+        final StringBuilder text = new StringBuilder(json.length / 2);
+        appendRow(text, columns, dialect, row);
+        return text.toString();
+    }
+
+    /**
+     * Flushes the rows written so far (but not the start of an incomplete line).
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            endLastLine();
+        } finally {
+            out.close();
+        }
+        if (skipped > 0) {
+            System.err.printf("%s output: skipped %d lines that weren't tweets\n", dialect, skipped);
+        }
+    }
+
+    /**
+     * Converts a line into a row.
+     */
+    @Override
+    protected void line(final byte[] line, final int offset, final int length) throws IOException {
+        try {
+            columns.extract(line, offset, length, row);
+        } catch (IOException e) {
+            skipped++;
+            return;
+        }
+        appendRow(text, columns, dialect, row);
+        writeLine();
+    }
+
+    private static void appendHeader(final StringBuilder text, final TweetColumns columns, final Dialect dialect) {
+        for (int i = 0; i < columns.columnCount(); i++) {
+            if (i > 0) {
+                text.append(dialect.delimiter);
+            }
+            appendValue(text, dialect, columns.columnName(i));
+        }
+    }
+
+    /**
+     * Appends the values extracted from a tweet as a row, without its '\n'.
+     */
+    private static void appendRow(
+        final StringBuilder text,
+        final TweetColumns columns,
+        final Dialect dialect,
+        final Object[] row
+    ) {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                text.append(dialect.delimiter);
+            }
+            final Object value = row[i];
+            if (value instanceof String && columns.isTimestamp(i)) {
+                final Long timestamp = ParquetTweetWriter.toTimestamp((String) value);
+                final String when = timestamp != null ? Instant.ofEpochMilli(timestamp).toString() : (String) value;
+                appendValue(text, dialect, when);
+            } else if (value instanceof TweetColumns.Json) {
+                appendValue(text, dialect, ((TweetColumns.Json) value).text);
+            } else if (value != null) {
+                appendValue(text, dialect, value.toString());
+            }
+        }
+    }
+
+    /**
+     * Appends a value to a row, quoted or escaped as the dialect requires.
+     */
+    private static void appendValue(final StringBuilder text, final Dialect dialect, final String value) {
+        if (dialect == Dialect.TSV) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '\t': text.append("\\t"); break;
+                    case '\n': text.append("\\n"); break;
+                    case '\r': text.append("\\r"); break;
+                    case '\\': text.append("\\\\"); break;
+                    default: text.append(c);
+                }
+            }
+        } else if (needsQuotes(value)) {
+            text.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"') {
+                    text.append('"');
+                }
+                text.append(c);
+            }
+            text.append('"');
+        } else {
+            text.append(value);
+        }
+    }
+
+    private static boolean needsQuotes(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeLine() throws IOException {
+        text.append('\n');
+        out.append(text);
+        text.setLength(0);
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Counts what the lookup workers are doing, so it's possible to tell whether a
+ * run is limited by the network (lookup latency), by rate limits (time spent waiting
+ * for the rate limiter) or by the CPU (time spent handling results): lookup calls,
+ * IDs asked for, tweets returned, a histogram of lookup latency, time waiting and
+ * processing, and errors by type.</p>
+ *
+ * <p>The metrics can be watched over JMX (see {@link FetchMetricsMBean}), scraped
+ * in the Prometheus text format from <code>http://localhost:PORT/metrics</code>,
+ * and summarised on <code>stderr</code> periodically. Recording is thread safe and
+ * cheap enough to do on every call.</p>
+ */
+class FetchMetrics implements FetchMetricsMBean, Closeable {
+
+    private static final String JMX_NAME = "au.org.dcw.twitter.ingest:type=FetchMetrics";
+
+    /**
+     * Upper bounds of the lookup latency histogram's buckets, in seconds, from the
+     * millisecond calls of a local stub (see {@link StubTwitterServer}) to Twitter's
+     * slowest.
+     */
+    private static final double[] LATENCY_BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    private final long startedAt = System.nanoTime();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder idsRequested = new LongAdder();
+    private final LongAdder tweetsReturned = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAdder processingNanos = new LongAdder();
+    private final LongAdder rateLimitWaitMillis = new LongAdder();
+    /** Lookups per latency bucket, with those slower than the last bound at the end. */
+    private final LongAdder[] latencies = new LongAdder[LATENCY_BUCKETS.length + 1];
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private ObjectName registeredAs;
+    private HttpServer httpServer;
+    private ScheduledExecutorService summariser;
+
+    /**
+     * Constructor
+     */
+    FetchMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a successful lookup.
+     *
+     * @param requested The number of IDs asked for.
+     * @param returned The number of tweets returned.
+     * @param lookupNanos How long the call to Twitter took.
+     * @param processingNanos How long it took to handle the tweets returned.
+     */
+    void lookupSucceeded(final int requested, final int returned, final long lookupNanos, final long processingNanos) {
+        batches.increment();
+        idsRequested.add(requested);
+        tweetsReturned.add(returned);
+        this.lookupNanos.add(lookupNanos);
+        this.processingNanos.add(processingNanos);
+        final double seconds = lookupNanos / 1e9;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && seconds > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        latencies[bucket].increment();
+    }
+
+    /**
+     * @param millis How long a worker waited for its rate limiter.
+     */
+    void rateLimitWaited(final long millis) {
+        rateLimitWaitMillis.add(millis);
+    }
+
+    /**
+     * @param type The kind of error, e.g. "rate_limited", "network" or "http_503".
+     */
+    void error(final String type) {
+        errors.computeIfAbsent(type, t -> new LongAdder()).increment();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getIdsRequested() {
+        return idsRequested.sum();
+    }
+
+    @Override
+    public long getTweetsReturned() {
+        return tweetsReturned.sum();
+    }
+
+    @Override
+    public double getTweetsPerSecond() {
+        return tweetsReturned.sum() / Math.max(1e-3, (System.nanoTime() - startedAt) / 1e9);
+    }
+
+    @Override
+    public double getMeanLookupMillis() {
+        final long n = batches.sum();
+        return n == 0 ? 0 : lookupNanos.sum() / 1e6 / n;
+    }
+
+    @Override
+    public double getLookupMillisP50() {
+        return latencyPercentile(0.5) * 1000;
+    }
+
+    @Override
+    public double getLookupMillisP99() {
+        return latencyPercentile(0.99) * 1000;
+    }
+
+    @Override
+    public double getRateLimitWaitSeconds() {
+        return rateLimitWaitMillis.sum() / 1000.0;
+    }
+
+    @Override
+    public double getProcessingSeconds() {
+        return processingNanos.sum() / 1e9;
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    @Override
+    public String getErrorsByType() {
+        return errorCounts().entrySet().stream()
+            .map(e -> e.getKey() + "=" + e.getValue())
+            .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Registers the metrics with the platform's MBean server, so they can be watched over JMX.
+     */
+    void registerMBean() {
+        try {
+            final ObjectName name = new ObjectName(JMX_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(this, FetchMetricsMBean.class), name
+            );
+            registeredAs = name;
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics in the Prometheus text format at <code>http://localhost:port/metrics</code>.
+     *
+     * @param port The port to listen on (bound to the loopback interface only).
+     * @throws IOException if the port can't be listened on.
+     */
+    void serveHttp(final int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            final byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+        System.err.printf("Serving metrics at http://localhost:%d/metrics\n", httpServer.getAddress().getPort());
+    }
+
+    /**
+     * Prints a summary of the metrics to <code>stderr</code> periodically, and once more on closing.
+     *
+     * @param intervalSeconds How often to print the summary.
+     */
+    void summarise(final long intervalSeconds) {
+        summariser = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "metrics-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        summariser.scheduleAtFixedRate(
+            () -> System.err.println(summary()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS
+        );
+    }
+
+    /**
+     * @return A one line summary of the metrics.
+     */
+    String summary() {
+        final long requested = idsRequested.sum();
+        final long returned = tweetsReturned.sum();
+        final String errorsByType = getErrorsByType();
+        return String.format(Locale.ROOT,
+            "[metrics] %d tweets from %d IDs (%.1f%%) in %d calls, %.1f tweets/s; " +
+                "lookup mean %.1fms, p50 <= %.1fms, p99 <= %.1fms; " +
+                "waited %.1fs on rate limits, %.1fs processing; errors: %s",
+            returned, requested, requested == 0 ? 0.0 : 100.0 * returned / requested, batches.sum(),
+            getTweetsPerSecond(), getMeanLookupMillis(), getLookupMillisP50(), getLookupMillisP99(),
+            getRateLimitWaitSeconds(), getProcessingSeconds(), errorsByType.isEmpty() ? "none" : errorsByType
+        );
+    }
+
+    /**
+     * @return The metrics in the Prometheus text exposition format.
+     */
+    String prometheusText() {
+        final StringBuilder sb = new StringBuilder(2048);
+        counter(sb, "fetch_tweets_batches_total", "Lookup calls that succeeded.", batches.sum());
+        counter(sb, "fetch_tweets_ids_requested_total", "IDs asked for in successful lookups.", idsRequested.sum());
+        counter(sb, "fetch_tweets_tweets_returned_total", "Tweets returned by Twitter.", tweetsReturned.sum());
+        counter(sb, "fetch_tweets_rate_limit_wait_seconds_total", "Time spent waiting on rate limits.",
+            getRateLimitWaitSeconds());
+        counter(sb, "fetch_tweets_processing_seconds_total", "Time spent handling lookups' results.",
+            getProcessingSeconds());
+
+        sb.append("# HELP fetch_tweets_lookup_seconds Time taken by successful lookup calls.\n");
+        sb.append("# TYPE fetch_tweets_lookup_seconds histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            cumulative += latencies[i].sum();
+            final String bound = i < LATENCY_BUCKETS.length ? Double.toString(LATENCY_BUCKETS[i]) : "+Inf";
+            sb.append("fetch_tweets_lookup_seconds_bucket{le=\"").append(bound).append("\"} ")
+                .append(cumulative).append('\n');
+        }
+        sb.append("fetch_tweets_lookup_seconds_sum ").append(lookupNanos.sum() / 1e9).append('\n');
+        sb.append("fetch_tweets_lookup_seconds_count ").append(cumulative).append('\n');
+
+        sb.append("# HELP fetch_tweets_errors_total Errors, by type.\n");
+        sb.append("# TYPE fetch_tweets_errors_total counter\n");
+        errorCounts().forEach((type, count) ->
+            sb.append("fetch_tweets_errors_total{type=\"").append(type).append("\"} ").append(count).append('\n')
+        );
+        return sb.toString();
+    }
+
+    /**
+     * Stops serving and summarising the metrics, printing a final summary if summarising.
+     */
+    @Override
+    public void close() {
+        if (summariser != null) {
+            summariser.shutdownNow();
+            System.err.println(summary());
+        }
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException e) {
+                // we're finishing anyway
+            }
+        }
+    }
+
+    private static void counter(final StringBuilder sb, final String name, final String help, final Number value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private Map<String, Long> errorCounts() {
+        final Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    /**
+     * @return The upper bound of the histogram bucket holding the given percentile of
+     *         lookup latencies, in seconds (infinite if it's beyond the last bucket).
+     */
+    private double latencyPercentile(final double percentile) {
+        final long[] counts = new long[latencies.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencies[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long cumulative = 0;
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= percentile * total) {
+                return LATENCY_BUCKETS[i];
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+/**
+ * <p>The view of {@link FetchMetrics} offered over JMX, e.g. to JConsole or VisualVM,
+ * registered as <code>au.org.dcw.twitter.ingest:type=FetchMetrics</code>.</p>
+ */
+public interface FetchMetricsMBean {
+
+    /**
+     * @return The number of lookup calls that succeeded.
+     */
+    long getBatches();
+
+    /**
+     * @return The number of IDs asked for in successful lookups.
+     */
+    long getIdsRequested();
+
+    /**
+     * @return The number of tweets Twitter returned.
+     */
+    long getTweetsReturned();
+
+    /**
+     * @return Tweets returned per second, on average, since fetching started.
+     */
+    double getTweetsPerSecond();
+
+    /**
+     * @return The mean time a successful lookup call took, in milliseconds.
+     */
+    double getMeanLookupMillis();
+
+    /**
+     * @return The time within which half of the lookup calls completed, to the nearest histogram bucket.
+     */
+    double getLookupMillisP50();
+
+    /**
+     * @return The time within which 99% of the lookup calls completed, to the nearest histogram bucket.
+     */
+    double getLookupMillisP99();
+
+    /**
+     * @return The total time workers have spent waiting on rate limits, in seconds.
+     */
+    double getRateLimitWaitSeconds();
+
+    /**
+     * @return The total time workers have spent handling lookups' results, in seconds.
+     */
+    double getProcessingSeconds();
+
+    /**
+     * @return The total number of errors.
+     */
+    long getErrors();
+
+    /**
+     * @return The number of errors of each type, e.g. "network=2, http_503=1".
+     */
+    String getErrorsByType();
+}
@@ -19,16 +19,18 @@ import au.org.dcw.twitter.ingest.ui.TweetSanitiserUI;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import twitter4j.RateLimitStatus;
 import twitter4j.RateLimitStatusEvent;
 import twitter4j.RateLimitStatusListener;
-import twitter4j.ResponseList;
-import twitter4j.Status;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
 import twitter4j.TwitterFactory;
-import twitter4j.TwitterObjectFactory;
 import twitter4j.conf.Configuration;
 import twitter4j.conf.ConfigurationBuilder;
 
@@ -36,24 +38,35 @@ import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 
 /**
  * <p>This app can fetch the JSON for one or more tweets. It has a GUI mode, which
  * can be used to fetch one tweet at a time, or in a commandline mode where the IDs
  * of tweets can be provided on the commandline or in a file, one per line, while
- * output is written to <code>stdout</code>.</p>
+ * output is written to <code>stdout</code>. Tweets already fetched can also be
+ * sanitised in bulk, as in the GUI, without going to Twitter.</p>
  *
  * <p>Twitter credentials are looked for in "./twitter.properties", and proxy info
  * is looked for in "./proxy.properties". Commandline options for the input file,
@@ -70,6 +83,33 @@ class FetchTweets {
      * @see Twitter's <a href="https://developer.twitter.com/en/docs/tweets/post-and-engage/api-reference/get-statuses-lookup">GET statuses/lookup</a>
      */
     private static final int REFETCH_BATCH_SIZE = 100;
+    private static final int TWEET_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * How lookups are sent to Twitter.
+     */
+    enum Transport {
+        /** Through Twitter4J, as {@link twitter4j.Status}es, one lookup per worker at a time. */
+        TWITTER4J,
+        /** Through Twitter4J's blocking HTTP client, as raw bytes, one lookup per worker at a time. */
+        RAW,
+        /** Through a shared non-blocking HTTP client, as raw bytes, several lookups per worker at a time. */
+        ASYNC
+    }
+
+    /**
+     * How tweets are written out.
+     */
+    enum Format {
+        /** One tweet's JSON per line. */
+        JSONL,
+        /** The fields to keep, in the columns of a Parquet file. */
+        PARQUET,
+        /** The fields to keep, in comma separated columns. */
+        CSV,
+        /** The fields to keep, in tab separated columns. */
+        TSV
+    }
+
     public static final List<String> DEFAULT_FIELDS_TO_KEEP = Arrays.asList(
         "created_at", "text", "full_text", "extended_tweet.full_text", "user.screen_name", "coordinates", "place",
         "entities.media", "id", "id_str"
@@ -81,12 +121,156 @@ class FetchTweets {
     @Parameter(names = {"-f", "--ids-file"}, description = "File of tweet IDs to fetch (one per line)")
     private String infile;
 
+    @Parameter(names = {"-o", "--output"},
+               description = "File to write tweets to, rather than stdout (.gz or .zst implies compression)")
+    private String outfile;
+
+    @Parameter(names = {"--compression"},
+               description = "Compression for the output file: none, gzip or zstd (by default, as implied by " +
+                   "its extension, or zstd for Parquet)")
+    private AsyncTweetWriter.Compression compression;
+
+    @Parameter(names = {"--format"},
+               description = "Format of the output: jsonl, or parquet, csv or tsv with a column per field to " +
+                   "keep (by default, as implied by the output file's extension, e.g. .csv.gz, otherwise jsonl)")
+    private Format format;
+
+    @Parameter(names = {"--row-group-rows"}, description = "Most tweets per row group of a Parquet output file")
+    private int rowGroupRows = 100_000;
+
+    @Parameter(names = {"--rotate-lines"}, description = "Start a new output file after this many tweets")
+    private long rotateLines = 0;
+
+    @Parameter(names = {"--rotate-mb"}, description = "Start a new output file after this many MB (uncompressed)")
+    private long rotateMB = 0;
+
+    @Parameter(names = {"-s", "--sanitise"},
+               description = "Sanitise the tweets in this JSONL file (- for stdin, .gz is decompressed) " +
+                   "rather than fetching any, keeping the fields in the keep file")
+    private String sanitiseFile;
+
+    @Parameter(names = {"--threads"},
+               description = "How many threads to sanitise an uncompressed file with (Parquet output is " +
+                   "converted on a single thread unless --output-per-chunk)")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--chunk-mb"},
+               description = "Size of the chunks a file is split into to be sanitised in parallel, in MB")
+    private long chunkMB = 64;
+
+    @Parameter(names = {"--output-per-chunk"},
+               description = "When sanitising in parallel, write each chunk to its own numbered output file " +
+                   "rather than merging them in order")
+    private boolean outputPerChunk = false;
+
     @Parameter(names = {"-k", "--keep-file"}, description = "File of properties to keep (comma separated or one per line)")
     private String propertiesToKeepFile;
 
     @Parameter(names = {"-c", "--credentials"},
-               description = "Properties file with Twitter OAuth credentials")
-    private String credentialsFile = "./twitter.properties";
+               description = "Properties file with Twitter OAuth credentials (repeat to fetch concurrently, " +
+                   "one worker per file; files without an access token use app-only auth)")
+    private List<String> credentialsFiles = Lists.newArrayList("./twitter.properties");
+
+    @Parameter(names = {"--transport"},
+               description = "How to send lookups: raw (blocking), async (non-blocking, several in flight " +
+                   "per credentials file) or twitter4j (blocking, parsing tweets into Twitter4J objects)")
+    private Transport transport = Transport.RAW;
+
+    @Parameter(names = {"--in-flight"},
+               description = "With the async transport, the most lookups in flight per credentials file")
+    private int inFlight = 4;
+
+    @Parameter(names = {"--io-threads"}, description = "With the async transport, the number of I/O threads")
+    private int ioThreads = 2;
+
+    @Parameter(names = {"--api-base-url"},
+               description = "Base URL of Twitter's REST API, e.g. to fetch from a local stub instead")
+    private String apiBaseURL;
+
+    @Parameter(names = {"--load-test"},
+               description = "Fetch from a local stub of Twitter's API, serving the stub corpus, rather than " +
+                   "from Twitter, and report throughput and latency (credentials files needn't exist)")
+    private boolean loadTest = false;
+
+    @ParametersDelegate
+    private StubTwitterServer.Options stubOptions = new StubTwitterServer.Options();
+
+    @Parameter(names = {"-j", "--journal"},
+               description = "File in which to record progress, so an interrupted run can be resumed")
+    private String journalFile;
+
+    @Parameter(names = {"-r", "--resume"},
+               description = "Skip the IDs the journal says were fetched in a previous run with the same IDs")
+    private boolean resume = false;
+
+    @Parameter(names = {"-d", "--dedupe"}, description = "Drop repeated IDs rather than fetching them again")
+    private boolean dedupe = false;
+
+    @Parameter(names = {"--hydrate-depth"},
+               description = "Also fetch the tweets those fetched reply to or quote, and the tweets they reply to " +
+                   "or quote, etc., up to this many levels deep")
+    private int hydrateDepth = 0;
+
+    @Parameter(names = {"--expected-ids"},
+               description = "Roughly how many distinct IDs to expect, to size the de-duplication set up front")
+    private long expectedIDs = 0;
+
+    @Parameter(names = {"--cache-dir"},
+               description = "Directory of a persistent cache of fetched tweets, checked before asking Twitter")
+    private String cacheDir;
+
+    @Parameter(names = {"--cache-max-mb"}, description = "Most disk space the cache may use, in MB")
+    private long cacheMaxMB = 1024;
+
+    @Parameter(names = {"--cache-ttl-hours"},
+               description = "How long cached tweets remain valid, in hours (0 means indefinitely)")
+    private long cacheTTLHours = 0;
+
+    @Parameter(names = {"--store"},
+               description = "Directory of a store of tweets, indexed by ID, which fetched tweets are added to " +
+                   "and which is checked before asking Twitter")
+    private String storeDir;
+
+    @Parameter(names = {"--store-segment-mb"}, description = "Size of each of the store's segments, in MB")
+    private long storeSegmentMB = 256;
+
+    @Parameter(names = {"--store-import"},
+               description = "Add the tweets in this JSONL file (- for stdin, .gz is decompressed) to the store")
+    private String storeImportFile;
+
+    @Parameter(names = {"--store-range"},
+               description = "Write the stored tweets with IDs in this range (FROM:TO, inclusive) to the output, " +
+                   "in ID order")
+    private String storeRange;
+
+    @Parameter(names = {"--store-compact"},
+               description = "Merge the store's segments into one, dropping superseded copies of tweets")
+    private boolean storeCompact = false;
+
+    @Parameter(names = {"--missing-file"},
+               description = "File recording the tweets Twitter didn't return, which are skipped in later runs")
+    private String missingFile;
+
+    @Parameter(names = {"--missing-ttl-hours"},
+               description = "How long to skip tweets that weren't returned, in hours (0 means indefinitely)")
+    private long missingTTLHours = 30 * 24;
+
+    @Parameter(names = {"--missing-ids"},
+               description = "File to list the IDs of tweets that weren't returned (or were skipped as missing) in")
+    private String missingIDsFile;
+
+    @Parameter(names = {"--dead-letters"},
+               description = "File to append IDs to that couldn't be looked up even after retrying, " +
+                   "to be given as the IDs file in a later run")
+    private String deadLettersFile;
+
+    @Parameter(names = {"--metrics-port"},
+               description = "Serve fetching metrics in the Prometheus text format at http://localhost:PORT/metrics")
+    private int metricsPort = 0;
+
+    @Parameter(names = {"--metrics-interval"},
+               description = "How often to summarise fetching metrics on stderr, in seconds (0 for never)")
+    private long metricsInterval = 60;
 
     @Parameter(names = {"-v", "--debug", "--verbose"}, description = "Debug mode")
     private boolean debug = false;
@@ -94,6 +278,9 @@ class FetchTweets {
     @Parameter(names = {"-h", "-?", "--help"}, description = "Help")
     private static boolean help = false;
 
+    /** Stands in for Twitter when load testing. */
+    private StubTwitterServer stub;
+
     public static void main(String[] args) throws IOException {
         FetchTweets theApp = new FetchTweets();
 
@@ -108,6 +295,54 @@ class FetchTweets {
             help = true;
         }
 
+        if (theApp.resume && theApp.journalFile == null) {
+            System.err.println("--resume requires a --journal");
+            help = true;
+        }
+
+        if (theApp.outputPerChunk && theApp.outfile == null) {
+            System.err.println("--output-per-chunk requires an --output file");
+            help = true;
+        }
+
+        if (theApp.outputFormat() == Format.PARQUET && theApp.outfile == null) {
+            System.err.println("Parquet output requires an --output file");
+            help = true;
+        }
+
+        if (theApp.journalFile != null && theApp.outfile != null
+            && theApp.outputCompression() != AsyncTweetWriter.Compression.NONE) {
+            System.err.println(
+                "--journal requires uncompressed output, as a compressed file can't be resumed after a crash"
+            );
+            help = true;
+        }
+
+        if (theApp.hydrateDepth > 0 && theApp.journalFile != null) {
+            System.err.println("--hydrate-depth can't be used with --journal, which only records the IDs given");
+            help = true;
+        }
+
+        if (theApp.outputFormat() == Format.PARQUET && theApp.journalFile != null) {
+            System.err.println("--journal requires JSONL output, as a Parquet file is only readable once finished");
+            help = true;
+        }
+
+        if (theApp.inStoreMode() && theApp.storeDir == null) {
+            System.err.println("--store-import, --store-range and --store-compact require a --store");
+            help = true;
+        }
+
+        if (theApp.storeRange != null && ! theApp.storeRange.matches("\\d+:\\d+")) {
+            System.err.println("--store-range must be FROM:TO, two tweet IDs");
+            help = true;
+        }
+
+        if (theApp.missingIDsFile != null && theApp.missingFile == null) {
+            System.err.println("--missing-ids requires a --missing-file");
+            help = true;
+        }
+
         if (help) {
             StringBuilder sb = new StringBuilder();
             argsParser.usage(sb);
@@ -120,27 +355,30 @@ class FetchTweets {
 
     private void run() throws IOException {
 
-        // establish resources
-        final Configuration twitterConfig = makeTwitterConfig(credentialsFile, debug);
-        final Twitter twitter = new TwitterFactory(twitterConfig).getInstance();
-        twitter.addRateLimitStatusListener(new RateLimitStatusListener() {
-            @Override
-            public void onRateLimitStatus(RateLimitStatusEvent event) {
-                maybeDoze(event.getRateLimitStatus());
-            }
+        if (loadTest && sanitiseFile == null) {
+            stub = new StubTwitterServer(stubOptions);
+            apiBaseURL = stub.baseURL();
+        }
 
-            @Override
-            public void onRateLimitReached(RateLimitStatusEvent event) {
-                maybeDoze(event.getRateLimitStatus());
-            }
-        });
+        if (inStoreMode()) {
+            maintainStore();
+
+        } else if (sanitiseFile != null) {
+            sanitiseTweets();
+
+        } else if (inGuiMode()) {
+            // establish resources
+            final Twitter twitter = makeTwitter(credentialsFiles.get(0));
+            dozeWhenRateLimited(twitter);
+            final TweetCache cache = openCache();
+            final TweetStore store = openStore();
+            final MissingTweets missing = openMissing();
 
-        if (inGuiMode()) {
             // Create and set up the window
             JFrame frame = new JFrame("Sanitise Tweet");
             frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 
-            TweetSanitiserUI gui = new TweetSanitiserUI(twitter, loadFieldsToKeep(), debug);
+            TweetSanitiserUI gui = new TweetSanitiserUI(twitter, store, cache, missing, loadFieldsToKeep(), debug);
             frame.setContentPane(gui);
 
             // Display the window
@@ -151,57 +389,509 @@ class FetchTweets {
 
 
         } else {
+            // whatever's been opened is closed, in reverse, even if opening something after it fails
+            final Closer closer = Closer.create();
+            final Stopwatch fetching = Stopwatch.createUnstarted();
+            final LongHashSet seen = dedupe ? new LongHashSet(expectedIDs) : null;
+            final ReferenceFrontier frontier = hydrateDepth > 0 ? new ReferenceFrontier() : null;
+            long considered = 0; // i.e. not already done in a previous run
+            long duplicates = 0;
+            try {
+                if (stub != null) {
+                    closer.register(stub);
+                }
 
-            // read in tweet IDs
-            final List<Long> tweetIDs = Lists.newArrayList();
+                // establish resources - one Twitter instance (and rate limit budget) per credentials file
+                final Map<String, Twitter> twitters = Maps.newLinkedHashMap();
+                for (String credentialsFile : credentialsFiles) {
+                    twitters.put(
+                        Paths.get(credentialsFile).getFileName().toString(),
+                        makeTwitter(credentialsFile)
+                    );
+                }
+                final CloseableHttpAsyncClient client = transport == Transport.ASYNC
+                    ? AsyncLookupTransport.makeClient(
+                        twitters.values().iterator().next().getConfiguration(), twitters.size() * inFlight, ioThreads)
+                    : null;
+                if (client != null) {
+                    closer.register(client);
+                }
+                final Map<String, LookupTransport> transports = Maps.newLinkedHashMap();
+                twitters.forEach((name, twitter) -> transports.put(name, makeTransport(twitter, client)));
 
-            // specified on the commandline
-            if (! idStrs.isEmpty()) {
-                tweetIDs.addAll(idStrs.stream().map(Long::parseLong).collect(Collectors.toList()));
+                final CheckpointJournal journal = journalFile != null
+                    ? closer.register(new CheckpointJournal(Paths.get(journalFile), resume))
+                    : null;
+                if (journal != null && resume) {
+                    System.err.printf("Resuming: skipping %d IDs fetched previously\n", journal.previouslyDone());
+                }
+                final DeadLetters deadLetters =
+                    deadLettersFile != null ? new DeadLetters(Paths.get(deadLettersFile)) : null;
+                if (deadLetters != null) {
+                    closer.register(() -> {
+                        if (deadLetters.count() > 0) {
+                            System.err.printf(
+                                "%d IDs couldn't be looked up: retry them with --ids-file %s\n",
+                                deadLetters.count(), deadLettersFile
+                            );
+                        }
+                        deadLetters.close();
+                    });
+                }
+                final MissingTweets missing = openMissing();
+                if (missing != null) {
+                    closer.register(() -> {
+                        System.err.printf(
+                            "Missing tweets: %d not returned, %d skipped as known to be missing\n",
+                            missing.found(), missing.skipped()
+                        );
+                        missing.close();
+                    });
+                }
+                final TweetStore store = openStore();
+                if (store != null) {
+                    closer.register(() -> {
+                        System.err.printf("Store: %d hits, now indexing %d tweets\n", store.hits(), store.size());
+                        store.close();
+                    });
+                }
+                final TweetCache cache = openCache();
+                if (cache != null) {
+                    closer.register(() -> {
+                        System.err.printf("Cache: %d hits, %d misses\n", cache.hits(), cache.misses());
+                        cache.close();
+                    });
+                }
+                final FetchMetrics metrics = closer.register(openMetrics());
+                if (stub != null) {
+                    closer.register(() -> {
+                        if (fetching.isRunning()) {
+                            reportLoadTest(metrics, fetching.elapsed(TimeUnit.NANOSECONDS));
+                        }
+                    });
+                }
+
+                // fetch in batches, concurrently across the credentials, as the IDs are read in
+                final AsyncTweetWriter output = closer.register(openOutput());
+                final LookupEngine engine =
+                    new LookupEngine(transports, REFETCH_BATCH_SIZE, client != null ? inFlight : 1, output);
+                closer.register(engine::abandon); // unless it finished
+                engine.setJournal(journal);
+                engine.setCache(cache);
+                engine.setStore(store);
+                engine.setMetrics(metrics);
+                engine.setMissing(missing);
+                engine.setDeadLetters(deadLetters);
+                engine.setFrontier(frontier);
+                engine.start();
+                fetching.start();
+                try (IdReader ids = openIDs()) {
+                    long ordinal = 0;
+                    for (; ids.hasNext(); ordinal++) {
+                        final long id = ids.nextLong();
+                        // remembered even if done in a previous run, so later repeats of it are dropped too
+                        final boolean repeated = seen != null && ! seen.add(id);
+                        if (frontier != null) {
+                            frontier.markSeen(id);
+                        }
+                        if (journal != null && journal.isDone(ordinal)) {
+                            continue;
+                        }
+                        considered++;
+                        if (repeated) {
+                            duplicates++;
+                            continue;
+                        }
+                        engine.fetch(ordinal, id);
+                    }
+
+                    // then the tweets those refer to, a level at a time, in as few full batches as possible
+                    for (int depth = 1; depth <= hydrateDepth; depth++) {
+                        engine.awaitLevel();
+                        final long[] level = frontier.nextLevel();
+                        if (level.length == 0) {
+                            break;
+                        }
+                        System.err.printf("Hydrating level %d: %d tweets referred to\n", depth, level.length);
+                        for (long id : level) {
+                            engine.fetch(ordinal++, id);
+                        }
+                    }
+                    engine.finish();
+                } catch (InterruptedException e) {
+                    System.err.println("Interrupted while fetching tweets: " + e.getMessage());
+                    Thread.currentThread().interrupt();
+                }
+            } catch (Throwable e) {
+                throw closer.rethrow(e);
+            } finally {
+                closer.close();
             }
-            // referred to in a nearby file
-            if (infile != null) {
-                tweetIDs.addAll(Files
-                    .lines(Paths.get(infile))
-                    .filter(s -> ! s.isEmpty())
-                    .map(Long::parseLong)
-                    .collect(Collectors.toList())
+            if (frontier != null) {
+                System.err.printf(
+                    "Hydration: %d tweets referred to were fetched, or asked for (%d tweets couldn't be read)\n",
+                    frontier.referencesFound(), frontier.unreadable()
                 );
             }
+            if (seen != null) {
+                final long callsSaved = batchesFor(considered) - batchesFor(considered - duplicates);
+                System.err.printf(
+                    "De-duplication dropped %d repeated IDs of %d, saving %d calls (set used ~%dMB)\n",
+                    duplicates, considered, callsSaved, seen.memoryUsed() / (1024 * 1024)
+                );
+            }
+        }
+    }
 
-            // fetch in batches
-            Lists.partition(tweetIDs, REFETCH_BATCH_SIZE).forEach( batchOfIDs -> {
-                // prepare arguments for call to Twitter
-                final long[] arrayOfIDs = new long[batchOfIDs.size()];
-                for (int i = 0; i < batchOfIDs.size(); i++) {
-                    arrayOfIDs[i] = batchOfIDs.get(i);
+    /**
+     * Imports tweets into the store, writes a range of them to the output and/or
+     * compacts it, as asked.
+     *
+     * @throws IOException if there's a problem reading or writing the store, the tweets
+     *                     to import or the output.
+     */
+    private void maintainStore() throws IOException {
+        try (TweetStore store = openStore()) {
+            if (storeImportFile != null) {
+                importTweets(store);
+            }
+            if (storeRange != null) {
+                final String[] range = storeRange.split(":");
+                try (AsyncTweetWriter output = openOutput()) {
+                    final long written = store.scan(
+                        Long.parseLong(range[0]), Long.parseLong(range[1]),
+                        (id, line) -> output.write(line, new int[] {0}, new int[] {line.length - 1}, 1)
+                    );
+                    System.err.printf("Wrote %d stored tweets\n", written);
                 }
+            }
+            if (storeCompact) {
+                final long startedAt = System.nanoTime();
+                final long kept = store.compact();
+                System.err.printf(
+                    "Compacted the store to %d tweets in %.1fs\n", kept, (System.nanoTime() - startedAt) / 1e9
+                );
+            }
+        }
+    }
 
-                // hit Twitter's API
-                ResponseList<Status> response = null;
+    /**
+     * Adds the tweets in {@link #storeImportFile}, one JSON object per line, to the store.
+     * Lines without a tweet ID are reported and skipped.
+     *
+     * @param store The store to add them to.
+     * @throws IOException if there's a problem reading the tweets or writing the store.
+     */
+    private void importTweets(final TweetStore store) throws IOException {
+        long lineNumber = 0;
+        long imported = 0;
+        long failed = 0;
+        try (BufferedReader in = openTweets(storeImportFile)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final byte[] json = line.getBytes(StandardCharsets.UTF_8);
                 try {
-                    response = twitter.lookup(arrayOfIDs);
+                    final long id = TweetArraySplitter.idOf(json, 0, json.length);
+                    if (id == 0) {
+                        throw new IOException("No tweet ID");
+                    }
+                    store.put(id, json, 0, json.length);
+                    imported++;
+                } catch (IOException e) {
+                    System.err.printf("Failed to import line %d: %s\n", lineNumber, e.getMessage());
+                    failed++;
+                }
+            }
+        }
+        System.err.printf("Imported %d tweets (%d failed)\n", imported, failed);
+    }
 
-                    response.forEach ( tweet -> {
-                        // NB get Twitter's raw JSON, don't convert Twitter4J objs to JSON
-                        // via Jackson (they different structures & field names)
-                        String rawJSON = TwitterObjectFactory.getRawJSON(tweet);
-                        System.out.println(rawJSON);
-                    });
-                } catch (TwitterException te) {
-                    te.printStackTrace();
-                    System.err.println("Failed somehow: " + te.getMessage());
-                    System.err.println("Attempting to continue...");
+    /**
+     * Sanitises the tweets in {@link #sanitiseFile}, one JSON object per line, writing
+     * them to the output as they'd be shown in the GUI. Lines that can't be sanitised
+     * are reported and skipped.
+     *
+     * @throws IOException if there's a problem reading the tweets or writing the output.
+     */
+    private void sanitiseTweets() throws IOException {
+        // the columns of Parquet, CSV and TSV output are picked out of the tweets as they are, in one pass
+        final ParallelLineProcessor.LineFunction sanitiser = outputFormat() == Format.JSONL
+            ? new TweetSanitiser(loadFieldsToKeep())::sanitise
+            : line -> line;
+        if (threads > 1 && ! "-".equals(sanitiseFile) && ! sanitiseFile.endsWith(".gz")) {
+            sanitiseTweetsInParallel(sanitiser);
+            return;
+        }
+        long lineNumber = 0;
+        long sanitised = 0;
+        long failed = 0;
+        try (BufferedReader in = openTweets(sanitiseFile); AsyncTweetWriter output = openOutput()) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
                 }
-                if (response != null) {
-                    // Respect Twitter's authoritay on rate limits
-                    maybeDoze(response.getRateLimitStatus());
+                try {
+                    output.write(sanitiser.apply(line));
+                    sanitised++;
+                } catch (IOException e) {
+                    System.err.printf("Failed to sanitise line %d: %s\n", lineNumber, e.getMessage());
+                    failed++;
                 }
-            });
+            }
+        }
+        System.err.printf("Sanitised %d tweets (%d failed)\n", sanitised, failed);
+    }
+
+    /**
+     * Sanitises the tweets in {@link #sanitiseFile} in chunks, on {@link #threads} threads.
+     *
+     * @param sanitiser How to sanitise each tweet.
+     * @throws IOException if there's a problem reading the tweets or writing the output.
+     */
+    private void sanitiseTweetsInParallel(final ParallelLineProcessor.LineFunction sanitiser) throws IOException {
+        final ParallelLineProcessor processor =
+            new ParallelLineProcessor(Paths.get(sanitiseFile), threads, chunkMB * 1024 * 1024);
+        if (outputPerChunk) {
+            processor.processPerChunk(sanitiser, Paths.get(outfile), outputCompression(), outputConverter());
+        } else if (outputFormat() == Format.CSV || outputFormat() == Format.TSV) {
+            // the rows are made in the chunks' threads, leaving the output only to write them
+            final TweetColumns columns = new TweetColumns(loadFieldsToKeep(), rowGroupRows);
+            final DelimitedTweetWriter.Dialect dialect = DelimitedTweetWriter.Dialect.valueOf(outputFormat().name());
+            try (AsyncTweetWriter output = openOutput(AsyncTweetWriter.toDelimitedRows(columns, dialect))) {
+                processor.processInOrder(tweet -> DelimitedTweetWriter.row(columns, dialect, tweet), output);
+            }
+        } else {
+            try (AsyncTweetWriter output = openOutput()) {
+                processor.processInOrder(sanitiser, output);
+            }
+        }
+        System.err.printf("Sanitised %d tweets (%d failed)\n", processor.processed(), processor.failed());
+    }
+
+    /**
+     * Opens a file of tweets, or <code>stdin</code> if it's "-", decompressing it if it's gzipped.
+     *
+     * @param tweetsFile The file of tweets, one JSON object per line.
+     * @return A reader of the lines of tweet JSON.
+     * @throws IOException if there's a problem opening the file.
+     */
+    private static BufferedReader openTweets(final String tweetsFile) throws IOException {
+        InputStream in = "-".equals(tweetsFile) ? System.in : Files.newInputStream(Paths.get(tweetsFile));
+        if (tweetsFile.endsWith(".gz")) {
+            in = new GZIPInputStream(in, TWEET_BUFFER_SIZE);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), TWEET_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens the output for tweets: {@link #outfile} if given, otherwise <code>stdout</code>.
+     *
+     * @return The writer to send tweets to.
+     * @throws IOException if the fields to keep, for columnar output, can't be read.
+     */
+    private AsyncTweetWriter openOutput() throws IOException {
+        return openOutput(outputConverter());
+    }
+
+    /**
+     * @param converter How to convert the lines written to the output, or null to write them as they are.
+     * @return The writer to send lines to, which go to {@link #outfile} if given, otherwise <code>stdout</code>.
+     * @throws IOException if the output can't be opened.
+     */
+    private AsyncTweetWriter openOutput(final AsyncTweetWriter.Converter converter) throws IOException {
+        if (outfile == null) {
+            return new AsyncTweetWriter(converter);
         }
+        return new AsyncTweetWriter(
+            Paths.get(outfile), outputCompression(), rotateLines, rotateMB * 1024 * 1024, converter, resume
+        );
+    }
+
+    /**
+     * @return How to compress {@link #outfile}: as asked, or as implied by its extension or format.
+     */
+    private AsyncTweetWriter.Compression outputCompression() {
+        if (compression != null) return compression;
+        if (outputFormat() == Format.PARQUET) return AsyncTweetWriter.Compression.ZSTD;
+        if (outfile.endsWith(".gz")) return AsyncTweetWriter.Compression.GZIP;
+        if (outfile.endsWith(".zst")) return AsyncTweetWriter.Compression.ZSTD;
+        return AsyncTweetWriter.Compression.NONE;
+    }
+
+    /**
+     * @return How to write {@link #outfile}: as asked, or as implied by its extension.
+     */
+    private Format outputFormat() {
+        if (format != null) return format;
+        if (outfile == null) return Format.JSONL;
+        final String name = outfile.replaceFirst("\\.(gz|zst)$", "");
+        return name.endsWith(".parquet") ? Format.PARQUET
+            : name.endsWith(".csv") ? Format.CSV
+            : name.endsWith(".tsv") ? Format.TSV
+            : Format.JSONL;
+    }
+
+    /**
+     * @return How to convert the tweets written out to the output's format, or null for JSONL.
+     * @throws IOException if the fields to keep, which are the columns, can't be read.
+     */
+    private AsyncTweetWriter.Converter outputConverter() throws IOException {
+        switch (outputFormat()) {
+            case PARQUET:
+                return AsyncTweetWriter.toParquet(new TweetColumns(loadFieldsToKeep(), rowGroupRows));
+            case CSV:
+                return AsyncTweetWriter.toDelimited(
+                    new TweetColumns(loadFieldsToKeep(), rowGroupRows), DelimitedTweetWriter.Dialect.CSV
+                );
+            case TSV:
+                return AsyncTweetWriter.toDelimited(
+                    new TweetColumns(loadFieldsToKeep(), rowGroupRows), DelimitedTweetWriter.Dialect.TSV
+                );
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param twitter The Twitter instance to look tweets up with.
+     * @param client The shared non-blocking client, if using the async transport.
+     * @return The transport asked for.
+     */
+    private LookupTransport makeTransport(final Twitter twitter, final CloseableHttpAsyncClient client) {
+        switch (transport) {
+            case ASYNC:
+                return new AsyncLookupTransport(client, twitter);
+            case TWITTER4J:
+                return new Twitter4JTransport(twitter);
+            default:
+                return new RawLookupTransport(twitter);
+        }
+    }
+
+    /**
+     * Opens the tweet cache, if one has been asked for.
+     *
+     * @return The cache, or null if {@link #cacheDir} isn't set.
+     * @throws IOException if there's a problem opening the cache.
+     */
+    private TweetCache openCache() throws IOException {
+        return cacheDir == null ? null : new TweetCache(
+            Paths.get(cacheDir), cacheMaxMB * 1024 * 1024, TimeUnit.HOURS.toMillis(cacheTTLHours)
+        );
+    }
+
+    /**
+     * Opens the tweet store, if one has been asked for.
+     *
+     * @return The store, or null if {@link #storeDir} isn't set.
+     * @throws IOException if there's a problem opening the store.
+     */
+    private TweetStore openStore() throws IOException {
+        return storeDir == null ? null : new TweetStore(Paths.get(storeDir), storeSegmentMB * 1024 * 1024);
+    }
+
+    /**
+     * Opens the record of missing tweets, if one has been asked for, listing them in
+     * {@link #missingIDsFile} if that's been asked for.
+     *
+     * @return The record, or null if {@link #missingFile} isn't set.
+     * @throws IOException if there's a problem opening the record or the list.
+     */
+    private MissingTweets openMissing() throws IOException {
+        if (missingFile == null) {
+            return null;
+        }
+        final MissingTweets missing =
+            new MissingTweets(Paths.get(missingFile), TimeUnit.HOURS.toMillis(missingTTLHours));
+        if (missingIDsFile != null) {
+            missing.listTo(Paths.get(missingIDsFile));
+        }
+        return missing;
+    }
+
+    /**
+     * Sets up the fetching metrics: registered over JMX, and served over HTTP and
+     * summarised on <code>stderr</code> if asked for.
+     *
+     * @return The metrics for the lookup engine to count in.
+     * @throws IOException if the metrics port can't be listened on.
+     */
+    private FetchMetrics openMetrics() throws IOException {
+        final FetchMetrics metrics = new FetchMetrics();
+        try {
+            metrics.registerMBean();
+            if (metricsPort > 0) {
+                metrics.serveHttp(metricsPort);
+            }
+            if (metricsInterval > 0) {
+                metrics.summarise(metricsInterval);
+            }
+        } catch (IOException | RuntimeException e) {
+            metrics.close();
+            throw e;
+        }
+        return metrics;
+    }
+
+    /**
+     * Reports how a load test went: end to end throughput, lookup latency, and what
+     * the stub served.
+     *
+     * @param metrics The metrics counted while fetching.
+     * @param elapsedNanos How long fetching took.
+     */
+    private void reportLoadTest(final FetchMetrics metrics, final long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9;
+        System.err.printf(
+            "Load test: %d tweets for %d IDs in %.1fs, %.1f tweets/s end to end; " +
+                "lookup latency mean %.1fms, p50 <= %.1fms, p99 <= %.1fms; %d errors\n",
+            metrics.getTweetsReturned(), metrics.getIdsRequested(), seconds,
+            metrics.getTweetsReturned() / Math.max(seconds, 0.001), metrics.getMeanLookupMillis(),
+            metrics.getLookupMillisP50(), metrics.getLookupMillisP99(), metrics.getErrors()
+        );
+        System.err.println(stub.summary());
+    }
+
+    private static long batchesFor(final long ids) {
+        return (ids + REFETCH_BATCH_SIZE - 1) / REFETCH_BATCH_SIZE;
+    }
+
+    /**
+     * Opens a stream of the IDs specified on the commandline followed by those in
+     * {@link #infile}, if there is one.
+     *
+     * @return A reader of the IDs to fetch.
+     * @throws IOException if there's a problem opening the file.
+     */
+    private IdReader openIDs() throws IOException {
+        final InputStream fromCommandline = new ByteArrayInputStream(
+            String.join("\n", idStrs).concat("\n").getBytes(StandardCharsets.UTF_8)
+        );
+        return new IdReader(infile == null
+            ? fromCommandline
+            : new SequenceInputStream(fromCommandline, Files.newInputStream(Paths.get(infile)))
+        );
     }
 
     private List<String> loadFieldsToKeep() throws IOException {
+        return loadFieldsToKeep(propertiesToKeepFile);
+    }
+
+    /**
+     * Reads the fields to keep from a keep file: fields separated by commas, spaces or
+     * line breaks, with '#' starting a comment.
+     *
+     * @param propertiesToKeepFile The keep file, or null for {@link #DEFAULT_FIELDS_TO_KEEP}.
+     * @return The fields to keep.
+     * @throws IOException if the keep file can't be read.
+     */
+    static List<String> loadFieldsToKeep(final String propertiesToKeepFile) throws IOException {
         if (propertiesToKeepFile == null) {
             return DEFAULT_FIELDS_TO_KEEP;
         } else {
@@ -215,6 +905,13 @@ class FetchTweets {
         }
     }
 
+    /**
+     * @return True if the store is to be maintained, rather than tweets fetched or sanitised.
+     */
+    private boolean inStoreMode() {
+        return storeImportFile != null || storeRange != null || storeCompact;
+    }
+
     /**
      * Says yes to GUI mode if no IDs are referred to on the commandline.
      *
@@ -230,47 +927,101 @@ class FetchTweets {
      *
      * @param status The current rate limit status of our calls to Twitter
      */
-    private void maybeDoze(final RateLimitStatus status) {
+    private static void maybeDoze(final RateLimitStatus status) {
         if (status == null) { return; }
 
         final int secondsUntilReset = status.getSecondsUntilReset();
         final int callsRemaining = status.getRemaining();
         if (secondsUntilReset < 10 || callsRemaining < 10) {
             final int untilReset = status.getSecondsUntilReset() + 5;
-            System.out.printf("Rate limit reached. Waiting %d seconds starting at %s...\n", untilReset, new Date());
+            System.err.printf("Rate limit reached. Waiting %d seconds starting at %s...\n", untilReset, new Date());
             try {
                 Thread.sleep(untilReset * 1000);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
-            System.out.println("Resuming...");
+            System.err.println("Resuming...");
+        }
+    }
+
+    /**
+     * Creates a {@link Twitter} instance for the given credentials. If the credentials
+     * have no access token, application-only authentication is used, which has its
+     * own rate limits.
+     *
+     * @param credentialsFile The properties file with the Twitter credentials in it.
+     * @return A ready-to-use Twitter instance.
+     * @throws IOException if there's an error loading the credentialsFile or authenticating.
+     */
+    private Twitter makeTwitter(final String credentialsFile) throws IOException {
+        final Configuration twitterConfig = makeTwitterConfig(credentialsFile);
+        final Twitter twitter = new TwitterFactory(twitterConfig).getInstance();
+        if (twitterConfig.isApplicationOnlyAuthEnabled()) {
+            try {
+                twitter.getOAuth2Token();
+            } catch (TwitterException e) {
+                throw new IOException("Failed to obtain app-only token for " + credentialsFile, e);
+            }
         }
+        return twitter;
+    }
+
+    /**
+     * Makes the calling thread doze whenever a call through the given {@link Twitter}
+     * instance reports its rate limit is close to being exceeded.
+     *
+     * @param twitter The Twitter instance to watch.
+     */
+    private static void dozeWhenRateLimited(final Twitter twitter) {
+        twitter.addRateLimitStatusListener(new RateLimitStatusListener() {
+            @Override
+            public void onRateLimitStatus(RateLimitStatusEvent event) {
+                maybeDoze(event.getRateLimitStatus());
+            }
+
+            @Override
+            public void onRateLimitReached(RateLimitStatusEvent event) {
+                maybeDoze(event.getRateLimitStatus());
+            }
+        });
     }
 
     /**
      * Builds the {@link Configuration} object with which to connect to Twitter, including
-     * credentials and proxy information if it's specified.
+     * credentials and proxy information if it's specified. When load testing, it
+     * connects to the {@link #stub} instead, with made up credentials.
      *
+     * @param credentialsFile The properties file with the Twitter credentials in it.
      * @return a Twitter4j {@link Configuration} object
-     * @throws IOException if there's an error loading the application's {@link #credentialsFile}.
+     * @throws IOException if there's an error loading the credentialsFile.
      */
-    private static Configuration makeTwitterConfig(
-        final String credentialsFile,
-        final boolean debug
-    ) throws IOException {
+    private Configuration makeTwitterConfig(final String credentialsFile) throws IOException {
         // TODO find a better name than credentials, given it might contain proxy info
-        final Properties credentials = loadCredentials(credentialsFile);
+        final Properties credentials = stub != null
+            ? StubTwitterServer.credentials(credentialsFile)
+            : loadCredentials(credentialsFile);
 
         final ConfigurationBuilder conf = new ConfigurationBuilder();
         conf.setTweetModeExtended(true);
-        conf.setJSONStoreEnabled(true)
+        // the raw JSON of Twitter4J's objects is only needed if it's the one looking tweets up
+        conf.setJSONStoreEnabled(inGuiMode() || transport == Transport.TWITTER4J)
             .setDebugEnabled(debug)
             .setOAuthConsumerKey(credentials.getProperty("oauth.consumerKey"))
-            .setOAuthConsumerSecret(credentials.getProperty("oauth.consumerSecret"))
-            .setOAuthAccessToken(credentials.getProperty("oauth.accessToken"))
-            .setOAuthAccessTokenSecret(credentials.getProperty("oauth.accessTokenSecret"));
+            .setOAuthConsumerSecret(credentials.getProperty("oauth.consumerSecret"));
+        if (credentials.containsKey("oauth.accessToken")) {
+            conf.setOAuthAccessToken(credentials.getProperty("oauth.accessToken"))
+                .setOAuthAccessTokenSecret(credentials.getProperty("oauth.accessTokenSecret"));
+        } else {
+            // no user context, so authenticate as the app itself (separate rate limits)
+            conf.setApplicationOnlyAuthEnabled(true);
+        }
+        if (apiBaseURL != null) {
+            final String restBaseURL = apiBaseURL.endsWith("/") ? apiBaseURL : apiBaseURL + "/";
+            conf.setRestBaseURL(restBaseURL)
+                .setOAuth2TokenURL(URI.create(restBaseURL).resolve("../oauth2/token").toString());
+        }
 
-        final Properties proxies = loadProxyProperties();
+        final Properties proxies = stub != null ? new Properties() : loadProxyProperties();
         if (proxies.containsKey("http.proxyHost")) {
             conf.setHttpProxyHost(proxies.getProperty("http.proxyHost"))
                 .setHttpProxyPort(Integer.parseInt(proxies.getProperty("http.proxyPort")))
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.util.Arrays;
+
+/**
+ * A reusable batch of tweet IDs, held in a primitive array sized to the most IDs
+ * that can be looked up in one call to Twitter, along with the range of input
+ * positions the batch accounts for.
+ */
+class IdBatch {
+
+    private final long[] ids;
+    private int size;
+    private long startOrdinal;
+    private long endOrdinal;
+
+    /**
+     * Constructor
+     *
+     * @param capacity The most IDs the batch can hold.
+     */
+    IdBatch(final int capacity) {
+        this.ids = new long[capacity];
+    }
+
+    /**
+     * Adds an ID to the batch.
+     *
+     * @param ordinal The ID's position in the input.
+     * @param id The tweet ID.
+     * @return True if the batch is now full.
+     */
+    boolean add(final long ordinal, final long id) {
+        ids[size++] = id;
+        endOrdinal = ordinal + 1;
+        return size == ids.length;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Provides the IDs as an array of exactly the right length, which is the batch's
+     * own array (not a copy) unless the batch is only partly full.
+     *
+     * @return The IDs in the batch.
+     */
+    long[] ids() {
+        return size == ids.length ? ids : Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return The first input position this batch accounts for, including any
+     * skipped IDs between the previous batch and this one.
+     */
+    long startOrdinal() {
+        return startOrdinal;
+    }
+
+    /**
+     * @return The input position after the last ID in this batch.
+     */
+    long endOrdinal() {
+        return endOrdinal;
+    }
+
+    /**
+     * Empties the batch so it can be reused, accounting for input positions from
+     * the one given.
+     *
+     * @param startOrdinal The first input position the batch will account for.
+     */
+    void reset(final long startOrdinal) {
+        this.size = 0;
+        this.startOrdinal = startOrdinal;
+        this.endOrdinal = startOrdinal;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * <p>Streams tweet IDs, one per line, out of an {@link InputStream} as primitive
+ * <code>long</code>s, parsing the digits straight out of a fixed size byte buffer,
+ * so no <code>String</code>s or <code>Long</code>s are created per line and memory
+ * use doesn't depend on how big the input is.</p>
+ *
+ * <p>Blank lines are skipped, surrounding whitespace is ignored and anything after
+ * a <code>#</code> is treated as a comment.</p>
+ */
+class IdReader implements PrimitiveIterator.OfLong, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long lineNumber;
+
+    private boolean lookedAhead;
+    private boolean exhausted;
+    private long nextId;
+
+    /**
+     * Constructor
+     *
+     * @param in The stream of IDs, one per line. Closed when this reader is closed.
+     */
+    IdReader(final InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (! lookedAhead) {
+            try {
+                exhausted = ! readId();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lookedAhead = true;
+        }
+        return ! exhausted;
+    }
+
+    @Override
+    public long nextLong() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        lookedAhead = false;
+        return nextId;
+    }
+
+    /**
+     * @return The line the most recently read ID was on, starting at 1.
+     */
+    long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Parses lines until one with an ID on it is found, leaving the ID in {@link #nextId}.
+     *
+     * @return False if the end of the stream was reached first.
+     * @throws IOException if there's a problem reading the stream.
+     * @throws NumberFormatException if a line holds something other than an ID.
+     */
+    private boolean readId() throws IOException {
+        int b;
+        while ((b = read()) != -1) {
+            lineNumber++;
+            long id = 0;
+            int digits = 0;
+            boolean finishedDigits = false;
+            boolean comment = false;
+            for (; b != -1 && b != '\n'; b = read()) {
+                if (comment || b == '\r') {
+                    continue;
+                }
+                if (b >= '0' && b <= '9' && ! finishedDigits) {
+                    if (++digits > 19 || (id = id * 10 + (b - '0')) < 0) {
+                        throw badLine("ID too large");
+                    }
+                } else if (b == '#') {
+                    comment = true;
+                } else if (b == ' ' || b == '\t') {
+                    finishedDigits = digits > 0;
+                } else {
+                    throw badLine("unexpected character '" + (char) b + "'");
+                }
+            }
+            if (digits > 0) {
+                nextId = id;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private NumberFormatException badLine(final String problem) {
+        return new NumberFormatException("Bad tweet ID on line " + lineNumber + ": " + problem);
+    }
+}
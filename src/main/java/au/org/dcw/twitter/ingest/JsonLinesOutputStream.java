@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>A stream that takes JSONL, however it's split across writes, and hands each
+ * complete line to {@link #line}, so a converter of tweets into another format can
+ * stand in for a plain file wherever JSONL is written. Lines are handed over in place
+ * when they're within a single write, and only copied when they span writes. Blank
+ * lines are dropped, and a '\r' before a '\n' is stripped.</p>
+ *
+ * <p>Subclasses call {@link #endLastLine()} when they're closed, to handle a last line
+ * that has no '\n'.</p>
+ */
+abstract class JsonLinesOutputStream extends OutputStream {
+
+    /** The start of a line split across writes. */
+    private byte[] partial = new byte[16 * 1024];
+    private int partialLength;
+
+    /**
+     * Handles a complete line, which isn't blank.
+     *
+     * @param line The buffer holding the line, which is only valid during the call.
+     * @param offset Where the line starts in the buffer.
+     * @param length The length of the line, without its '\n'.
+     * @throws IOException if the line can't be handled.
+     */
+    protected abstract void line(byte[] line, int offset, int length) throws IOException;
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Takes the next part of the JSONL, handling each line completed by it.
+     */
+    @Override
+    public void write(final byte[] b, final int offset, final int length) throws IOException {
+        final int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (b[i] != '\n') {
+                continue;
+            }
+            if (partialLength == 0) {
+                completeLine(b, lineStart, i - lineStart);
+            } else {
+                appendPartial(b, lineStart, i - lineStart);
+                final int lineLength = partialLength;
+                partialLength = 0;
+                completeLine(partial, 0, lineLength);
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < end) {
+            appendPartial(b, lineStart, end - lineStart);
+        }
+    }
+
+    /**
+     * Handles what's left of the last line, if it has no '\n'.
+     *
+     * @throws IOException if the line can't be handled.
+     */
+    protected final void endLastLine() throws IOException {
+        if (partialLength > 0) {
+            final int length = partialLength;
+            partialLength = 0;
+            completeLine(partial, 0, length);
+        }
+    }
+
+    private void appendPartial(final byte[] b, final int offset, final int length) {
+        if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(b, offset, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private void completeLine(final byte[] b, final int offset, int length) throws IOException {
+        if (length > 0 && b[offset + length - 1] == '\r') {
+            length--;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (b[i] != ' ' && b[i] != '\t') {
+                line(b, offset, length);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+/**
+ * <p>A set of primitive <code>long</code>s, using open addressing with linear probing,
+ * so each member costs a little over 8 bytes rather than the ~50 of a
+ * <code>HashSet&lt;Long&gt;</code> entry. 500 million tweet IDs fit in about 5GB.</p>
+ *
+ * <p>The table is split into {@link #SEGMENTS} segments, chosen by the top bits of
+ * each key's hash, so no single array has to hold more than 2<sup>31</sup> slots and
+ * growing the set only ever copies one segment at a time (rather than needing room
+ * for the old and new versions of the whole table at once). Segment capacities need
+ * not be powers of two, so a set sized up front with an expected number of members
+ * wastes little space.</p>
+ *
+ * <p>Zero marks an empty slot, so whether zero itself is a member is tracked
+ * separately. Not thread safe.</p>
+ */
+class LongHashSet {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final double MAX_LOAD = 0.8;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    private final long[][] tables = new long[SEGMENTS][];
+    private final int[] sizes = new int[SEGMENTS];
+    private boolean containsZero;
+    private long size;
+
+    /**
+     * Creates a small set which grows as needed.
+     */
+    LongHashSet() {
+        this(0);
+    }
+
+    /**
+     * Creates a set with room for the given number of members before it has to grow.
+     *
+     * @param expectedSize How many members the set is expected to hold.
+     */
+    LongHashSet(final long expectedSize) {
+        final long perSegment = (long) Math.ceil(expectedSize / (double) SEGMENTS / MAX_LOAD);
+        final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_SEGMENT_CAPACITY, perSegment));
+        for (int i = 0; i < SEGMENTS; i++) {
+            tables[i] = new long[capacity];
+        }
+    }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @param value The value to add.
+     * @return True if the value was not already in the set.
+     */
+    boolean add(final long value) {
+        if (value == 0) {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        final long hash = mix(value);
+        final int segment = (int) (hash >>> (64 - SEGMENT_BITS));
+        long[] table = tables[segment];
+        if (sizes[segment] >= table.length * MAX_LOAD) {
+            table = grow(segment);
+        }
+        int i = slot(hash, table.length);
+        long existing;
+        while ((existing = table[i]) != 0) {
+            if (existing == value) return false;
+            if (++i == table.length) i = 0;
+        }
+        table[i] = value;
+        sizes[segment]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param value The value to look for.
+     * @return True if the value is in the set.
+     */
+    boolean contains(final long value) {
+        if (value == 0) return containsZero;
+        final long hash = mix(value);
+        final long[] table = tables[(int) (hash >>> (64 - SEGMENT_BITS))];
+        int i = slot(hash, table.length);
+        long existing;
+        while ((existing = table[i]) != 0) {
+            if (existing == value) return true;
+            if (++i == table.length) i = 0;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of members.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return The approximate number of bytes the set's tables occupy.
+     */
+    long memoryUsed() {
+        long slots = 0;
+        for (long[] table : tables) {
+            slots += table.length;
+        }
+        return slots * Long.BYTES;
+    }
+
+    /**
+     * Makes a segment's table half as big again and rehashes its members into it.
+     *
+     * @param segment The segment to grow.
+     * @return The new table.
+     */
+    private long[] grow(final int segment) {
+        final long[] old = tables[segment];
+        // in longs, as half as much again overflows an int for the largest tables
+        final long[] table = new long[(int) Math.min(Integer.MAX_VALUE - 8, old.length + (long) (old.length >> 1))];
+        if (table.length == old.length) {
+            throw new IllegalStateException("LongHashSet segment is full");
+        }
+        for (long value : old) {
+            if (value != 0) {
+                int i = slot(mix(value), table.length);
+                while (table[i] != 0) {
+                    if (++i == table.length) i = 0;
+                }
+                table[i] = value;
+            }
+        }
+        tables[segment] = table;
+        return table;
+    }
+
+    /**
+     * Maps the low 32 bits of a hash onto <code>[0, capacity)</code> without division
+     * (Lemire's multiply-shift reduction). The segment is chosen by the top bits, so
+     * these are independent of it.
+     */
+    private static int slot(final long hash, final int capacity) {
+        return (int) (((hash & 0xFFFFFFFFL) * capacity) >>> 32);
+    }
+
+    /**
+     * Spreads the bits of a value across its hash (the MurmurHash3 finaliser), which
+     * matters because tweet IDs' low bits are far from uniformly distributed.
+     */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
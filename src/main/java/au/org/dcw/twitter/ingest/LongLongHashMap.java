@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.util.Arrays;
+
+/**
+ * <p>A map from primitive <code>long</code> keys to primitive <code>long</code> values,
+ * using open addressing with linear probing in parallel key and value arrays, so no
+ * boxing or entry objects are needed. Removal shifts later entries back rather than
+ * leaving tombstones, so lookups don't slow down as entries come and go.</p>
+ *
+ * <p>Zero marks an empty slot, so zero can't be used as a key. Not thread safe.</p>
+ */
+class LongLongHashMap {
+
+    private static final double MAX_LOAD = 0.75;
+
+    /** Returned by {@link #get(long)} when a key is absent. */
+    static final long ABSENT = Long.MIN_VALUE;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param expectedSize How many entries the map is expected to hold before it has to grow.
+     */
+    LongLongHashMap(final int expectedSize) {
+        allocate(Integer.highestOneBit((int) Math.max(16, expectedSize / MAX_LOAD) - 1) << 1);
+    }
+
+    /**
+     * @param key The key (not zero).
+     * @return The value for the key, or {@link #ABSENT}.
+     */
+    long get(final long key) {
+        int i = slot(key);
+        long existing;
+        while ((existing = keys[i]) != 0) {
+            if (existing == key) return values[i];
+            i = (i + 1) & mask;
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Maps a key to a value, replacing any previous value.
+     *
+     * @param key The key (not zero).
+     * @param value The value.
+     */
+    void put(final long key, final long value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Zero can't be used as a key");
+        }
+        if (size >= keys.length * MAX_LOAD) {
+            grow();
+        }
+        int i = slot(key);
+        long existing;
+        while ((existing = keys[i]) != 0) {
+            if (existing == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /**
+     * Removes a key and its value, if present.
+     *
+     * @param key The key.
+     * @return True if the key was present.
+     */
+    boolean remove(final long key) {
+        if (key == 0) return false;
+        int i = slot(key);
+        long existing;
+        while ((existing = keys[i]) != key) {
+            if (existing == 0) return false;
+            i = (i + 1) & mask;
+        }
+        // shift back any later entries that would no longer be reachable past the gap
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            final int ideal = slot(keys[j]);
+            // move j into the gap unless its ideal slot lies cyclically in (gap, j]
+            if (((j - ideal) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the entries, keeping the capacity.
+     */
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * Passes each entry to the given consumer. The map must not be modified meanwhile.
+     *
+     * @param consumer Receives each key and value.
+     */
+    void forEach(final EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Receives the entries of a {@link LongLongHashMap}.
+     */
+    interface EntryConsumer {
+        void accept(long key, long value);
+    }
+
+    private int slot(final long key) {
+        return (int) LongHashSet.mix(key) & mask;
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = slot(oldKeys[j]);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * @return The keys, in no particular order.
+     */
+    long[] keys() {
+        final long[] result = new long[size];
+        int n = 0;
+        for (long key : keys) {
+            if (key != 0) result[n++] = key;
+        }
+        return result;
+    }
+}
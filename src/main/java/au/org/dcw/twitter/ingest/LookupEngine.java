@@ -0,0 +1,752 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.google.common.collect.Lists;
+import twitter4j.RateLimitStatus;
+import twitter4j.TwitterException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>Looks up batches of tweets concurrently, with one worker thread per set of
+ * Twitter credentials. Each worker has its own {@link LookupTransport}, and so its
+ * own rate limit budget, and all workers draw from a single shared queue of batches,
+ * so total throughput scales roughly with the number of credential sets. Each
+ * worker reads its budget from Twitter when it starts, and paces its calls with a
+ * {@link RateLimiter} to spread them evenly across each rate limit window.</p>
+ *
+ * <p>A worker may have several lookups in flight at once, if its transport doesn't
+ * block, so its calls aren't held up by each other's latency. The results of
+ * lookups, and any retries they need, are handled on a shared pool of follow-up
+ * threads, so the worker can get on with starting the next lookup.</p>
+ *
+ * <p>IDs are added one at a time and packed straight into reusable {@link IdBatch}es
+ * drawn from a small fixed pool, which are returned to the pool once looked up. The
+ * pool and queue are bounded, so whoever is adding IDs is held back when the workers
+ * fall behind, and memory use doesn't grow with the number of IDs.</p>
+ *
+ * <p>If a {@link CheckpointJournal} is provided, each batch's range of input positions
+ * is recorded in it once the batch's tweets have been written out and synced to disk. If a
+ * {@link TweetCache} or {@link TweetStore} is provided, each tweet retrieved is added
+ * to it, and {@link #fetch} checks it for a tweet before looking the tweet up. If
+ * {@link MissingTweets} are provided, the IDs of tweets that were asked for but not
+ * returned are added to them, and {@link #fetch} skips those already known to be
+ * missing. If a {@link ReferenceFrontier} is provided, the tweets
+ * each tweet retrieved replies to or quotes are added to it, and
+ * {@link #awaitLevel()} allows them to be fetched a level at a time. If
+ * {@link FetchMetrics} are provided, each lookup, rate limit wait and error is
+ * counted in them.</p>
+ *
+ * <p>Transient failures (network problems and server errors) are retried with an
+ * exponential, jittered, backoff. A batch that Twitter refuses because of the IDs
+ * in it (a 400 or 403 response) is split in half, and each half looked up
+ * separately, to isolate the IDs causing the problem. A batch that Twitter says
+ * holds no tweets at all (a 404 response, or error 144) is treated as done, with
+ * every ID in it missing. If {@link DeadLetters} are provided, IDs that still can't
+ * be looked up are sent there to be retried in a later run, and the batch is treated
+ * as done; otherwise the batch is treated as failed, and isn't recorded in the
+ * journal. If Twitter refuses a worker's credentials (a 401 response), the run
+ * can't succeed, so no more lookups are started, and the failure is reported to
+ * whoever is adding IDs.</p>
+ *
+ * <p>How many IDs have been done with, how many tweets were returned for them, and
+ * how many IDs were given up on, are counted as the lookups complete, e.g. to show
+ * progress.</p>
+ */
+class LookupEngine {
+
+    /** Assumed if the budget can't be read (it's the lower, app-only, limit). */
+    private static final int DEFAULT_LOOKUP_LIMIT = 300;
+
+    /** How many times to retry a lookup that failed for what might be a passing reason. */
+    private static final int MAX_RETRIES = 5;
+
+    /** Twitter's error code for a lookup of tweets that don't exist. */
+    private static final int NO_STATUS_FOUND = 144;
+
+    /** The longest to back off for between retries. */
+    private static final long MAX_RETRY_BACKOFF_MS = 60 * 1000;
+
+    /** Tells a worker there are no more batches coming. */
+    private static final IdBatch NO_MORE_BATCHES = new IdBatch(0);
+
+    /** Where {@link #fetch} found a tweet, or what it did with its ID. */
+    enum Fetched { FROM_STORE, FROM_CACHE, KNOWN_MISSING, QUEUED }
+
+    private final BlockingQueue<IdBatch> batches;
+    private final BlockingQueue<IdBatch> emptyBatches;
+    private final int poolSize;
+    private final List<Thread> workers = Lists.newArrayList();
+    private final int maxInFlight;
+    private final ExecutorService followUps;
+    private final ScheduledExecutorService retryTimer;
+    private final AsyncTweetWriter output;
+    private CheckpointJournal journal;
+    private TweetCache cache;
+    private TweetStore store;
+    private FetchMetrics metrics;
+    private MissingTweets missing;
+    private DeadLetters deadLetters;
+    private ReferenceFrontier frontier;
+    private IdBatch currentBatch;
+    private long nextStartOrdinal;
+
+    /** Why the run can't go on, e.g. credentials Twitter refuses, once that's happened. */
+    private volatile String fatalError;
+    private boolean finished;
+
+    /* IDs looked up (whether or not their tweets were returned) or given up on. */
+    private final AtomicLong idsDone = new AtomicLong();
+    private final AtomicLong tweetsReturned = new AtomicLong();
+    private final AtomicLong idsGivenUp = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param transports The transports to use, keyed by a name for each (e.g. credentials file).
+     * @param batchSize The most IDs to look up in one call.
+     * @param maxInFlight The most lookups each worker may have in flight at once.
+     * @param output Where the raw JSON of each retrieved tweet is written.
+     */
+    LookupEngine(
+        final Map<String, LookupTransport> transports,
+        final int batchSize,
+        final int maxInFlight,
+        final AsyncTweetWriter output
+    ) {
+        this.output = output;
+        this.maxInFlight = maxInFlight;
+        this.batches = new ArrayBlockingQueue<>(transports.size() * 2);
+
+        // enough batches for a full queue, those in flight for each worker and one being filled
+        this.poolSize = transports.size() * (2 + maxInFlight) + 1;
+        this.emptyBatches = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            emptyBatches.add(new IdBatch(batchSize));
+        }
+
+        final AtomicInteger followUpThreads = new AtomicInteger();
+        this.followUps = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "lookup-follow-up-" + followUpThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "lookup-retry-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        transports.forEach((name, transport) -> {
+            final Thread worker = new Thread(() -> work(name, transport), "lookup-" + name);
+            worker.setDaemon(true); // finish() and abandon() wait for them
+            workers.add(worker);
+        });
+    }
+
+    /**
+     * @param journal Where to record completed batches (may be null).
+     */
+    void setJournal(final CheckpointJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @param cache Where to keep a copy of each tweet retrieved (may be null).
+     */
+    void setCache(final TweetCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param store Where to store each tweet retrieved (may be null).
+     */
+    void setStore(final TweetStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @param metrics Where to count what the workers do (may be null).
+     */
+    void setMetrics(final FetchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param missing Where to record tweets that weren't returned (may be null).
+     */
+    void setMissing(final MissingTweets missing) {
+        this.missing = missing;
+    }
+
+    /**
+     * @param deadLetters Where to send IDs that can't be looked up (may be null).
+     */
+    void setDeadLetters(final DeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    /**
+     * @param frontier Where to add the tweets that those retrieved refer to (may be null).
+     */
+    void setFrontier(final ReferenceFrontier frontier) {
+        this.frontier = frontier;
+    }
+
+    /**
+     * Starts the workers.
+     */
+    void start() {
+        workers.forEach(Thread::start);
+    }
+
+    /**
+     * Adds an ID to the batch being filled, queueing the batch to be looked up once
+     * it's full. Waits for an empty batch or space in the queue if necessary. Not
+     * thread safe: IDs should be added from a single thread, in input order.
+     *
+     * @param ordinal The ID's position in the input (positions of skipped IDs are
+     *                accounted for by the next batch).
+     * @param id The ID of a tweet to fetch.
+     * @throws IOException if lookups have stopped, as Twitter refused some credentials.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void add(final long ordinal, final long id) throws IOException, InterruptedException {
+        checkNotFailed();
+        if (currentBatch == null) {
+            currentBatch = emptyBatches.take();
+            currentBatch.reset(nextStartOrdinal);
+        }
+        if (currentBatch.add(ordinal, id)) {
+            queueCurrentBatch();
+        }
+    }
+
+    /**
+     * Writes out a tweet from the store or cache, if it's in either, otherwise adds it to
+     * those to be looked up (see {@link #add}), unless it's known to be missing. The
+     * tweets a stored or cached tweet refers to are added to the frontier, if any. Not
+     * thread safe: IDs should be added from a single thread, in input order.
+     *
+     * @param ordinal The ID's position in the input.
+     * @param id The ID of the tweet.
+     * @return Where the tweet was found, or what was done with its ID.
+     * @throws IOException if the output has failed, or lookups have stopped.
+     * @throws InterruptedException if interrupted while waiting to add the ID.
+     */
+    Fetched fetch(final long ordinal, final long id) throws IOException, InterruptedException {
+        final String storedJSON = store != null ? store.get(id) : null;
+        final String localJSON = storedJSON != null ? storedJSON : cache != null ? cache.get(id) : null;
+        if (localJSON != null) {
+            output.write(localJSON);
+            if (frontier != null) {
+                frontier.noteReferences(localJSON);
+            }
+            return storedJSON != null ? Fetched.FROM_STORE : Fetched.FROM_CACHE;
+        }
+        if (missing != null && missing.isMissing(id)) {
+            missing.skipped(id);
+            return Fetched.KNOWN_MISSING;
+        }
+        add(ordinal, id);
+        return Fetched.QUEUED;
+    }
+
+    private void queueCurrentBatch() throws InterruptedException {
+        nextStartOrdinal = currentBatch.endOrdinal();
+        batches.put(currentBatch);
+        currentBatch = null;
+    }
+
+    /**
+     * Queues any partly filled batch and waits for every batch queued so far to be
+     * looked up, leaving the workers waiting for more, e.g. so the tweets those
+     * retrieved refer to can be added once they're all known. Not thread safe: call
+     * from the thread adding IDs.
+     *
+     * @throws IOException if lookups have stopped, as Twitter refused some credentials.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void awaitLevel() throws IOException, InterruptedException {
+        if (currentBatch != null && currentBatch.isEmpty()) {
+            emptyBatches.add(currentBatch);
+            currentBatch = null;
+        } else if (currentBatch != null) {
+            queueCurrentBatch();
+        }
+        // each batch is returned to the pool once it's been looked up and its tweets handled
+        final List<IdBatch> pool = Lists.newArrayListWithCapacity(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            pool.add(emptyBatches.take());
+        }
+        emptyBatches.addAll(pool);
+        checkNotFailed();
+    }
+
+    /**
+     * Queues any partly filled batch, tells the workers no more batches are coming
+     * and waits for them to finish what's left in the queue.
+     *
+     * @throws IOException if lookups stopped, as Twitter refused some credentials.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void finish() throws IOException, InterruptedException {
+        if (currentBatch != null && ! currentBatch.isEmpty()) {
+            queueCurrentBatch();
+        }
+        stopWorkers();
+        checkNotFailed();
+    }
+
+    /**
+     * Stops the workers when no more IDs can be added, e.g. as adding them failed,
+     * dropping the batches still queued (which a later run can pick up from the
+     * journal) and waiting for those already being looked up, even if the calling
+     * thread has been interrupted. Does nothing once finished. Not thread safe: call
+     * from the thread adding IDs.
+     */
+    void abandon() {
+        if (finished) {
+            return;
+        }
+        batches.clear();
+        currentBatch = null;
+        // wait for the workers even if the run was interrupted, and keep the interrupt for the caller
+        boolean interrupted = Thread.interrupted();
+        try {
+            stopWorkers();
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void stopWorkers() throws InterruptedException {
+        finished = true;
+        for (int i = 0; i < workers.size(); i++) {
+            batches.put(NO_MORE_BATCHES);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        followUps.shutdown();
+        retryTimer.shutdown();
+    }
+
+    /**
+     * @return The number of IDs looked up, whether or not their tweets were returned,
+     *         or given up on, so far.
+     */
+    long idsDone() {
+        return idsDone.get();
+    }
+
+    /**
+     * @return The number of tweets returned by lookups so far.
+     */
+    long tweetsReturned() {
+        return tweetsReturned.get();
+    }
+
+    /**
+     * @return The number of IDs given up on so far, as they couldn't be looked up.
+     */
+    long idsGivenUp() {
+        return idsGivenUp.get();
+    }
+
+    private void checkNotFailed() throws IOException {
+        if (fatalError != null) {
+            throw new IOException(fatalError);
+        }
+    }
+
+    /**
+     * The work loop for a single worker: take a batch, start looking it up, repeat
+     * until told to stop, and then wait for the lookups still in flight.
+     *
+     * @param name The name of the worker's credentials, for reporting.
+     * @param transport The worker's own transport.
+     */
+    private void work(final String name, final LookupTransport transport) {
+        final RateLimiter rateLimiter = makeRateLimiter(name, transport);
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            IdBatch batch;
+            while ((batch = batches.take()) != NO_MORE_BATCHES) {
+                inFlight.acquire();
+                final IdBatch lookedUp = batch;
+                lookup(name, transport, rateLimiter, batch.ids(), 0).whenComplete((done, error) -> {
+                    if (error != null) {
+                        System.err.println("[" + name + "] Lookup failed unexpectedly: " + error);
+                    } else if (done && journal != null) {
+                        recordDone(lookedUp);
+                    }
+                    emptyBatches.add(lookedUp); // the pool has room for every batch
+                    inFlight.release();
+                });
+            }
+            inFlight.acquire(maxInFlight);
+        } catch (InterruptedException e) {
+            System.err.println("Worker " + name + " interrupted, stopping.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates a rate limiter for a worker, starting from the budget Twitter reports
+     * for its credentials.
+     *
+     * @param name The name of the worker's credentials, for reporting.
+     * @param transport The worker's own transport.
+     * @return A rate limiter for the worker's lookups.
+     */
+    private static RateLimiter makeRateLimiter(final String name, final LookupTransport transport) {
+        try {
+            final RateLimitStatus status = transport.lookupBudget();
+            if (status != null) {
+                System.err.printf(
+                    "[%s] Lookup budget: %d of %d calls remaining, resetting in %d seconds\n",
+                    name, status.getRemaining(), status.getLimit(), status.getSecondsUntilReset()
+                );
+                return new RateLimiter(
+                    name, status.getLimit(), status.getRemaining(), status.getResetTimeInSeconds() * 1000L
+                );
+            }
+        } catch (TwitterException e) {
+            System.err.println("[" + name + "] Failed to read rate limit budget: " + e.getMessage());
+        }
+        return new RateLimiter(
+            name, DEFAULT_LOOKUP_LIMIT, DEFAULT_LOOKUP_LIMIT, System.currentTimeMillis() + RateLimiter.WINDOW_MS
+        );
+    }
+
+    private void recordDone(final IdBatch batch) {
+        final long start = batch.startOrdinal();
+        final long end = batch.endOrdinal();
+        try {
+            output.checkpoint(() -> {
+                try {
+                    journal.record(start, end);
+                } catch (IOException e) {
+                    System.err.println("Failed to record progress in journal: " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to record progress in journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts looking up a single batch, once the rate limiter allows, and sends the
+     * raw JSON of each tweet to {@link #output} when it's returned. Tries again if the
+     * rate limit is exceeded or the failure looks transient, splits the batch if
+     * Twitter persistently refuses it, and gives up on whatever can't be looked up
+     * after that.
+     *
+     * @param name The name of the worker's credentials, for reporting.
+     * @param transport The worker's own transport.
+     * @param rateLimiter The worker's rate limiter.
+     * @param batchOfIDs The IDs to look up.
+     * @param failures The number of times the lookup has already failed transiently.
+     * @return True, eventually, if the batch was looked up and its tweets written out,
+     *         or its failed IDs sent to the {@link #deadLetters}.
+     */
+    private CompletableFuture<Boolean> lookup(
+        final String name,
+        final LookupTransport transport,
+        final RateLimiter rateLimiter,
+        final long[] batchOfIDs,
+        final int failures
+    ) {
+        if (fatalError != null) {
+            return CompletableFuture.completedFuture(false); // don't spend calls on a run that can't succeed
+        }
+        try {
+            final long waited = rateLimiter.acquire();
+            if (metrics != null) {
+                metrics.rateLimitWaited(waited);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(false);
+        }
+
+        // hit Twitter's API
+        final long startedAt = System.nanoTime();
+        return transport.lookup(batchOfIDs)
+            .handleAsync((result, error) -> error == null
+                ? CompletableFuture.completedFuture(written(name, rateLimiter, batchOfIDs, result, startedAt))
+                : followUp(name, transport, rateLimiter, batchOfIDs, failures, unwrap(error)),
+                followUps)
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Writes out the tweets returned by a lookup.
+     *
+     * @return True if they were written out.
+     */
+    private boolean written(
+        final String name,
+        final RateLimiter rateLimiter,
+        final long[] batchOfIDs,
+        final LookupResult result,
+        final long startedAt
+    ) {
+        final long returnedAt = System.nanoTime();
+
+        // Respect Twitter's authoritay on rate limits
+        final RateLimitStatus status = result.rateLimitStatus();
+        if (status != null) {
+            rateLimiter.update(status.getLimit(), status.getRemaining(), status.getResetTimeInSeconds() * 1000L);
+        }
+
+        try {
+            result.writeTo(output);
+            if (cache != null) {
+                for (int i = 0; i < result.size(); i++) {
+                    cache.put(result.id(i), result.json(i));
+                }
+            }
+            if (store != null) {
+                result.storeIn(store);
+            }
+            if (frontier != null) {
+                result.noteReferencesIn(frontier);
+            }
+            if (missing != null && result.size() < batchOfIDs.length) {
+                recordMissing(batchOfIDs, result);
+            }
+        } catch (IOException e) {
+            if (metrics != null) {
+                metrics.error("output");
+            }
+            System.err.println("[" + name + "] Failed to write tweets: " + e.getMessage());
+            return false;
+        }
+        idsDone.addAndGet(batchOfIDs.length);
+        tweetsReturned.addAndGet(result.size());
+        if (metrics != null) {
+            metrics.lookupSucceeded(
+                batchOfIDs.length, result.size(), returnedAt - startedAt, System.nanoTime() - returnedAt
+            );
+        }
+        return true;
+    }
+
+    /**
+     * Decides what to do about a failed lookup: wait for the rate limit and try again,
+     * back off and try again, split the batch, or give up.
+     *
+     * @return True, eventually, if the batch was done with (see {@link #lookup}).
+     */
+    private CompletableFuture<Boolean> followUp(
+        final String name,
+        final LookupTransport transport,
+        final RateLimiter rateLimiter,
+        final long[] batchOfIDs,
+        final int failures,
+        final Throwable error
+    ) {
+        if (! (error instanceof TwitterException)) {
+            if (metrics != null) {
+                metrics.error("other");
+            }
+            return CompletableFuture.completedFuture(giveUp(name, batchOfIDs, String.valueOf(error)));
+        }
+        final TwitterException te = (TwitterException) error;
+        if (metrics != null) {
+            metrics.error(errorType(te));
+        }
+        if (te.exceededRateLimitation()) {
+            final RateLimitStatus status = te.getRateLimitStatus();
+            rateLimiter.rateLimitExceeded(status != null ? status.getResetTimeInSeconds() * 1000L : 0);
+            return lookup(name, transport, rateLimiter, batchOfIDs, failures); // once the limit resets
+        }
+        if (te.getStatusCode() == 401) {
+            fatalError = "[" + name + "] Twitter refused the credentials (" + describe(te) + "), stopping";
+            System.err.println(fatalError);
+            return CompletableFuture.completedFuture(false);
+        }
+        if (te.getStatusCode() == 404 || te.getErrorCode() == NO_STATUS_FOUND) {
+            return CompletableFuture.completedFuture(allMissing(name, batchOfIDs));
+        }
+        if (isTransient(te) && failures < MAX_RETRIES) {
+            final long backoff = RateLimiter.backoff(failures, MAX_RETRY_BACKOFF_MS);
+            System.err.printf("[%s] Lookup failed (%s), retrying in %dms...\n", name, describe(te), backoff);
+            return later(backoff, () -> lookup(name, transport, rateLimiter, batchOfIDs, failures + 1));
+        }
+        if (isAboutTheIDs(te) && batchOfIDs.length > 1) {
+            // something in the batch may be upsetting Twitter, so narrow it down
+            System.err.printf(
+                "[%s] Lookup of %d IDs failed (%s), splitting the batch...\n",
+                name, batchOfIDs.length, describe(te)
+            );
+            final int half = batchOfIDs.length / 2;
+            final CompletableFuture<Boolean> firstHalfDone =
+                lookup(name, transport, rateLimiter, Arrays.copyOfRange(batchOfIDs, 0, half), 0);
+            final CompletableFuture<Boolean> secondHalfDone =
+                lookup(name, transport, rateLimiter, Arrays.copyOfRange(batchOfIDs, half, batchOfIDs.length), 0);
+            return firstHalfDone.thenCombine(secondHalfDone, (first, second) -> first && second);
+        }
+        return CompletableFuture.completedFuture(giveUp(name, batchOfIDs, describe(te)));
+    }
+
+    /**
+     * Runs a follow-up after a delay, without holding up a thread in the meantime.
+     *
+     * @param delayMillis How long to wait, in milliseconds.
+     * @param next What to do then.
+     * @return The eventual result of the follow-up.
+     */
+    private CompletableFuture<Boolean> later(final long delayMillis, final Supplier<CompletableFuture<Boolean>> next) {
+        final CompletableFuture<Void> delay = new CompletableFuture<>();
+        retryTimer.schedule(() -> delay.complete(null), delayMillis, TimeUnit.MILLISECONDS);
+        return delay.thenComposeAsync(ignored -> next.get(), followUps);
+    }
+
+    /**
+     * @return The underlying cause of a failed lookup.
+     */
+    private static Throwable unwrap(final Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * Sends IDs that couldn't be looked up to the {@link #deadLetters}, if there are any.
+     *
+     * @param name The name of the worker's credentials, for reporting.
+     * @param ids The IDs.
+     * @param reason Why they couldn't be looked up.
+     * @return True if the IDs were sent to the dead letters.
+     */
+    private boolean giveUp(final String name, final long[] ids, final String reason) {
+        idsDone.addAndGet(ids.length);
+        idsGivenUp.addAndGet(ids.length);
+        if (deadLetters == null) {
+            System.err.printf("[%s] Giving up on %d IDs (%s)\n", name, ids.length, reason);
+            return false;
+        }
+        try {
+            deadLetters.add(ids, reason);
+            System.err.printf("[%s] Giving up on %d IDs (%s), saved them to retry later\n", name, ids.length, reason);
+            return true;
+        } catch (IOException e) {
+            System.err.printf("[%s] Giving up on %d IDs (%s), and failed to save them: %s\n",
+                name, ids.length, reason, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Records every ID in a batch as missing, when Twitter says it has none of them.
+     *
+     * @return True if they were recorded (or there's nowhere to record them).
+     */
+    private boolean allMissing(final String name, final long[] batchOfIDs) {
+        idsDone.addAndGet(batchOfIDs.length);
+        if (missing == null) {
+            return true;
+        }
+        try {
+            for (long id : batchOfIDs) {
+                missing.add(id);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Failed to record missing tweets: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return True if Twitter refused the lookup because of (some of) the IDs asked for,
+     *         so looking up fewer of them at a time might work.
+     */
+    private static boolean isAboutTheIDs(final TwitterException te) {
+        return te.getStatusCode() == 400 || te.getStatusCode() == 403;
+    }
+
+    /**
+     * @return True if the failure might not happen if the lookup is tried again.
+     */
+    private static boolean isTransient(final TwitterException te) {
+        return te.isCausedByNetworkIssue() || te.getStatusCode() >= 500 || te.getStatusCode() <= 0;
+    }
+
+    /**
+     * @return A short description of the failure.
+     */
+    private static String describe(final TwitterException te) {
+        return te.getErrorMessage() != null ? errorType(te) + " " + te.getErrorMessage() : errorType(te);
+    }
+
+    /**
+     * Records the IDs that were asked for but not returned, e.g. deleted tweets.
+     *
+     * @param batchOfIDs The IDs asked for.
+     * @param result The tweets returned.
+     * @throws IOException if there's a problem recording them.
+     */
+    private void recordMissing(final long[] batchOfIDs, final LookupResult result) throws IOException {
+        final long[] returned = new long[result.size()];
+        for (int i = 0; i < returned.length; i++) {
+            returned[i] = result.id(i);
+        }
+        Arrays.sort(returned);
+        for (long id : batchOfIDs) {
+            if (Arrays.binarySearch(returned, id) < 0) {
+                missing.add(id);
+            }
+        }
+    }
+
+    /**
+     * @return The kind of error, for {@link FetchMetrics}.
+     */
+    private static String errorType(final TwitterException te) {
+        if (te.exceededRateLimitation()) {
+            return "rate_limited";
+        } else if (te.isCausedByNetworkIssue()) {
+            return "network";
+        } else if (te.getStatusCode() > 0) {
+            return "http_" + te.getStatusCode();
+        } else {
+            return "other";
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import twitter4j.RateLimitStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * <p>The tweets returned by a lookup, as Twitter's raw JSON, with their IDs, and the
+ * rate limit status Twitter reported with them.</p>
+ *
+ * <p>The tweets are held as lines of UTF-8 in a single buffer, which is usually
+ * the response body itself, split in place by {@link TweetArraySplitter}, so they
+ * can be handed to the output without being decoded or copied.</p>
+ */
+final class LookupResult {
+
+    private final byte[] buffer;
+    private final int[] starts;
+    private final int[] ends;
+    private final long[] ids;
+    private final int size;
+    private final RateLimitStatus rateLimitStatus;
+
+    /**
+     * Constructor
+     *
+     * @param buffer The buffer holding the tweets.
+     * @param starts Where each tweet starts in the buffer.
+     * @param ends Where each tweet's terminating '\n' is in the buffer.
+     * @param ids The ID of each tweet.
+     * @param size The number of tweets.
+     * @param rateLimitStatus The rate limit status reported with them (may be null).
+     */
+    LookupResult(
+        final byte[] buffer,
+        final int[] starts,
+        final int[] ends,
+        final long[] ids,
+        final int size,
+        final RateLimitStatus rateLimitStatus
+    ) {
+        this.buffer = buffer;
+        this.starts = starts;
+        this.ends = ends;
+        this.ids = ids;
+        this.size = size;
+        this.rateLimitStatus = rateLimitStatus;
+    }
+
+    /**
+     * Gathers tweets that have already been separated into their own strings.
+     *
+     * @param ids The IDs of the tweets returned, in the same order as the tweets.
+     * @param tweets The raw JSON of each tweet returned.
+     * @param rateLimitStatus The rate limit status reported with them (may be null).
+     * @return The result.
+     */
+    static LookupResult of(final long[] ids, final List<String> tweets, final RateLimitStatus rateLimitStatus) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(tweets.size() * 4096);
+        final int[] starts = new int[tweets.size()];
+        final int[] ends = new int[tweets.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = buffer.size();
+            final byte[] tweet = tweets.get(i).getBytes(StandardCharsets.UTF_8);
+            buffer.write(tweet, 0, tweet.length);
+            ends[i] = buffer.size();
+            buffer.write('\n');
+        }
+        return new LookupResult(buffer.toByteArray(), starts, ends, ids, ids.length, rateLimitStatus);
+    }
+
+    /**
+     * @return The number of tweets returned.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param i The index of a tweet returned.
+     * @return The tweet's ID.
+     */
+    long id(final int i) {
+        return ids[i];
+    }
+
+    /**
+     * Decodes a tweet's raw JSON, for those that need it as a string.
+     *
+     * @param i The index of a tweet returned.
+     * @return The tweet's raw JSON.
+     */
+    String json(final int i) {
+        return new String(buffer, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Queues all the tweets to be written, one per line, without copying them.
+     *
+     * @param output Where to write them.
+     * @throws IOException if the output has failed.
+     */
+    void writeTo(final AsyncTweetWriter output) throws IOException {
+        if (size > 0) {
+            output.write(buffer, starts, ends, size);
+        }
+    }
+
+    /**
+     * Adds all the tweets to a store, straight from the buffer, skipping any without an ID.
+     *
+     * @param store Where to store them.
+     * @throws IOException if the store can't be written.
+     */
+    void storeIn(final TweetStore store) throws IOException {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] != 0) {
+                store.put(ids[i], buffer, starts[i], ends[i] - starts[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds the tweets referred to by all the tweets to a frontier, straight from the buffer.
+     *
+     * @param frontier Where to add them.
+     */
+    void noteReferencesIn(final ReferenceFrontier frontier) {
+        for (int i = 0; i < size; i++) {
+            frontier.noteReferences(buffer, starts[i], ends[i] - starts[i]);
+        }
+    }
+
+    /**
+     * @return The rate limit status Twitter reported, or null if it didn't.
+     */
+    RateLimitStatus rateLimitStatus() {
+        return rateLimitStatus;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.TwitterException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>How a {@link LookupEngine} worker calls Twitter's
+ * <a href="https://developer.twitter.com/en/docs/tweets/post-and-engage/api-reference/get-statuses-lookup">GET statuses/lookup</a>
+ * endpoint with its credentials. A transport may complete lookups on the calling
+ * thread, or have several in flight at once and complete them from its own threads.
+ * Either way, failures are reported as {@link TwitterException}s, just as Twitter4J
+ * reports them, so they can be told apart in the same way.</p>
+ */
+interface LookupTransport {
+
+    /**
+     * Asks Twitter for the lookup rate limit budget of this transport's credentials.
+     *
+     * @return The budget, or null if Twitter didn't say.
+     * @throws TwitterException if Twitter couldn't be asked.
+     */
+    RateLimitStatus lookupBudget() throws TwitterException;
+
+    /**
+     * Looks up a batch of tweets.
+     *
+     * @param ids The IDs of the tweets, which must not be modified until the lookup completes.
+     * @return The tweets that were returned, or a failure with a {@link TwitterException}.
+     */
+    CompletableFuture<LookupResult> lookup(long[] ids);
+}
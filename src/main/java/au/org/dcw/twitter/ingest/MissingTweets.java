@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>A persistent record of the tweets Twitter didn't return when asked for (because
+ * they've been deleted, or their authors are suspended or protected), so later runs
+ * can skip them rather than spending calls on them again. A tweet is only skipped
+ * until its entry expires, in case it has become available again.</p>
+ *
+ * <p>The file holds a 16 byte entry per tweet: the tweet's ID and when it was found
+ * to be missing. Entries are held in memory in a primitive hash map, and appended to
+ * the file as they're added. When opened, expired and superseded entries (and any
+ * partial entry left by a crash) are dropped by rewriting the file. As with the
+ * {@link CheckpointJournal}, new entries are buffered and only written and synced
+ * every {@link #SYNC_EVERY} entries or {@link #SYNC_INTERVAL_MS} milliseconds, so a
+ * crash can lose the last few, which are just asked for again next time.</p>
+ *
+ * <p>Optionally, the IDs found to be missing, or skipped because they were known to
+ * be missing, can be listed in a text file, one per line. Thread safe.</p>
+ */
+public class MissingTweets implements Closeable {
+
+    private static final int ENTRY_BYTES = Long.BYTES + Long.BYTES;
+    private static final int SYNC_EVERY = 64;
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    private final long ttlMillis;
+    /** Tweet ID -> when it was found to be missing. */
+    private final LongLongHashMap missingSince = new LongLongHashMap(1 << 16);
+    private final FileChannel channel;
+    private final ByteBuffer pending = ByteBuffer.allocate(SYNC_EVERY * ENTRY_BYTES);
+    private long lastSync = System.currentTimeMillis();
+    private BufferedWriter listing;
+    private long found;
+    private long skipped;
+
+    /**
+     * Opens (or creates) the record of missing tweets.
+     *
+     * @param file The file holding the record.
+     * @param ttlMillis How long to skip a missing tweet for, or zero to skip it indefinitely.
+     * @throws IOException if there's a problem reading or creating the file.
+     */
+    MissingTweets(final Path file, final long ttlMillis) throws IOException {
+        this.ttlMillis = ttlMillis;
+        final long entries = Files.exists(file) ? load(file) : 0;
+
+        if (entries != missingSince.size() || (Files.exists(file) && Files.size(file) % ENTRY_BYTES != 0)) {
+            // rewrite compactly, atomically, so a crash now doesn't lose what was there
+            final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.allocate(1024 * ENTRY_BYTES);
+                for (long id : missingSince.keys()) {
+                    buffer.putLong(id).putLong(missingSince.get(id));
+                    if (! buffer.hasRemaining()) {
+                        writeFully(out, buffer);
+                    }
+                }
+                writeFully(out, buffer);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Lists the IDs of missing tweets, as they're found or skipped, in the given file.
+     *
+     * @param file The file to list them in, one per line.
+     * @throws IOException if the file can't be created.
+     */
+    synchronized void listTo(final Path file) throws IOException {
+        listing = Files.newBufferedWriter(file);
+    }
+
+    /**
+     * @param id The ID of a tweet.
+     * @return True if the tweet was missing when last asked for, and that hasn't expired.
+     */
+    synchronized boolean isMissing(final long id) {
+        final long since = missingSince.get(id);
+        return since != LongLongHashMap.ABSENT && ! expired(since, System.currentTimeMillis());
+    }
+
+    /**
+     * Notes that a tweet was skipped because it's known to be missing.
+     *
+     * @param id The ID of the tweet.
+     * @throws IOException if there's a problem listing it.
+     */
+    synchronized void skipped(final long id) throws IOException {
+        skipped++;
+        list(id);
+    }
+
+    /**
+     * Records that Twitter didn't return a tweet.
+     *
+     * @param id The ID of the tweet.
+     * @throws IOException if there's a problem recording it.
+     */
+    synchronized void add(final long id) throws IOException {
+        final long now = System.currentTimeMillis();
+        missingSince.put(id, now);
+        found++;
+        list(id);
+        pending.putLong(id).putLong(now);
+        if (! pending.hasRemaining() || now - lastSync >= SYNC_INTERVAL_MS) {
+            sync();
+        }
+    }
+
+    /**
+     * @return The number of tweets found to be missing in this run.
+     */
+    synchronized long found() {
+        return found;
+    }
+
+    /**
+     * @return The number of tweets skipped in this run because they were known to be missing.
+     */
+    synchronized long skipped() {
+        return skipped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        channel.close();
+        if (listing != null) {
+            listing.close();
+        }
+    }
+
+    private void list(final long id) throws IOException {
+        if (listing != null) {
+            listing.write(Long.toString(id));
+            listing.newLine();
+        }
+    }
+
+    private void sync() throws IOException {
+        if (pending.position() > 0) {
+            writeFully(channel, pending);
+            channel.force(false);
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    private boolean expired(final long since, final long now) {
+        return ttlMillis > 0 && now - since > ttlMillis;
+    }
+
+    /**
+     * Reads the entries in the file, keeping the latest for each tweet and ignoring those
+     * that have expired.
+     *
+     * @return The number of entries read, including those ignored.
+     */
+    private long load(final Path file) throws IOException {
+        final long now = System.currentTimeMillis();
+        long entries = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1024 * ENTRY_BYTES);
+            boolean endOfFile = false;
+            while (! endOfFile) {
+                endOfFile = in.read(buffer) < 0;
+                buffer.flip();
+                while (buffer.remaining() >= ENTRY_BYTES) {
+                    final long id = buffer.getLong();
+                    final long since = buffer.getLong();
+                    entries++;
+                    if (id != 0 && ! expired(since, now) && since > missingSince.get(id)) {
+                        missingSince.put(id, since);
+                    }
+                }
+                buffer.compact(); // any partial entry left at the end of the file is ignored
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes out what's in the buffer and clears it.
+     */
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
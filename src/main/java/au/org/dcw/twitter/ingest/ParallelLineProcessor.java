@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Processes the lines of a large file (e.g. a file of tweets, one JSON object per
+ * line) on several cores at once. The file is split into chunks of roughly equal size,
+ * with each boundary moved forward to just after a newline, and each chunk is memory
+ * mapped and run through the processing function on a fork-join worker.</p>
+ *
+ * <p>The results can be merged back into one output, in the same order as the input,
+ * or each chunk's results can be written to a file of its own (numbered as
+ * {@link AsyncTweetWriter} numbers rotated files), which avoids funnelling everything
+ * through one writer thread. When merging, only a couple of chunks per worker are
+ * processed ahead of the output, to bound the memory held by results waiting their
+ * turn.</p>
+ *
+ * <p>Blank lines are skipped, and a line the function fails on is reported (by its
+ * byte offset in the file) and skipped.</p>
+ */
+class ParallelLineProcessor {
+
+    /**
+     * Transforms one line of input into one line of output.
+     */
+    interface LineFunction {
+        /**
+         * @param line The line, without its line terminator.
+         * @return The line to output, or null to drop it.
+         * @throws IOException if the line can't be processed.
+         */
+        String apply(String line) throws IOException;
+    }
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    private final Path file;
+    private final int threads;
+    private final long chunkBytes;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param file The file to process.
+     * @param threads How many lines to process at once.
+     * @param chunkBytes Roughly how big each chunk of the file should be.
+     */
+    ParallelLineProcessor(final Path file, final int threads, final long chunkBytes) {
+        this.file = file;
+        this.threads = threads;
+        this.chunkBytes = Math.max(1, Math.min(MAX_CHUNK_BYTES, chunkBytes));
+    }
+
+    /**
+     * Processes the file, writing the results to the output in the same order as the input.
+     *
+     * @param function What to do with each line.
+     * @param output Where to write the results.
+     * @throws IOException if the file can't be read, or the output written.
+     */
+    void processInOrder(final LineFunction function, final AsyncTweetWriter output) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long[] boundaries = chunkBoundaries(channel);
+            final Deque<ForkJoinTask<List<byte[]>>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            while (next < boundaries.length - 1 || ! inFlight.isEmpty()) {
+                while (next < boundaries.length - 1 && inFlight.size() < threads * 2) {
+                    final long start = boundaries[next];
+                    final long end = boundaries[++next];
+                    inFlight.add(pool.submit(() -> processChunk(channel, start, end, function)));
+                }
+                for (byte[] line : join(inFlight.remove())) {
+                    output.write(line);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Processes the file, writing each chunk's results to a numbered file of its own,
+     * e.g. "tweets.json" becomes "tweets-00000.json", "tweets-00001.json", etc.
+     *
+     * @param function What to do with each line.
+     * @param output The name to number the output files after.
+     * @param compression How to compress the output files.
+     * @param converter How to convert the lines of the output files (e.g. to Parquet), or null to write JSONL.
+     * @throws IOException if the file can't be read, or the output written.
+     */
+    void processPerChunk(
+        final LineFunction function,
+        final Path output,
+        final AsyncTweetWriter.Compression compression,
+        final AsyncTweetWriter.Converter converter
+    ) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long[] boundaries = chunkBoundaries(channel);
+            final List<ForkJoinTask<?>> tasks = Lists.newArrayListWithCapacity(boundaries.length);
+            for (int i = 0; i < boundaries.length - 1; i++) {
+                final long start = boundaries[i];
+                final long end = boundaries[i + 1];
+                final Path target = AsyncTweetWriter.numbered(output, i);
+                tasks.add(pool.submit(() -> {
+                    try (OutputStream out = AsyncTweetWriter.openFile(target, compression, converter)) {
+                        for (byte[] line : processChunk(channel, start, end, function)) {
+                            out.write(line);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                join(task);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The number of lines successfully processed (including those dropped).
+     */
+    long processed() {
+        return processed.sum();
+    }
+
+    /**
+     * @return The number of lines the function failed on.
+     */
+    long failed() {
+        return failed.sum();
+    }
+
+    /**
+     * Works out where the chunks start and end, each boundary being just after a newline.
+     *
+     * @return The offset of the start of each chunk, followed by the size of the file.
+     */
+    private long[] chunkBoundaries(final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        final List<Long> boundaries = Lists.newArrayList(0L);
+        final ByteBuffer scan = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long boundary = 0;
+        while (boundary < size) {
+            // find the end of the line that the nominal end of this chunk falls in
+            long position = Math.min(size, boundary + chunkBytes) - 1;
+            boundary = size;
+            scanning:
+            while (position < size) {
+                scan.clear();
+                final int read = channel.read(scan, position);
+                if (read < 0) break;
+                for (int i = 0; i < read; i++) {
+                    if (scan.get(i) == '\n') {
+                        boundary = position + i + 1;
+                        break scanning;
+                    }
+                }
+                position += read;
+            }
+            boundaries.add(boundary);
+        }
+        return boundaries.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Runs the function over the lines in a chunk of the file.
+     *
+     * @return The results, encoded and terminated, ready to be written.
+     */
+    private List<byte[]> processChunk(
+        final FileChannel channel,
+        final long start,
+        final long end,
+        final LineFunction function
+    ) throws IOException {
+        final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        final List<byte[]> results = Lists.newArrayList();
+        byte[] line = new byte[SCAN_BUFFER_SIZE];
+        int lineStart = 0;
+        final int limit = chunk.limit();
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && chunk.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int length = lineEnd - lineStart;
+            if (length > 0 && chunk.get(lineEnd - 1) == '\r') {
+                length--;
+            }
+            if (length > line.length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            chunk.position(lineStart);
+            chunk.get(line, 0, length);
+
+            final String text = new String(line, 0, length, StandardCharsets.UTF_8);
+            if (! text.trim().isEmpty()) {
+                try {
+                    final String result = function.apply(text);
+                    if (result != null) {
+                        final byte[] encoded = result.concat("\n").getBytes(StandardCharsets.UTF_8);
+                        results.add(encoded);
+                    }
+                    processed.increment();
+                } catch (IOException e) {
+                    System.err.printf("Failed on the line at byte %d: %s\n", start + lineStart, e.getMessage());
+                    failed.increment();
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return results;
+    }
+
+    private static <T> T join(final ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing", e);
+        } catch (ExecutionException e) {
+            // the pool wraps checked exceptions thrown by tasks in RuntimeExceptions
+            Throwable cause = e.getCause();
+            while (cause instanceof RuntimeException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to process a chunk", cause);
+        }
+    }
+}
@@ -0,0 +1,670 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.github.luben.zstd.Zstd;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Converts the tweets written to it, as lines of JSON, into a Parquet file with a
+ * column for each field to keep (see {@link TweetColumns}), so the output can be
+ * loaded into columnar tools (Spark, DuckDB, pandas, etc.) and scanned without
+ * parsing whole tweets. As it's a stream of lines, it can stand in for a plain file
+ * wherever JSONL is written, including when the output is rotated.</p>
+ *
+ * <p>Rows are buffered until a row group is full, then written column by column,
+ * each column chunk in pages of about {@link #PAGE_SIZE} bytes, compressed with gzip
+ * or zstd. String columns with many repeated values (e.g. screen names) are
+ * dictionary encoded, and whole number columns carry their minimum and maximum, so
+ * readers can skip row groups. A column's type comes from the values in the first
+ * row group: whole numbers, floating point numbers, booleans or strings, with
+ * creation dates as UTC timestamps, and objects and arrays as JSON strings. Later
+ * values that don't fit their column's type are written as null.</p>
+ *
+ * <p>The file is only readable once it's been closed, as its metadata is written at
+ * the end, and {@link #flush()} doesn't make the rows so far readable.</p>
+ *
+ * @see <a href="https://github.com/apache/parquet-format">The Parquet file format</a>
+ */
+final class ParquetTweetWriter extends JsonLinesOutputStream {
+
+    private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+    private static final int PAGE_SIZE = 1024 * 1024;
+    private static final int MAX_DICTIONARY_BYTES = 2 * 1024 * 1024;
+    private static final int ZSTD_LEVEL = 3;
+    private static final DateTimeFormatter TWITTER_DATE =
+        DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss Z yyyy", Locale.ENGLISH);
+
+    /* Parquet's physical types. */
+    private static final int BOOLEAN = 0;
+    private static final int INT64 = 2;
+    private static final int DOUBLE = 5;
+    private static final int BYTE_ARRAY = 6;
+
+    /* Parquet's (converted) logical types. */
+    private static final int UTF8 = 0;
+    private static final int TIMESTAMP_MILLIS = 9;
+    private static final int JSON = 19;
+
+    /* Parquet's encodings, page types, compression codecs and repetition types. */
+    private static final int PLAIN = 0;
+    private static final int PLAIN_DICTIONARY = 2;
+    private static final int RLE = 3;
+    private static final int DATA_PAGE = 0;
+    private static final int DICTIONARY_PAGE = 2;
+    private static final int UNCOMPRESSED = 0;
+    private static final int GZIP = 2;
+    private static final int ZSTD = 6;
+    private static final int OPTIONAL = 1;
+
+    /**
+     * The types a column can have.
+     */
+    private enum ColumnType {
+        WHOLE_NUMBER(INT64, -1),
+        NUMBER(DOUBLE, -1),
+        BOOL(BOOLEAN, -1),
+        TIMESTAMP(INT64, TIMESTAMP_MILLIS),
+        STRING(BYTE_ARRAY, UTF8),
+        JSON_STRING(BYTE_ARRAY, JSON);
+
+        final int physicalType;
+        final int convertedType;
+
+        ColumnType(final int physicalType, final int convertedType) {
+            this.physicalType = physicalType;
+            this.convertedType = convertedType;
+        }
+    }
+
+    /**
+     * What the footer needs to know about a column chunk once it's been written.
+     */
+    private static final class ColumnChunk {
+        int encoding = PLAIN;
+        long numValues;
+        long uncompressedSize;
+        long compressedSize;
+        long dataPageOffset;
+        long dictionaryPageOffset = -1;
+        long nullCount;
+        byte[] min;
+        byte[] max;
+    }
+
+    /**
+     * What the footer needs to know about a row group once it's been written.
+     */
+    private static final class RowGroup {
+        final List<ColumnChunk> columns = new ArrayList<>();
+        long numRows;
+        long fileOffset;
+        long compressedSize;
+    }
+
+    private final CountingOutputStream out;
+    private final TweetColumns columns;
+    private final int codec;
+    private final Object[] row;
+    private final List<List<Object>> values;
+    private final List<RowGroup> rowGroups = new ArrayList<>();
+    private ColumnType[] types;
+    private long rows;
+    private int rowsInGroup;
+    private long skipped;
+    private long mismatched;
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param out Where to write the Parquet file, which is closed when this is.
+     * @param columns The columns to write, and the size of the row groups.
+     * @param compression How to compress the pages.
+     * @throws IOException if the file can't be started.
+     */
+    ParquetTweetWriter(final OutputStream out, final TweetColumns columns, final AsyncTweetWriter.Compression compression)
+        throws IOException {
+        this.out = new CountingOutputStream(out);
+        this.columns = columns;
+        this.codec = compression == AsyncTweetWriter.Compression.GZIP ? GZIP
+            : compression == AsyncTweetWriter.Compression.ZSTD ? ZSTD
+            : UNCOMPRESSED;
+        this.row = new Object[columns.columnCount()];
+        this.values = new ArrayList<>(columns.columnCount());
+        for (int i = 0; i < columns.columnCount(); i++) {
+            values.add(new ArrayList<>(Math.min(columns.rowGroupRows(), 64 * 1024)));
+        }
+        this.out.write(MAGIC);
+    }
+
+    /**
+     * Flushes what has been written to the file so far, which doesn't make it readable.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the last row group and the file's metadata, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            endLastLine();
+            if (rowsInGroup > 0) {
+                writeRowGroup();
+            }
+            if (types == null) {
+                decideTypes(); // no rows, but the schema is still needed
+            }
+            final byte[] footer = footer();
+            out.write(footer);
+            out.write(new byte[] {
+                (byte) footer.length, (byte) (footer.length >>> 8),
+                (byte) (footer.length >>> 16), (byte) (footer.length >>> 24)
+            });
+            out.write(MAGIC);
+        } finally {
+            out.close();
+        }
+        if (skipped > 0 || mismatched > 0) {
+            System.err.printf(
+                "Parquet output: skipped %d lines that weren't tweets; wrote %d values as null " +
+                    "as they didn't fit their column's type\n", skipped, mismatched
+            );
+        }
+    }
+
+    /**
+     * Converts a line into a row.
+     */
+    @Override
+    protected void line(final byte[] line, final int offset, final int length) throws IOException {
+        try {
+            columns.extract(line, offset, length, row);
+        } catch (IOException e) {
+            skipped++;
+            return;
+        }
+        for (int i = 0; i < row.length; i++) {
+            values.get(i).add(row[i]);
+        }
+        rows++;
+        if (++rowsInGroup == columns.rowGroupRows()) {
+            writeRowGroup();
+        }
+    }
+
+    /**
+     * Decides each column's type from its first value, if the first row group has one.
+     */
+    private void decideTypes() {
+        types = new ColumnType[columns.columnCount()];
+        for (int i = 0; i < types.length; i++) {
+            Object first = null;
+            for (Object value : values.get(i)) {
+                if (value != null) {
+                    first = value;
+                    break;
+                }
+            }
+            types[i] = first instanceof Long ? ColumnType.WHOLE_NUMBER
+                : first instanceof Double ? ColumnType.NUMBER
+                : first instanceof Boolean ? ColumnType.BOOL
+                : first instanceof TweetColumns.Json ? ColumnType.JSON_STRING
+                : first instanceof String && columns.isTimestamp(i) && toTimestamp((String) first) != null
+                    ? ColumnType.TIMESTAMP
+                : ColumnType.STRING;
+        }
+    }
+
+    private void writeRowGroup() throws IOException {
+        if (types == null) {
+            decideTypes();
+        }
+        final RowGroup group = new RowGroup();
+        group.numRows = rowsInGroup;
+        group.fileOffset = out.getCount();
+        for (int i = 0; i < types.length; i++) {
+            group.columns.add(writeColumnChunk(types[i], values.get(i)));
+            values.get(i).clear();
+        }
+        group.compressedSize = out.getCount() - group.fileOffset;
+        rowGroups.add(group);
+        rowsInGroup = 0;
+    }
+
+    /**
+     * Writes a column's values in the current row group as a dictionary page, if it's
+     * worth it, followed by data pages.
+     */
+    private ColumnChunk writeColumnChunk(final ColumnType type, final List<Object> column) throws IOException {
+        final ColumnChunk chunk = new ColumnChunk();
+        final int n = column.size();
+        chunk.numValues = n;
+
+        // convert the values to the column's type, gathering the statistics
+        final Object[] typed = new Object[n];
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        double minDouble = Double.POSITIVE_INFINITY;
+        double maxDouble = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            final Object value = typed[i] = convert(type, column.get(i));
+            if (value == null) {
+                chunk.nullCount++;
+            } else if (value instanceof Long) {
+                min = Math.min(min, (Long) value);
+                max = Math.max(max, (Long) value);
+            } else if (value instanceof Double) {
+                minDouble = Math.min(minDouble, (Double) value);
+                maxDouble = Math.max(maxDouble, (Double) value);
+            }
+        }
+        if (chunk.nullCount < n && type.physicalType == INT64) {
+            chunk.min = new Buffer(8).int64(min).toByteArray();
+            chunk.max = new Buffer(8).int64(max).toByteArray();
+        } else if (chunk.nullCount < n && type.physicalType == DOUBLE && ! Double.isNaN(minDouble + maxDouble)) {
+            // a zero could be either sign, so as the format has it, the minimum is -0.0 and the maximum +0.0
+            minDouble = minDouble == 0 ? -0.0 : minDouble;
+            maxDouble = maxDouble == 0 ? 0.0 : maxDouble;
+            chunk.min = new Buffer(8).int64(Double.doubleToLongBits(minDouble)).toByteArray();
+            chunk.max = new Buffer(8).int64(Double.doubleToLongBits(maxDouble)).toByteArray();
+        }
+
+        // dictionary encode strings if there are enough repeats, and the dictionary isn't too big
+        int[] indices = null;
+        int bitWidth = 0;
+        if (type.physicalType == BYTE_ARRAY) {
+            final Map<String, Integer> dictionary = new HashMap<>();
+            final Buffer entries = new Buffer(64 * 1024);
+            indices = new int[n];
+            for (int i = 0; i < n && indices != null; i++) {
+                if (typed[i] != null) {
+                    final String text = (String) typed[i];
+                    Integer index = dictionary.get(text);
+                    if (index == null) {
+                        index = dictionary.size();
+                        dictionary.put(text, index);
+                        entries.byteArray((byte[]) (typed[i] = text.getBytes(StandardCharsets.UTF_8)));
+                        if (entries.size() > MAX_DICTIONARY_BYTES) {
+                            indices = null;
+                        }
+                    }
+                    if (indices != null) {
+                        indices[i] = index;
+                    }
+                }
+            }
+            if (indices != null && dictionary.size() <= (n - chunk.nullCount) / 2) {
+                chunk.encoding = PLAIN_DICTIONARY;
+                chunk.dictionaryPageOffset = out.getCount();
+                writePage(chunk, DICTIONARY_PAGE, entries, dictionary.size());
+                bitWidth = Math.max(1, 32 - Integer.numberOfLeadingZeros(dictionary.size() - 1));
+            } else {
+                indices = null;
+            }
+        }
+
+        // data pages, cut when the values reach the page size
+        chunk.dataPageOffset = out.getCount();
+        final Buffer pageValues = new Buffer(PAGE_SIZE + 64 * 1024);
+        final int[] definitionLevels = new int[n];
+        final int[] pageInts = new int[n];
+        int pageStart = 0;
+        int pageIntCount = 0;
+        for (int i = 0; i < n; i++) {
+            final Object value = typed[i];
+            if (value != null) {
+                definitionLevels[i - pageStart] = 1;
+                if (indices != null) {
+                    pageInts[pageIntCount++] = indices[i];
+                } else if (value instanceof Boolean) {
+                    pageInts[pageIntCount++] = (Boolean) value ? 1 : 0;
+                } else if (value instanceof Long) {
+                    pageValues.int64((Long) value);
+                } else if (value instanceof Double) {
+                    pageValues.int64(Double.doubleToLongBits((Double) value));
+                } else if (value instanceof byte[]) {
+                    pageValues.byteArray((byte[]) value);
+                } else {
+                    pageValues.byteArray(((String) value).getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                definitionLevels[i - pageStart] = 0;
+            }
+            final long pageBytes = pageValues.size() + pageIntCount * (long) Math.max(bitWidth, 1) / 8;
+            if (pageBytes >= PAGE_SIZE || i == n - 1) {
+                final int pageRows = i + 1 - pageStart;
+                final Buffer levels = new Buffer(pageRows / 8 + 16).hybrid(definitionLevels, pageRows, 1);
+                final Buffer body = new Buffer(levels.size() + pageValues.size() + pageIntCount / 2 + 16);
+                body.int32(levels.size());
+                levels.writeTo(body);
+                if (indices != null) {
+                    body.write(bitWidth);
+                    body.hybrid(pageInts, pageIntCount, bitWidth);
+                } else if (type.physicalType == BOOLEAN) {
+                    body.bitPacked(pageInts, pageIntCount, 1);
+                } else {
+                    pageValues.writeTo(body);
+                }
+                writePage(chunk, DATA_PAGE, body, pageRows);
+                pageValues.reset();
+                pageIntCount = 0;
+                pageStart = i + 1;
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Compresses a page and writes it with its header.
+     */
+    private void writePage(final ColumnChunk chunk, final int pageType, final Buffer body, final int numValues)
+        throws IOException {
+        final byte[] compressed = compress(body);
+        final ThriftCompactWriter header = new ThriftCompactWriter().structBegin()
+            .i32Field(1, pageType)
+            .i32Field(2, body.size())
+            .i32Field(3, compressed != null ? compressed.length : body.size());
+        if (pageType == DATA_PAGE) {
+            header.structField(5).structBegin()
+                .i32Field(1, numValues)
+                .i32Field(2, chunk.encoding)
+                .i32Field(3, RLE) // definition levels
+                .i32Field(4, RLE) // repetition levels, of which there are none
+                .structEnd();
+        } else {
+            header.structField(7).structBegin()
+                .i32Field(1, numValues)
+                .i32Field(2, PLAIN_DICTIONARY)
+                .structEnd();
+        }
+        header.structEnd();
+        header.writeTo(out);
+        if (compressed != null) {
+            out.write(compressed);
+        } else {
+            body.writeTo(out);
+        }
+        chunk.uncompressedSize += header.size() + body.size();
+        chunk.compressedSize += header.size() + (compressed != null ? compressed.length : body.size());
+    }
+
+    /**
+     * @return The page compressed with the codec, or null if it's not to be compressed.
+     */
+    private byte[] compress(final Buffer page) throws IOException {
+        switch (codec) {
+            case GZIP:
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream(page.size() / 4 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024)) {
+                    page.writeTo(gzip);
+                }
+                return compressed.toByteArray();
+            case ZSTD:
+                return Zstd.compress(page.toByteArray(), ZSTD_LEVEL);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The value as the column's type would have it, or null if it's missing or doesn't fit.
+     */
+    private Object convert(final ColumnType type, final Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch (type) {
+            case WHOLE_NUMBER:
+                if (value instanceof Long) {
+                    return value;
+                }
+                if (value instanceof Double && (Double) value == Math.rint((Double) value)) {
+                    return ((Double) value).longValue();
+                }
+                break;
+            case NUMBER:
+                if (value instanceof Long || value instanceof Double) {
+                    return ((Number) value).doubleValue();
+                }
+                break;
+            case BOOL:
+                if (value instanceof Boolean) {
+                    return value;
+                }
+                break;
+            case TIMESTAMP:
+                final Long timestamp = value instanceof String ? toTimestamp((String) value) : null;
+                if (timestamp != null) {
+                    return timestamp;
+                }
+                break;
+            default:
+                return value instanceof TweetColumns.Json ? ((TweetColumns.Json) value).text : value.toString();
+        }
+        mismatched++;
+        return null;
+    }
+
+    /**
+     * @return Twitter's date (e.g. "Wed Oct 11 02:46:58 +0000 2017") in milliseconds since the epoch,
+     *         or null if it's not a date.
+     */
+    static Long toTimestamp(final String date) {
+        try {
+            return TWITTER_DATE.parse(date, Instant::from).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The file's metadata: its schema, where its row groups and column chunks are, and how
+     *         each column's values are ordered.
+     */
+    private byte[] footer() {
+        final ThriftCompactWriter footer = new ThriftCompactWriter().structBegin()
+            .i32Field(1, 1) // version
+            .listField(2, ThriftCompactWriter.STRUCT, types.length + 1)
+            .structBegin()
+            .stringField(4, "schema")
+            .i32Field(5, types.length)
+            .structEnd();
+        for (int i = 0; i < types.length; i++) {
+            footer.structBegin()
+                .i32Field(1, types[i].physicalType)
+                .i32Field(3, OPTIONAL)
+                .stringField(4, columns.columnName(i));
+            if (types[i].convertedType >= 0) {
+                footer.i32Field(6, types[i].convertedType);
+            }
+            footer.structEnd();
+        }
+        footer.i64Field(3, rows)
+            .listField(4, ThriftCompactWriter.STRUCT, rowGroups.size());
+        for (RowGroup group : rowGroups) {
+            long uncompressed = 0;
+            footer.structBegin()
+                .listField(1, ThriftCompactWriter.STRUCT, types.length);
+            for (int i = 0; i < types.length; i++) {
+                final ColumnChunk chunk = group.columns.get(i);
+                uncompressed += chunk.uncompressedSize;
+                footer.structBegin()
+                    .i64Field(2, chunk.dictionaryPageOffset >= 0 ? chunk.dictionaryPageOffset : chunk.dataPageOffset)
+                    .structField(3).structBegin()
+                    .i32Field(1, types[i].physicalType)
+                    .listField(2, ThriftCompactWriter.I32, 2).i32(chunk.encoding).i32(RLE)
+                    .listField(3, ThriftCompactWriter.BINARY, 1).string(columns.columnName(i))
+                    .i32Field(4, codec)
+                    .i64Field(5, chunk.numValues)
+                    .i64Field(6, chunk.uncompressedSize)
+                    .i64Field(7, chunk.compressedSize)
+                    .i64Field(9, chunk.dataPageOffset);
+                if (chunk.dictionaryPageOffset >= 0) {
+                    footer.i64Field(11, chunk.dictionaryPageOffset);
+                }
+                footer.structField(12).structBegin().i64Field(3, chunk.nullCount);
+                if (chunk.min != null) {
+                    footer.binaryField(5, chunk.max).binaryField(6, chunk.min);
+                }
+                footer.structEnd() // statistics
+                    .structEnd() // column metadata
+                    .structEnd(); // column chunk
+            }
+            footer.i64Field(2, uncompressed)
+                .i64Field(3, group.numRows)
+                .i64Field(5, group.fileOffset)
+                .i64Field(6, group.compressedSize)
+                .structEnd();
+        }
+        footer.stringField(6, "fetch-tweets")
+            .listField(7, ThriftCompactWriter.STRUCT, types.length);
+        for (int i = 0; i < types.length; i++) {
+            // each column's values are ordered by its type (signed for numbers), so readers trust its min and max
+            footer.structBegin()
+                .structField(1).structBegin().structEnd() // TypeDefinedOrder
+                .structEnd();
+        }
+        return footer.structEnd()
+            .toByteArray();
+    }
+
+    /**
+     * A buffer with Parquet's little endian and run length encodings.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(final int size) {
+            super(size);
+        }
+
+        Buffer int32(final int value) {
+            write(value);
+            write(value >>> 8);
+            write(value >>> 16);
+            write(value >>> 24);
+            return this;
+        }
+
+        Buffer int64(final long value) {
+            for (int shift = 0; shift < 64; shift += 8) {
+                write((int) (value >>> shift));
+            }
+            return this;
+        }
+
+        /**
+         * A PLAIN encoded byte array: its length, then its bytes.
+         */
+        Buffer byteArray(final byte[] value) {
+            int32(value.length);
+            write(value, 0, value.length);
+            return this;
+        }
+
+        Buffer uleb128(int value) {
+            while ((value & ~0x7F) != 0) {
+                write(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+            return this;
+        }
+
+        /**
+         * The RLE/bit-packing hybrid encoding: runs of at least 8 repeated values are
+         * run length encoded, and the rest are bit-packed in groups of 8.
+         */
+        Buffer hybrid(final int[] values, final int count, final int bitWidth) {
+            int i = 0;
+            while (i < count) {
+                final int run = runLength(values, i, count);
+                if (run >= 8) {
+                    uleb128(run << 1);
+                    for (int b = 0; b < (bitWidth + 7) / 8; b++) {
+                        write(values[i] >>> (8 * b));
+                    }
+                    i += run;
+                } else {
+                    // bit-pack groups of 8 until a long enough run starts (padding the last group)
+                    int end = i;
+                    do {
+                        end += 8;
+                    } while (end < count && runLength(values, end, Math.min(count, end + 8)) < 8);
+                    uleb128((end - i) / 8 << 1 | 1);
+                    packBits(values, i, Math.min(end, count), end - i, bitWidth);
+                    i = end;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Bit-packed values, with no header, as PLAIN encoded booleans are.
+         */
+        Buffer bitPacked(final int[] values, final int count, final int bitWidth) {
+            packBits(values, 0, count, (count + 7) / 8 * 8, bitWidth);
+            return this;
+        }
+
+        private void packBits(final int[] values, final int from, final int to, final int slots, final int bitWidth) {
+            long bits = 0;
+            int bitCount = 0;
+            for (int i = from; i < from + slots; i++) {
+                bits |= (long) (i < to ? values[i] : 0) << bitCount;
+                bitCount += bitWidth;
+                while (bitCount >= 8) {
+                    write((int) bits);
+                    bits >>>= 8;
+                    bitCount -= 8;
+                }
+            }
+            if (bitCount > 0) {
+                write((int) bits);
+            }
+        }
+
+        private static int runLength(final int[] values, final int from, final int to) {
+            int i = from + 1;
+            while (i < to && values[i] == values[from]) {
+                i++;
+            }
+            return i - from;
+        }
+    }
+}
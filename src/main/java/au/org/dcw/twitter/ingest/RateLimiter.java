@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Paces calls to a rate limited Twitter endpoint so they're spread evenly across
+ * each rate limit window, rather than going out as fast as possible and then
+ * stalling until the window resets.</p>
+ *
+ * <p>It's a token bucket: tokens accrue at the rate that would use up the calls
+ * remaining in the window just as it resets, and a few can be saved up to allow a
+ * small burst. The calls remaining and the reset time are kept in step with what
+ * Twitter reports after each call, though as responses to concurrent calls can
+ * arrive out of order, the calls remaining only go up when a new window starts. If
+ * Twitter says the limit has been exceeded anyway (HTTP 429), calls stop until the
+ * reset time it gives or, failing that, for an exponentially increasing, jittered,
+ * period.</p>
+ *
+ * <p>Thread safe, though waiting callers are not served in any particular order.</p>
+ */
+class RateLimiter {
+
+    /** Twitter's rate limit windows are 15 minutes long. */
+    static final long WINDOW_MS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final double MAX_BURST = 3;
+    private static final long RESET_MARGIN_MS = 2000;
+    private static final long MIN_BACKOFF_MS = 1000;
+
+    private final String name;
+    private int limit;
+    private int remaining;
+    private long resetAt;
+    private double tokens = 1;
+    private long lastRefill = System.currentTimeMillis();
+    private int consecutiveBackoffs;
+    private long pausedUntil;
+
+    /**
+     * Constructor
+     *
+     * @param name Who the limiter is for, for reporting.
+     * @param limit The number of calls allowed per window.
+     * @param remaining The number of calls remaining in the current window.
+     * @param resetAt When the current window resets (millis since the epoch).
+     */
+    RateLimiter(final String name, final int limit, final int remaining, final long resetAt) {
+        this.name = name;
+        this.limit = limit;
+        this.remaining = remaining;
+        this.resetAt = resetAt;
+    }
+
+    /**
+     * Waits until a call may be made, and counts it against the budget.
+     *
+     * @return How long it waited, in milliseconds.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    long acquire() throws InterruptedException {
+        long waited = 0;
+        long wait;
+        while ((wait = tryAcquire(System.currentTimeMillis())) > 0) {
+            Thread.sleep(wait);
+            waited += wait;
+        }
+        return waited;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @param now The current time.
+     * @return Zero if a token was taken, otherwise how long to wait before trying again.
+     */
+    private synchronized long tryAcquire(final long now) {
+        if (now < pausedUntil) {
+            return pausedUntil - now;
+        }
+        if (now >= resetAt) {
+            // new window - assume a full budget until Twitter says otherwise
+            remaining = limit;
+            resetAt = now + WINDOW_MS;
+            tokens = Math.max(tokens, 1);
+        }
+        if (remaining <= 0) {
+            return resetAt - now + RESET_MARGIN_MS;
+        }
+        final double ratePerMs = remaining / (double) Math.max(1, resetAt - now);
+        tokens = Math.min(Math.min(MAX_BURST, remaining), tokens + (now - lastRefill) * ratePerMs);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens--;
+            remaining--;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / ratePerMs));
+    }
+
+    /**
+     * Brings the budget into line with what Twitter reported with a response. Within
+     * a window, the fewest calls remaining reported so far stands, as a response that
+     * arrives late reports the budget from before the calls that overtook it.
+     *
+     * @param limit The number of calls allowed per window.
+     * @param remaining The number of calls remaining in the window the response came in.
+     * @param resetAt When that window resets (millis since the epoch).
+     */
+    synchronized void update(final int limit, final int remaining, final long resetAt) {
+        this.limit = limit;
+        this.consecutiveBackoffs = 0;
+        if (resetAt > this.resetAt) {
+            // a new window
+            this.remaining = remaining;
+            this.resetAt = resetAt;
+        } else if (resetAt > System.currentTimeMillis()) {
+            this.remaining = Math.min(this.remaining, remaining);
+        }
+        // otherwise it's from a window that's already over
+    }
+
+    /**
+     * Stops calls after Twitter has said the rate limit was exceeded.
+     *
+     * @param resetAt When Twitter says the window resets (millis since the epoch),
+     *                or zero if it didn't say.
+     */
+    synchronized void rateLimitExceeded(final long resetAt) {
+        final long now = System.currentTimeMillis();
+        remaining = 0;
+        if (resetAt > now) {
+            this.resetAt = resetAt;
+            pausedUntil = resetAt + RESET_MARGIN_MS;
+        } else {
+            // no idea when it resets, so back off exponentially
+            pausedUntil = now + backoff(consecutiveBackoffs++, WINDOW_MS);
+            this.resetAt = pausedUntil;
+        }
+        System.err.printf(
+            "[%s] Rate limit exceeded. Waiting %d seconds starting at %s...\n",
+            name, (pausedUntil - now) / 1000, new Date(now)
+        );
+    }
+
+    /**
+     * Works out how long to back off for after a number of consecutive failures:
+     * exponentially longer each time, with jitter so workers sharing an IP address
+     * don't all come back at once.
+     *
+     * @param failures The number of consecutive failures before this one.
+     * @param maxMillis The longest to back off for.
+     * @return How long to back off for, in milliseconds.
+     */
+    static long backoff(final int failures, final long maxMillis) {
+        final long backoff = Math.min(maxMillis, MIN_BACKOFF_MS << Math.min(20, failures));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * @return The number of calls remaining in the current window, as far as we know.
+     */
+    synchronized int remaining() {
+        return remaining;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import twitter4j.HttpClient;
+import twitter4j.HttpClientFactory;
+import twitter4j.HttpParameter;
+import twitter4j.HttpResponse;
+import twitter4j.RateLimitStatus;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.conf.Configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * <p>Looks up tweets with Twitter4J's own, blocking, HTTP client, but takes the
+ * response body as it comes, splitting it into tweets with a
+ * {@link TweetArraySplitter}, rather than having Twitter4J build a {@link twitter4j.Status}
+ * for each tweet and keep a copy of its raw JSON to be asked for again. Each lookup
+ * completes on the calling thread.</p>
+ */
+class RawLookupTransport implements LookupTransport {
+
+    private final Twitter twitter;
+    private final Twitter4JTransport budgetTransport;
+    private final String lookupURL;
+    private final List<HttpParameter> implicitParams = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param twitter The Twitter instance whose credentials and configuration to use.
+     */
+    RawLookupTransport(final Twitter twitter) {
+        this.twitter = twitter;
+        this.budgetTransport = new Twitter4JTransport(twitter);
+
+        // ask for what Twitter4J asks for, so the tweets are the same either way
+        final Configuration conf = twitter.getConfiguration();
+        this.lookupURL = conf.getRestBaseURL() + "statuses/lookup.json";
+        if (conf.isIncludeMyRetweetEnabled()) {
+            implicitParams.add(new HttpParameter("include_my_retweet", true));
+        }
+        implicitParams.add(new HttpParameter("include_entities", conf.isIncludeEntitiesEnabled()));
+        if (conf.isTweetModeExtended()) {
+            implicitParams.add(new HttpParameter("tweet_mode", "extended"));
+        }
+    }
+
+    /**
+     * Asks for the budget through Twitter4J, as it's only asked for once per worker.
+     */
+    @Override
+    public RateLimitStatus lookupBudget() throws TwitterException {
+        return budgetTransport.lookupBudget();
+    }
+
+    @Override
+    public CompletableFuture<LookupResult> lookup(final long[] ids) {
+        final CompletableFuture<LookupResult> result = new CompletableFuture<>();
+        try {
+            // Twitter4J's client throws for error responses, with their status and headers
+            final HttpClient client = HttpClientFactory.getInstance(twitter.getConfiguration().getHttpClientConfiguration());
+            final HttpResponse response = client.get(lookupURL, params(ids), twitter.getAuthorization(), null);
+            final Body body;
+            try (InputStream in = response.asStream()) {
+                body = Body.read(in, 0);
+            }
+            result.complete(body.split(rateLimitStatus(response::getResponseHeader)));
+        } catch (TwitterException e) {
+            result.completeExceptionally(e);
+        } catch (IOException e) {
+            result.completeExceptionally(new TwitterException(e.getMessage(), e));
+        }
+        return result;
+    }
+
+    /**
+     * @return The URL lookups are sent to.
+     */
+    String lookupURL() {
+        return lookupURL;
+    }
+
+    /**
+     * @return The Twitter instance whose credentials and configuration are used.
+     */
+    Twitter twitter() {
+        return twitter;
+    }
+
+    /**
+     * @param ids The IDs to look up.
+     * @return The parameters of a lookup of them, as Twitter4J would send them.
+     */
+    HttpParameter[] params(final long[] ids) {
+        final StringBuilder idList = new StringBuilder(ids.length * 20);
+        for (long id : ids) {
+            if (idList.length() > 0) {
+                idList.append(',');
+            }
+            idList.append(id);
+        }
+        final HttpParameter[] params = implicitParams.toArray(new HttpParameter[implicitParams.size() + 1]);
+        params[params.length - 1] = new HttpParameter("id", idList.toString());
+        return params;
+    }
+
+    /**
+     * A response body, read into a buffer that's split in place rather than copied out.
+     */
+    static final class Body extends ByteArrayOutputStream {
+
+        Body(final int size) {
+            super(size);
+        }
+
+        /**
+         * Reads a whole stream.
+         *
+         * @param in The stream.
+         * @param sizeHint How much is expected, if known, otherwise 0.
+         * @return What was read.
+         * @throws IOException if there's a problem reading it.
+         */
+        static Body read(final InputStream in, final int sizeHint) throws IOException {
+            final Body body = new Body(sizeHint > 0 ? sizeHint : 64 * 1024);
+            final byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                body.write(chunk, 0, n);
+            }
+            return body;
+        }
+
+        /**
+         * @return The body decoded, e.g. for an error message.
+         */
+        String asString() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Splits the body, as a JSON array of tweets, in place.
+         *
+         * @param rateLimitStatus The rate limit status reported with the body (may be null).
+         * @return The tweets.
+         * @throws IOException if the body isn't a JSON array of tweets.
+         */
+        LookupResult split(final RateLimitStatus rateLimitStatus) throws IOException {
+            return TweetArraySplitter.split(buf, count, rateLimitStatus);
+        }
+    }
+
+    /**
+     * Reads a rate limit status from the headers of a response.
+     *
+     * @param header Looks up a header of the response by name.
+     * @return The rate limit status, or null if the headers aren't there.
+     */
+    static RateLimitStatus rateLimitStatus(final Function<String, String> header) {
+        final String limit = header.apply("x-rate-limit-limit");
+        final String remaining = header.apply("x-rate-limit-remaining");
+        final String reset = header.apply("x-rate-limit-reset");
+        if (limit == null || remaining == null || reset == null) {
+            return null;
+        }
+        try {
+            return new HeaderRateLimitStatus(
+                Integer.parseInt(limit), Integer.parseInt(remaining), Integer.parseInt(reset)
+            );
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A rate limit status read from the headers of a successful response.
+     */
+    private static final class HeaderRateLimitStatus implements RateLimitStatus {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int limit;
+        private final int remaining;
+        private final int resetTimeInSeconds;
+
+        HeaderRateLimitStatus(final int limit, final int remaining, final int resetTimeInSeconds) {
+            this.limit = limit;
+            this.remaining = remaining;
+            this.resetTimeInSeconds = resetTimeInSeconds;
+        }
+
+        @Override
+        public int getRemaining() {
+            return remaining;
+        }
+
+        @Override
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public int getResetTimeInSeconds() {
+            return resetTimeInSeconds;
+        }
+
+        @Override
+        public int getSecondsUntilReset() {
+            return (int) (resetTimeInSeconds - System.currentTimeMillis() / 1000);
+        }
+    }
+}
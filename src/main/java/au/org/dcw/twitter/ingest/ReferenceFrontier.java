@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>The tweets referred to by the tweets fetched so far, which are to be fetched
+ * next, level by level, to hydrate the conversations and quote chains the tweets
+ * are part of: the tweets they reply to (<code>in_reply_to_status_id</code>) and
+ * quote (<code>quoted_status_id</code>), and those a retweeted tweet replies to and
+ * quotes.</p>
+ *
+ * <p>Every ID fetched, or asked for, is remembered in a {@link LongHashSet}, and a
+ * reference is only added to the frontier the first time it's seen, so no tweet is
+ * asked for twice, however many tweets refer to it. A tweet referred to that turns
+ * up later in the input is dropped from the frontier, as it's fetched as part of the
+ * input instead. The references are read from
+ * each tweet's JSON in a single streaming pass, skipping the rest of the tweet.</p>
+ *
+ * <p>Thread safe.</p>
+ */
+final class ReferenceFrontier {
+
+    private static final JsonFactory JSON = new ObjectMapper().getFactory();
+
+    private final LongHashSet seen = new LongHashSet();
+    /** Tweets asked for that had already been seen, which may be in the frontier. */
+    private final LongHashSet askedForAgain = new LongHashSet();
+    private long[] frontier = new long[1024];
+    private int size;
+    private long referencesFound;
+    private long unreadable;
+
+    /**
+     * Notes that a tweet has been, or is being, fetched, so it isn't added to the frontier.
+     *
+     * @param id The tweet's ID.
+     */
+    synchronized void markSeen(final long id) {
+        if (! seen.add(id)) {
+            askedForAgain.add(id);
+        }
+    }
+
+    /**
+     * Adds the tweets referred to by a tweet to the frontier, unless they've been seen.
+     *
+     * @param json The buffer holding the tweet's JSON, as UTF-8.
+     * @param offset Where the tweet starts in the buffer.
+     * @param length The length of the tweet's JSON.
+     */
+    void noteReferences(final byte[] json, final int offset, final int length) {
+        long inReplyTo = 0;
+        long quoted = 0;
+        long retweetInReplyTo = 0;
+        long retweetQuoted = 0;
+        try (JsonParser parser = JSON.createParser(json, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if (token == JsonToken.VALUE_NUMBER_INT && "in_reply_to_status_id".equals(field)) {
+                    inReplyTo = parser.getLongValue();
+                } else if (token == JsonToken.VALUE_NUMBER_INT && "quoted_status_id".equals(field)) {
+                    quoted = parser.getLongValue();
+                } else if (token == JsonToken.START_OBJECT && "retweeted_status".equals(field)) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String retweetField = parser.getCurrentName();
+                        final JsonToken retweetToken = parser.nextToken();
+                        if (retweetToken == JsonToken.VALUE_NUMBER_INT
+                            && "in_reply_to_status_id".equals(retweetField)) {
+                            retweetInReplyTo = parser.getLongValue();
+                        } else if (retweetToken == JsonToken.VALUE_NUMBER_INT
+                            && "quoted_status_id".equals(retweetField)) {
+                            retweetQuoted = parser.getLongValue();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                unreadable++;
+            }
+            return;
+        }
+        synchronized (this) {
+            add(inReplyTo);
+            add(quoted);
+            add(retweetInReplyTo);
+            add(retweetQuoted);
+        }
+    }
+
+    /**
+     * Adds the tweets referred to by a tweet to the frontier.
+     *
+     * @param json The tweet's JSON.
+     */
+    void noteReferences(final String json) {
+        final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        noteReferences(bytes, 0, bytes.length);
+    }
+
+    private void add(final long id) {
+        if (id <= 0 || ! seen.add(id)) {
+            return;
+        }
+        referencesFound++;
+        if (size == frontier.length) {
+            frontier = Arrays.copyOf(frontier, size * 2);
+        }
+        frontier[size++] = id;
+    }
+
+    /**
+     * Takes the frontier, the IDs of the tweets to fetch at the next level, leaving
+     * it empty to collect the references of those tweets in turn.
+     *
+     * @return The IDs, in the order they were found.
+     */
+    synchronized long[] nextLevel() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (askedForAgain.contains(frontier[i])) {
+                referencesFound--;
+            } else {
+                frontier[kept++] = frontier[i];
+            }
+        }
+        final long[] level = Arrays.copyOf(frontier, kept);
+        size = 0;
+        return level;
+    }
+
+    /**
+     * @return The number of distinct tweets referred to that hadn't otherwise been seen.
+     */
+    synchronized long referencesFound() {
+        return referencesFound;
+    }
+
+    /**
+     * @return The number of tweets whose references couldn't be read.
+     */
+    synchronized long unreadable() {
+        return unreadable;
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A stand-in for the parts of Twitter's REST API this app uses, serving tweets
+ * from a corpus of tweet JSON (one per line, like <code>test.json</code>), so
+ * fetching can be benchmarked and soak-tested without spending real rate limit
+ * budget. It serves <code>statuses/lookup</code>, <code>statuses/show</code>,
+ * <code>application/rate_limit_status</code> and <code>oauth2/token</code>, and
+ * simulates:</p>
+ *
+ * <ul>
+ *     <li>rate limits, per set of credentials and endpoint, with Twitter's rate
+ *     limit headers, and 429 responses once the budget is spent;</li>
+ *     <li>missing tweets: IDs not in the corpus, and a given fraction of those that
+ *     are (chosen by ID, so the same IDs are missing every time);</li>
+ *     <li>latency, exponentially distributed around a given mean, so there's a
+ *     tail; and</li>
+ *     <li>errors: given fractions of calls fail with a 503 (over capacity), a 429
+ *     (throttled, before the budget is spent, with a reset a second away), a 401
+ *     (credentials revoked), or a 404 (no status found), or, for lookups, return
+ *     no tweets at all (<code>[]</code>).</li>
+ * </ul>
+ *
+ * <p>Optionally, IDs that aren't in the corpus can be answered with a tweet from
+ * the corpus given that ID instead, so any number of distinct IDs can be looked up.
+ * Credentials aren't checked, beyond there being some.</p>
+ *
+ * <p>It can be run on its own, and fetched from with <code>--api-base-url</code>,
+ * or started by {@link FetchTweets} itself with <code>--load-test</code>.</p>
+ */
+class StubTwitterServer implements Closeable {
+
+    /**
+     * What to serve and how, shared by the commandline of this server and of {@link FetchTweets}.
+     */
+    static class Options {
+
+        @Parameter(names = {"--stub-corpus"}, description = "File of tweets for the stub API to serve (one per line)")
+        String corpus = "./test.json";
+
+        @Parameter(names = {"--stub-port"}, description = "Port for the stub API to listen on (0 for any free port)")
+        int port = 0;
+
+        @Parameter(names = {"--stub-latency-ms"}, description = "Mean latency of the stub API's responses, in ms")
+        long latencyMillis = 50;
+
+        @Parameter(names = {"--stub-error-rate"}, description = "Fraction of stub API calls that fail with a 503")
+        double errorRate = 0;
+
+        @Parameter(names = {"--stub-throttle-rate"},
+                   description = "Fraction of stub API calls that are refused with a 429, within the rate limit")
+        double throttleRate = 0;
+
+        @Parameter(names = {"--stub-unauthorised-rate"},
+                   description = "Fraction of stub API calls that are refused with a 401, as if the credentials were revoked")
+        double unauthorisedRate = 0;
+
+        @Parameter(names = {"--stub-not-found-rate"},
+                   description = "Fraction of stub API calls that fail with a 404 (no status found)")
+        double notFoundRate = 0;
+
+        @Parameter(names = {"--stub-empty-rate"},
+                   description = "Fraction of stub API lookups that return no tweets ([]), as if all were missing")
+        double emptyRate = 0;
+
+        @Parameter(names = {"--stub-missing-rate"},
+                   description = "Fraction of the stub API's tweets to treat as missing (deleted, suspended, etc)")
+        double missingRate = 0;
+
+        @Parameter(names = {"--stub-rate-limit"},
+                   description = "Calls the stub API allows per 15 minute window, per endpoint and credentials")
+        int rateLimit = 900;
+
+        @Parameter(names = {"--stub-synthesise"},
+                   description = "Have the stub API answer IDs not in its corpus with a corpus tweet given that ID")
+        boolean synthesise = false;
+    }
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    /** Stands in for the ID in a synthetic tweet's JSON, to be replaced by the ID asked for. */
+    private static final long PLACEHOLDER_ID = -7_777_777_777_777_777L;
+
+    /** As Twitter's, which the {@link RateLimiter} assumes. */
+    private static final int WINDOW_SECONDS = (int) (RateLimiter.WINDOW_MS / 1000);
+
+    private static final String LOOKUP = "/statuses/lookup";
+    private static final String SHOW = "/statuses/show/:id";
+    private static final Pattern OAUTH_TOKEN = Pattern.compile("oauth_token=\"([^\"]*)\"");
+
+    private final Options options;
+    private final Map<Long, String> tweets = new HashMap<>();
+    private final List<String> templates = new ArrayList<>();
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder shows = new LongAdder();
+    private final LongAdder tweetsServed = new LongAdder();
+    private final LongAdder tweetsMissing = new LongAdder();
+    private final LongAdder errorsInjected = new LongAdder();
+    private final LongAdder throttlesInjected = new LongAdder();
+    private final LongAdder unauthorisedInjected = new LongAdder();
+    private final LongAdder notFoundInjected = new LongAdder();
+    private final LongAdder emptyInjected = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+
+    /**
+     * The calls remaining for one set of credentials at one endpoint in the current window.
+     */
+    private static final class Window {
+        long resetAtSeconds;
+        int remaining;
+    }
+
+    /**
+     * Loads the corpus and starts serving it, on the loopback address.
+     *
+     * @param options What to serve and how.
+     * @throws IOException if the corpus can't be read or the port can't be listened on.
+     */
+    StubTwitterServer(final Options options) throws IOException {
+        this.options = options;
+        loadCorpus();
+
+        final AtomicInteger handlerThreads = new AtomicInteger();
+        handlers = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "stub-twitter-" + handlerThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", options.port), 1024);
+        server.setExecutor(handlers);
+        server.createContext("/1.1/statuses/lookup.json", exchange -> handle(exchange, LOOKUP, this::lookup));
+        server.createContext("/1.1/statuses/show.json", exchange -> handle(exchange, SHOW, this::show));
+        server.createContext("/1.1/application/rate_limit_status.json", exchange -> handle(exchange, null, this::budget));
+        server.createContext("/oauth2/token", exchange -> handle(exchange, null,
+            (params, credentials) -> respond(200, "{\"token_type\":\"bearer\",\"access_token\":\"stub-app-token\"}")
+        ));
+        server.start();
+        System.err.printf(
+            "Stub Twitter API serving %d tweets at %s (latency ~%dms, %.1f%% errors, %.1f%% missing, %d calls per window)\n",
+            tweets.size(), baseURL(), options.latencyMillis,
+            (options.errorRate + options.throttleRate + options.unauthorisedRate + options.notFoundRate
+                + options.emptyRate) * 100,
+            options.missingRate * 100, options.rateLimit
+        );
+    }
+
+    /**
+     * @return The base URL of the stub's REST API, to give to Twitter4J as its REST base URL.
+     */
+    String baseURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/1.1/";
+    }
+
+    /**
+     * Makes up credentials to use with the stub, different for each name, so each
+     * has its own rate limit budget.
+     *
+     * @param name A name for the credentials, e.g. the credentials file they stand in for.
+     * @return Credentials in the form of a Twitter properties file.
+     */
+    static Properties credentials(final String name) {
+        final Properties credentials = new Properties();
+        credentials.setProperty("oauth.consumerKey", "stub-consumer-key");
+        credentials.setProperty("oauth.consumerSecret", "stub-consumer-secret");
+        credentials.setProperty("oauth.accessToken", "stub-" + name.replaceAll("\\W", "_"));
+        credentials.setProperty("oauth.accessTokenSecret", "stub-access-token-secret");
+        return credentials;
+    }
+
+    /**
+     * @return A summary of what has been served, for reporting.
+     */
+    String summary() {
+        return String.format(Locale.ROOT,
+            "[stub] %d lookup and %d show calls served %d tweets (%d missing); injected %d 503s, %d 429s, " +
+                "%d 401s, %d 404s and %d empty lookups; %d rate limited",
+            lookups.sum(), shows.sum(), tweetsServed.sum(), tweetsMissing.sum(), errorsInjected.sum(),
+            throttlesInjected.sum(), unauthorisedInjected.sum(), notFoundInjected.sum(), emptyInjected.sum(),
+            rateLimited.sum()
+        );
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    /**
+     * Reads the corpus, keeping each tweet's JSON by its ID, and a copy of each with
+     * a placeholder for its ID to synthesise other tweets from.
+     */
+    private void loadCorpus() throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(options.corpus), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final JsonNode tweet = JSON.readTree(line);
+                if (! tweet.has("id")) {
+                    continue;
+                }
+                tweets.put(tweet.get("id").asLong(), line);
+                final ObjectNode template = (ObjectNode) tweet;
+                template.put("id", PLACEHOLDER_ID);
+                template.put("id_str", Long.toString(PLACEHOLDER_ID));
+                templates.add(JSON.writeValueAsString(template));
+            }
+        }
+        if (tweets.isEmpty()) {
+            throw new IOException("No tweets found in " + options.corpus);
+        }
+    }
+
+    /**
+     * Serves a call to an endpoint.
+     */
+    private interface Endpoint {
+        /**
+         * @param params The call's parameters, from its query string and form body.
+         * @param credentials Identifies whose budget the call counts against.
+         * @return The response to send.
+         */
+        Response call(Map<String, String> params, String credentials) throws IOException;
+    }
+
+    /**
+     * A response's status code and JSON body.
+     */
+    private static final class Response {
+        final int status;
+        final String body;
+
+        Response(final int status, final String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static Response respond(final int status, final String body) {
+        return new Response(status, body);
+    }
+
+    private static Response error(final int status, final int code, final String message) {
+        return respond(status, "{\"errors\":[{\"code\":" + code + ",\"message\":\"" + message + "\"}]}");
+    }
+
+    /**
+     * Checks the call has credentials and is within its rate limit, simulates latency
+     * and errors, and then has the endpoint serve it.
+     *
+     * @param exchange The call.
+     * @param resource The rate limited resource it's a call to, or null if it's not rate limited.
+     * @param endpoint What serves it.
+     */
+    private void handle(final HttpExchange exchange, final String resource, final Endpoint endpoint) throws IOException {
+        Response response;
+        Window window = null;
+        boolean throttled = false;
+        try {
+            final String credentials = caller(exchange.getRequestHeaders().getFirst("Authorization"));
+            if (credentials == null) {
+                response = error(400, 215, "Bad Authentication data.");
+            } else if (resource != null && spend(window = window(credentials, resource)) < 0) {
+                rateLimited.increment();
+                response = error(429, 88, "Rate limit exceeded");
+            } else {
+                simulateLatency();
+                response = resource != null ? injectError(resource) : null;
+                throttled = response != null && response.status == 429;
+                if (response == null) {
+                    response = endpoint.call(params(exchange), credentials);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            response = error(500, 131, "Internal error: " + String.valueOf(e.getMessage()).replace('"', '\''));
+        }
+
+        final byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+        if (window != null && throttled) {
+            // a short lockout, so the caller waits a moment rather than the rest of the window
+            exchange.getResponseHeaders().set("x-rate-limit-limit", Integer.toString(options.rateLimit));
+            exchange.getResponseHeaders().set("x-rate-limit-remaining", "0");
+            exchange.getResponseHeaders().set("x-rate-limit-reset", Long.toString(System.currentTimeMillis() / 1000 + 1));
+        } else if (window != null) {
+            synchronized (window) {
+                exchange.getResponseHeaders().set("x-rate-limit-limit", Integer.toString(options.rateLimit));
+                exchange.getResponseHeaders().set("x-rate-limit-remaining", Integer.toString(Math.max(0, window.remaining)));
+                exchange.getResponseHeaders().set("x-rate-limit-reset", Long.toString(window.resetAtSeconds));
+            }
+        }
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return Who the call is from (the OAuth access token or bearer token), or null
+     *         if it has no credentials.
+     */
+    private static String caller(final String authorization) {
+        if (authorization == null) {
+            return null;
+        }
+        final Matcher token = OAUTH_TOKEN.matcher(authorization);
+        if (token.find()) {
+            return token.group(1);
+        }
+        return authorization.startsWith("Bearer ") || authorization.startsWith("Basic ") ? authorization : null;
+    }
+
+    /**
+     * @return The rate limit window of the credentials at the resource.
+     */
+    private Window window(final String credentials, final String resource) {
+        return windows.computeIfAbsent(credentials + " " + resource, k -> new Window());
+    }
+
+    /**
+     * Counts a call against a budget, starting a new window if the last has ended.
+     *
+     * @return The calls remaining, which is negative if the call is over the limit.
+     */
+    private int spend(final Window window) {
+        synchronized (window) {
+            final long now = System.currentTimeMillis() / 1000;
+            if (now >= window.resetAtSeconds) {
+                window.resetAtSeconds = now + WINDOW_SECONDS;
+                window.remaining = options.rateLimit;
+            }
+            return --window.remaining;
+        }
+    }
+
+    /**
+     * Picks whether a call to a rate limited endpoint fails, and how, by the given
+     * fractions of each kind of error.
+     *
+     * @param resource The endpoint called.
+     * @return The error to respond with, or null to serve the call.
+     */
+    private Response injectError(final String resource) {
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if ((roll -= options.errorRate) < 0) {
+            errorsInjected.increment();
+            return error(503, 130, "Over capacity");
+        }
+        if ((roll -= options.throttleRate) < 0) {
+            throttlesInjected.increment();
+            return error(429, 88, "Rate limit exceeded");
+        }
+        if ((roll -= options.unauthorisedRate) < 0) {
+            unauthorisedInjected.increment();
+            return error(401, 89, "Invalid or expired token.");
+        }
+        if ((roll -= options.notFoundRate) < 0) {
+            notFoundInjected.increment();
+            return error(404, 144, "No status found with that ID.");
+        }
+        if (resource.equals(LOOKUP) && roll - options.emptyRate < 0) {
+            emptyInjected.increment();
+            return respond(200, "[]");
+        }
+        return null;
+    }
+
+    private void simulateLatency() {
+        if (options.latencyMillis <= 0) {
+            return;
+        }
+        // exponentially distributed, for a realistic long tail
+        final double u = ThreadLocalRandom.current().nextDouble();
+        final long latency = (long) (-options.latencyMillis * Math.log(1 - u));
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * GET or POST statuses/lookup: the tweets with the given IDs that aren't missing.
+     */
+    private Response lookup(final Map<String, String> params, final String credentials) {
+        lookups.increment();
+        final String ids = params.get("id");
+        if (ids == null || ids.isEmpty()) {
+            return error(400, 44, "id parameter is invalid.");
+        }
+        final StringBuilder body = new StringBuilder(ids.length() * 200).append('[');
+        for (String id : ids.split(",")) {
+            final String tweet = tweet(Long.parseLong(id.trim()));
+            if (tweet == null) {
+                tweetsMissing.increment();
+                continue;
+            }
+            if (body.length() > 1) {
+                body.append(',');
+            }
+            body.append(tweet);
+            tweetsServed.increment();
+        }
+        return respond(200, body.append(']').toString());
+    }
+
+    /**
+     * GET statuses/show: the tweet with the given ID, or a 404 if it's missing.
+     */
+    private Response show(final Map<String, String> params, final String credentials) {
+        shows.increment();
+        final String tweet = params.containsKey("id") ? tweet(Long.parseLong(params.get("id"))) : null;
+        if (tweet == null) {
+            tweetsMissing.increment();
+            return error(404, 144, "No status found with that ID.");
+        }
+        tweetsServed.increment();
+        return respond(200, tweet);
+    }
+
+    /**
+     * GET application/rate_limit_status: the credentials' budgets for lookup and show.
+     */
+    private Response budget(final Map<String, String> params, final String credentials) {
+        final long now = System.currentTimeMillis() / 1000;
+        final StringBuilder body = new StringBuilder("{\"resources\":{\"statuses\":{");
+        for (String resource : new String[] {LOOKUP, SHOW}) {
+            int remaining = options.rateLimit;
+            long reset = now + WINDOW_SECONDS;
+            final Window window = windows.get(credentials + " " + resource);
+            if (window != null) {
+                synchronized (window) {
+                    if (now < window.resetAtSeconds) {
+                        remaining = Math.max(0, window.remaining);
+                        reset = window.resetAtSeconds;
+                    }
+                }
+            }
+            if (! resource.equals(LOOKUP)) {
+                body.append(',');
+            }
+            body.append('"').append(resource).append("\":{\"limit\":").append(options.rateLimit)
+                .append(",\"remaining\":").append(remaining).append(",\"reset\":").append(reset).append('}');
+        }
+        return respond(200, body.append("}}}").toString());
+    }
+
+    /**
+     * @return The JSON of the tweet with the given ID, or null if it's missing.
+     */
+    private String tweet(final long id) {
+        if (isMissing(id)) {
+            return null;
+        }
+        final String tweet = tweets.get(id);
+        if (tweet != null || ! options.synthesise) {
+            return tweet;
+        }
+        return templates.get(Math.floorMod(Long.hashCode(id), templates.size()))
+            .replace(Long.toString(PLACEHOLDER_ID), Long.toString(id));
+    }
+
+    /**
+     * @return True if the tweet is one of the fraction treated as missing, by a hash of its ID.
+     */
+    private boolean isMissing(final long id) {
+        final long hash = id * 0x9E3779B97F4A7C15L; // spread sequential IDs
+        return options.missingRate > 0 && Math.floorMod(hash ^ (hash >>> 32), 10000) < options.missingRate * 10000;
+    }
+
+    /**
+     * @return The call's parameters, from its query string and (for a POST) its form encoded body.
+     */
+    private static Map<String, String> params(final HttpExchange exchange) throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        addParams(params, exchange.getRequestURI().getRawQuery());
+        if ("POST".equals(exchange.getRequestMethod())) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            addParams(params, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void addParams(final Map<String, String> params, final String encoded) throws IOException {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String param : encoded.split("&")) {
+            final int equals = param.indexOf('=');
+            if (equals > 0) {
+                params.put(
+                    URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(param.substring(equals + 1), "UTF-8")
+                );
+            }
+        }
+    }
+
+    /**
+     * Runs the stub on its own, until killed.
+     */
+    public static void main(String[] args) throws IOException {
+        final Options options = new Options();
+        options.port = 8080;
+        final JCommander argsParser = JCommander.newBuilder()
+            .addObject(options)
+            .programName("java -cp 'lib/*' " + StubTwitterServer.class.getName())
+            .build();
+        try {
+            argsParser.parse(args);
+        } catch (ParameterException e) {
+            final StringBuilder sb = new StringBuilder();
+            argsParser.usage(sb);
+            System.out.println(sb.toString());
+            System.exit(-1);
+        }
+        final StubTwitterServer stub = new StubTwitterServer(options);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(stub.summary())));
+    }
+}
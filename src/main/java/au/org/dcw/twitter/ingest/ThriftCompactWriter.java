@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * <p>Writes structs in Thrift's compact protocol, which is how Parquet encodes its
+ * metadata (page headers and the file footer). Only what Parquet's metadata needs
+ * is supported: structs, lists, booleans, 32 and 64 bit integers and binary.</p>
+ *
+ * <p>Fields must be written in increasing order of ID within each struct, as
+ * Thrift's own generated code writes them.</p>
+ */
+final class ThriftCompactWriter extends ByteArrayOutputStream {
+
+    /* The compact protocol's type codes. */
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int I32 = 5;
+    static final int I64 = 6;
+    static final int BINARY = 8;
+    static final int LIST = 9;
+    static final int STRUCT = 12;
+
+    /** The ID of the last field written in each struct being written. */
+    private final Deque<Integer> lastFieldIDs = new ArrayDeque<>();
+    private int lastFieldID;
+
+    ThriftCompactWriter() {
+        super(256);
+    }
+
+    /**
+     * Starts a struct, either at the top level, as a list element or after {@link #structField(int)}.
+     */
+    ThriftCompactWriter structBegin() {
+        lastFieldIDs.push(lastFieldID);
+        lastFieldID = 0;
+        return this;
+    }
+
+    ThriftCompactWriter structEnd() {
+        write(0); // stop
+        lastFieldID = lastFieldIDs.pop();
+        return this;
+    }
+
+    ThriftCompactWriter i32Field(final int id, final int value) {
+        fieldHeader(id, I32);
+        return varint(zigzag(value));
+    }
+
+    ThriftCompactWriter i64Field(final int id, final long value) {
+        fieldHeader(id, I64);
+        return varint(zigzag(value));
+    }
+
+    ThriftCompactWriter boolField(final int id, final boolean value) {
+        fieldHeader(id, value ? TRUE : FALSE);
+        return this;
+    }
+
+    ThriftCompactWriter binaryField(final int id, final byte[] value) {
+        fieldHeader(id, BINARY);
+        return binary(value);
+    }
+
+    ThriftCompactWriter stringField(final int id, final String value) {
+        return binaryField(id, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Starts a field holding a struct, which is then written from {@link #structBegin()}.
+     */
+    ThriftCompactWriter structField(final int id) {
+        fieldHeader(id, STRUCT);
+        return this;
+    }
+
+    /**
+     * Starts a field holding a list, whose elements are then written with {@link #i32(int)},
+     * {@link #string(String)} or {@link #structBegin()}.
+     */
+    ThriftCompactWriter listField(final int id, final int elementType, final int size) {
+        fieldHeader(id, LIST);
+        if (size < 15) {
+            write(size << 4 | elementType);
+        } else {
+            write(0xF0 | elementType);
+            varint(size);
+        }
+        return this;
+    }
+
+    ThriftCompactWriter i32(final int value) {
+        return varint(zigzag(value));
+    }
+
+    ThriftCompactWriter string(final String value) {
+        return binary(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ThriftCompactWriter binary(final byte[] value) {
+        varint(value.length);
+        write(value, 0, value.length);
+        return this;
+    }
+
+    private void fieldHeader(final int id, final int type) {
+        final int delta = id - lastFieldID;
+        if (delta > 0 && delta <= 15) {
+            write(delta << 4 | type);
+        } else {
+            write(type);
+            varint(zigzag(id));
+        }
+        lastFieldID = id;
+    }
+
+    private ThriftCompactWriter varint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        write((int) value);
+        return this;
+    }
+
+    private static long zigzag(final int value) {
+        return (value << 1 ^ value >> 31) & 0xFFFFFFFFL;
+    }
+
+    private static long zigzag(final long value) {
+        return value << 1 ^ value >> 63;
+    }
+}
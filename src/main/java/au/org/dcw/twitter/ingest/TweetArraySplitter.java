@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import twitter4j.RateLimitStatus;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>Splits the JSON array of tweets in a lookup's response body into the tweets'
+ * raw JSON, in a single pass over the bytes, without parsing them into objects or
+ * decoding them into strings. Each tweet's top level "id" is read on the way.</p>
+ *
+ * <p>The split is done in place: the byte following each tweet (the ',' or ']'
+ * after it, in Twitter's compact JSON) is overwritten with a '\n', so the body
+ * becomes the tweets' lines of output, ready to be written out as they are. Only
+ * as much is checked as is needed to find the tweets' boundaries reliably (strings,
+ * escapes and nesting), so malformed JSON within a tweet is passed through.</p>
+ */
+final class TweetArraySplitter {
+
+    /** Lookups return up to 100 tweets. */
+    private static final int INITIAL_CAPACITY = 128;
+
+    private TweetArraySplitter() {
+    }
+
+    /**
+     * Splits a response body, in place.
+     *
+     * @param body The response body, which is overwritten.
+     * @param length The length of the body in the buffer.
+     * @param rateLimitStatus The rate limit status reported with the response (may be null).
+     * @return The tweets, in the body's buffer.
+     * @throws IOException if the body isn't a JSON array of objects.
+     */
+    static LookupResult split(final byte[] body, final int length, final RateLimitStatus rateLimitStatus)
+        throws IOException {
+
+        int[] starts = new int[INITIAL_CAPACITY];
+        int[] ends = new int[INITIAL_CAPACITY];
+        long[] ids = new long[INITIAL_CAPACITY];
+        int size = 0;
+
+        int i = skipWhitespace(body, 0, length);
+        if (i == length || body[i] != '[') {
+            throw new IOException("Expected a JSON array of tweets but got: " + preview(body, length));
+        }
+        i = skipWhitespace(body, i + 1, length);
+        if (i < length && body[i] == ']') {
+            return new LookupResult(body, starts, ends, ids, 0, rateLimitStatus);
+        }
+        while (true) {
+            if (i == length || body[i] != '{') {
+                throw new IOException("Expected a tweet at offset " + i + " of: " + preview(body, length));
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            starts[size] = i;
+
+            // find the end of the tweet, noting its ID on the way
+            int depth = 0;
+            boolean expectingKey = false;
+            long id = 0;
+            for (; i < length; i++) {
+                final byte c = body[i];
+                if (c == '"') {
+                    final int keyStart = i + 1;
+                    i = endOfString(body, i, length);
+                    if (depth == 1 && expectingKey) {
+                        expectingKey = false;
+                        if (i - keyStart == 2 && body[keyStart] == 'i' && body[keyStart + 1] == 'd') {
+                            id = readLong(body, i + 1, length);
+                        }
+                    }
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                    expectingKey = c == '{' && depth == 1;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        break;
+                    }
+                } else if (c == ',' && depth == 1) {
+                    expectingKey = true;
+                }
+            }
+            if (i >= length - 1) {
+                throw new IOException("Truncated JSON array of tweets: " + preview(body, length));
+            }
+
+            // replace what follows the tweet with a line terminator
+            final int end = i + 1;
+            byte next = body[end];
+            body[end] = '\n';
+            ends[size] = end;
+            ids[size] = id;
+            size++;
+            i = end + 1;
+            if (isWhitespace(next)) {
+                i = skipWhitespace(body, i, length);
+                if (i == length) {
+                    throw new IOException("Truncated JSON array of tweets: " + preview(body, length));
+                }
+                next = body[i++];
+            }
+            if (next == ']') {
+                return new LookupResult(body, starts, ends, ids, size, rateLimitStatus);
+            }
+            if (next != ',') {
+                throw new IOException("Expected ',' or ']' at offset " + (i - 1) + " of: " + preview(body, length));
+            }
+            i = skipWhitespace(body, i, length);
+        }
+    }
+
+    /**
+     * Reads the top level "id" of a tweet's JSON, e.g. a line of JSONL, in the same way
+     * {@link #split(byte[], int, RateLimitStatus)} does.
+     *
+     * @param json The buffer holding the tweet's JSON.
+     * @param offset Where the tweet starts in the buffer.
+     * @param length The length of the tweet's JSON.
+     * @return The tweet's ID, or 0 if it doesn't have one.
+     * @throws IOException if the JSON isn't an object.
+     */
+    static long idOf(final byte[] json, final int offset, final int length) throws IOException {
+        final int end = offset + length;
+        int i = skipWhitespace(json, offset, end);
+        if (i == end || json[i] != '{') {
+            throw new IOException("Expected a tweet but got: " + preview(json, offset, end));
+        }
+        int depth = 0;
+        boolean expectingKey = false;
+        for (; i < end; i++) {
+            final byte c = json[i];
+            if (c == '"') {
+                final int keyStart = i + 1;
+                i = endOfString(json, i, end);
+                if (depth == 1 && expectingKey) {
+                    expectingKey = false;
+                    if (i - keyStart == 2 && json[keyStart] == 'i' && json[keyStart + 1] == 'd') {
+                        return readLong(json, i + 1, end);
+                    }
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+                expectingKey = c == '{' && depth == 1;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    break;
+                }
+            } else if (c == ',' && depth == 1) {
+                expectingKey = true;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param body The JSON.
+     * @param quote The position of the opening quote of a string.
+     * @param length The length of the JSON.
+     * @return The position of the closing quote.
+     * @throws IOException if the string isn't closed.
+     */
+    private static int endOfString(final byte[] body, final int quote, final int length) throws IOException {
+        for (int i = quote + 1; i < length; i++) {
+            if (body[i] == '\\') {
+                i++; // skip whatever is escaped, including a quote
+            } else if (body[i] == '"') {
+                return i;
+            }
+        }
+        throw new IOException("Unterminated string in: " + preview(body, length));
+    }
+
+    /**
+     * Reads the number following a key, i.e. after the ':'.
+     *
+     * @return The number, or 0 if the value isn't a whole number.
+     */
+    private static long readLong(final byte[] body, final int afterKey, final int length) {
+        int i = skipWhitespace(body, afterKey, length);
+        if (i == length || body[i] != ':') {
+            return 0;
+        }
+        i = skipWhitespace(body, i + 1, length);
+        final boolean negative = i < length && body[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        for (; i < length && body[i] >= '0' && body[i] <= '9'; i++) {
+            value = value * 10 + (body[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static int skipWhitespace(final byte[] body, int i, final int length) {
+        while (i < length && isWhitespace(body[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(final byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * @return The start of the body, for error messages.
+     */
+    private static String preview(final byte[] body, final int length) {
+        return preview(body, 0, length);
+    }
+
+    private static String preview(final byte[] body, final int from, final int to) {
+        return new String(body, from, Math.min(to - from, 200), StandardCharsets.UTF_8);
+    }
+}
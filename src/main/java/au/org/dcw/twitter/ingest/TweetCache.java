@@ -0,0 +1,294 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>A persistent, size-bounded cache of tweets' raw JSON, keyed by tweet ID, so
+ * tweets fetched in earlier runs (or earlier in the GUI) needn't be fetched again.</p>
+ *
+ * <p>Entries are appended to a series of segment files in the cache directory, and
+ * an in-memory index maps each tweet ID to where its latest entry is, rebuilt by
+ * scanning the segments' entry headers when the cache is opened. When the segments
+ * together exceed the size bound, the oldest segment is deleted, and the index entries
+ * that point into it are dropped (found by the IDs each segment keeps a list of, so
+ * it's proportional to the segment, not the whole cache). To approximate LRU
+ * eviction, an entry that is read from the older half of the segments is copied into
+ * the newest, so tweets in regular use survive. Entries older than the time-to-live
+ * (if there is one) are treated as absent.</p>
+ *
+ * <p>Each entry is the tweet ID, the time it was fetched, the length of the JSON and
+ * the JSON itself as UTF-8. A partly written entry at the end of a segment, left by
+ * a crash, is truncated away when the cache is opened. Thread safe.</p>
+ */
+public class TweetCache implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int HEADER_BYTES = Long.BYTES + Long.BYTES + Integer.BYTES;
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final long ttlMillis;
+
+    /** Tweet ID -> segment number (high bits) and offset of the entry within it (low bits). */
+    private final LongLongHashMap index = new LongLongHashMap(1 << 16);
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * A segment file, and the IDs of the entries appended to it, which the index may
+     * since have pointed elsewhere.
+     */
+    private static final class Segment {
+        final FileChannel channel;
+        long[] ids = new long[1024];
+        int count;
+
+        Segment(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void add(final long id) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+        }
+    }
+
+    /**
+     * Opens (or creates) the cache in the given directory.
+     *
+     * @param dir The directory holding the cache's segments.
+     * @param maxBytes The most space the cache should take on disk.
+     * @param ttlMillis How long entries remain valid, or zero for no expiry.
+     * @throws IOException if there's a problem reading or creating the cache.
+     */
+    public TweetCache(final Path dir, final long maxBytes, final long ttlMillis) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, maxBytes / 8);
+        this.ttlMillis = ttlMillis;
+
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                final int number = Integer.parseInt(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())
+                );
+                segments.put(
+                    number, new Segment(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+                );
+            }
+        }
+        for (Map.Entry<Integer, Segment> segment : segments.entrySet()) {
+            totalBytes += loadSegment(segment.getKey(), segment.getValue());
+        }
+        if (segments.isEmpty()) {
+            startSegment(0);
+        }
+    }
+
+    /**
+     * Looks up a tweet's JSON.
+     *
+     * @param id The tweet's ID.
+     * @return The tweet's raw JSON or null if it's not in the cache (or has expired).
+     */
+    public synchronized String get(final long id) {
+        final long location = index.get(id);
+        if (location == LongLongHashMap.ABSENT) {
+            misses++;
+            return null;
+        }
+        final int segment = (int) (location >>> OFFSET_BITS);
+        try {
+            final FileChannel channel = segments.get(segment).channel;
+            final ByteBuffer header = readFully(channel, location & OFFSET_MASK, HEADER_BYTES);
+            final long storedId = header.getLong();
+            final long fetchedAt = header.getLong();
+            final int length = header.getInt();
+            if (storedId != id || (ttlMillis > 0 && System.currentTimeMillis() - fetchedAt > ttlMillis)) {
+                index.remove(id);
+                misses++;
+                return null;
+            }
+            final ByteBuffer json = readFully(channel, (location & OFFSET_MASK) + HEADER_BYTES, length);
+
+            // keep entries that are in use away from the end of the eviction queue
+            if (segment < segments.firstKey() + (segments.lastKey() - segments.firstKey() + 1) / 2) {
+                append(id, fetchedAt, json.array());
+            }
+            hits++;
+            return new String(json.array(), StandardCharsets.UTF_8);
+
+        } catch (IOException e) {
+            System.err.println("Failed to read tweet " + id + " from the cache: " + e.getMessage());
+            index.remove(id);
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Adds a tweet's JSON to the cache, evicting the oldest entries if the cache is full.
+     *
+     * @param id The tweet's ID.
+     * @param rawJSON The tweet's raw JSON.
+     */
+    public synchronized void put(final long id, final String rawJSON) {
+        try {
+            append(id, System.currentTimeMillis(), rawJSON.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Failed to write tweet " + id + " to the cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The number of lookups that found a valid entry.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that didn't.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    private void append(final long id, final long fetchedAt, final byte[] json) throws IOException {
+        Segment segment = segments.lastEntry().getValue();
+        if (segment.channel.size() + HEADER_BYTES + json.length > segmentBytes && segment.channel.size() > 0) {
+            segment = startSegment(segments.lastKey() + 1);
+        }
+        final FileChannel channel = segment.channel;
+        final ByteBuffer entry = ByteBuffer.allocate(HEADER_BYTES + json.length);
+        entry.putLong(id).putLong(fetchedAt).putInt(json.length).put(json);
+        entry.flip();
+
+        final long offset = channel.size();
+        long position = offset;
+        while (entry.hasRemaining()) {
+            position += channel.write(entry, position);
+        }
+        index.put(id, ((long) segments.lastKey() << OFFSET_BITS) | offset);
+        segment.add(id);
+        totalBytes += HEADER_BYTES + json.length;
+
+        while (totalBytes > maxBytes && segments.size() > 1) {
+            evictOldestSegment();
+        }
+    }
+
+    private Segment startSegment(final int number) throws IOException {
+        final Segment segment = new Segment(FileChannel.open(
+            segmentFile(number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        ));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private void evictOldestSegment() throws IOException {
+        final Map.Entry<Integer, Segment> oldest = segments.pollFirstEntry();
+        final long oldestNumber = oldest.getKey();
+        final Segment segment = oldest.getValue();
+        totalBytes -= segment.channel.size();
+        segment.channel.close();
+        Files.delete(segmentFile(oldest.getKey()));
+
+        // only those entries still pointing into it, as others have been copied or re-put since
+        for (int i = 0; i < segment.count; i++) {
+            final long location = index.get(segment.ids[i]);
+            if (location != LongLongHashMap.ABSENT && location >>> OFFSET_BITS == oldestNumber) {
+                index.remove(segment.ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Indexes the entries in a segment, truncating any partly written entry at its end.
+     *
+     * @return The size of the segment in bytes.
+     */
+    private long loadSegment(final int number, final Segment segment) throws IOException {
+        final FileChannel channel = segment.channel;
+        final long size = channel.size();
+        long position = 0;
+        while (position + HEADER_BYTES <= size) {
+            final ByteBuffer header = readFully(channel, position, HEADER_BYTES);
+            final long id = header.getLong();
+            header.getLong(); // fetched at
+            final int length = header.getInt();
+            if (id <= 0 || length < 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            index.put(id, ((long) number << OFFSET_BITS) | position);
+            segment.add(id);
+            position += HEADER_BYTES + length;
+        }
+        if (position < size) {
+            System.err.printf("Truncating %d bytes of partial entry from cache segment %d\n", size - position, number);
+            channel.truncate(position);
+        }
+        return position;
+    }
+
+    private Path segmentFile(final int number) {
+        return dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static ByteBuffer readFully(final FileChannel channel, final long position, final int length)
+        throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of cache segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>How tweets are laid out as rows of a Parquet file, or of a delimited text file:
+ * one column per field to keep (named with '_' in place of the '.' delimiters, e.g.
+ * <code>user_screen_name</code>), and how many rows go in each row group.</p>
+ *
+ * <p>A row is extracted from a tweet's JSON in a single streaming pass, steered by
+ * a trie of the fields, as the {@link TweetSanitiser} is, so the rest of the tweet is
+ * skipped without being parsed into objects. Scalar values are kept as they are
+ * (numbers, booleans and strings); objects and arrays (e.g. <code>coordinates</code>
+ * or <code>entities.media</code>) are kept as their JSON. A field found in each
+ * element of an array (e.g. <code>entities.hashtags.text</code>) is kept as a JSON
+ * array of the values found.</p>
+ *
+ * <p>If <code>text</code> or <code>full_text</code> is kept, it holds the tweet's full
+ * text, wherever that hides: the retweeted tweet's (extended) full text, prefixed with
+ * the "RT @user: " Twitter adds; the extended tweet's full text, if the tweet is
+ * truncated; or its <code>full_text</code> or <code>text</code>. The fields these are
+ * found in are noted in the same pass, whether they're kept or not, and even if an
+ * object holding them is kept whole (e.g. <code>retweeted_status</code>), as are
+ * fields kept as columns of their own within such an object.</p>
+ *
+ * <p>Thread safe, once constructed.</p>
+ */
+final class TweetColumns {
+
+    /**
+     * A value that is kept as JSON text.
+     */
+    static final class Json {
+        final String text;
+
+        Json(final String text) {
+            this.text = text;
+        }
+    }
+
+    private static final JsonFactory JSON = new ObjectMapper().getFactory();
+
+    /* The values noted to find a tweet's full text, and the fields they're found in. */
+    private static final int TEXT = 0;
+    private static final int FULL_TEXT = 1;
+    private static final int TRUNCATED = 2;
+    private static final int EXTENDED_FULL_TEXT = 3;
+    private static final int RETWEETED_TEXT = 4;
+    private static final int RETWEETED_FULL_TEXT = 5;
+    private static final int RETWEETED_EXTENDED_FULL_TEXT = 6;
+    private static final int RETWEETED_SCREEN_NAME = 7;
+    private static final String[] NOTED_FIELDS = {
+        "text", "full_text", "truncated", "extended_tweet.full_text", "retweeted_status.text",
+        "retweeted_status.full_text", "retweeted_status.extended_tweet.full_text", "retweeted_status.user.screen_name"
+    };
+
+    private final List<String> fields;
+    private final List<String> columnNames;
+    private final Node root = new Node();
+    private final int rowGroupRows;
+    private final int textColumn;
+    private final int fullTextColumn;
+
+    /**
+     * The fields to keep, as a trie keyed by field name. A node that is a field to
+     * keep has the index of its column, and one that is to be noted has the index
+     * of its note.
+     */
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        int column = -1;
+        int note = -1;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param fieldsToKeep The fields to keep as columns, with implied structure (via '.' delimiters).
+     * @param rowGroupRows The most rows to put in each row group.
+     */
+    TweetColumns(final List<String> fieldsToKeep, final int rowGroupRows) {
+        this.fields = new ArrayList<>(new LinkedHashSet<>(fieldsToKeep));
+        this.columnNames = new ArrayList<>(fields.size());
+        this.rowGroupRows = Math.max(1, rowGroupRows);
+        for (int i = 0; i < fields.size(); i++) {
+            nodeFor(fields.get(i)).column = i;
+            columnNames.add(fields.get(i).replace('.', '_'));
+        }
+        this.textColumn = fields.indexOf("text");
+        this.fullTextColumn = fields.indexOf("full_text");
+        if (resolvesText()) {
+            for (int i = 0; i < NOTED_FIELDS.length; i++) {
+                nodeFor(NOTED_FIELDS[i]).note = i;
+            }
+        }
+    }
+
+    private Node nodeFor(final String field) {
+        Node node = root;
+        for (String name : field.split("\\.")) {
+            node = node.children.computeIfAbsent(name, k -> new Node());
+        }
+        return node;
+    }
+
+    private boolean resolvesText() {
+        return textColumn >= 0 || fullTextColumn >= 0;
+    }
+
+    /**
+     * @return The number of columns.
+     */
+    int columnCount() {
+        return fields.size();
+    }
+
+    /**
+     * @param column The index of a column.
+     * @return The column's name.
+     */
+    String columnName(final int column) {
+        return columnNames.get(column);
+    }
+
+    /**
+     * @param column The index of a column.
+     * @return True if the column is a creation date, which is kept as a timestamp.
+     */
+    boolean isTimestamp(final int column) {
+        final String field = fields.get(column);
+        return field.equals("created_at") || field.endsWith(".created_at");
+    }
+
+    /**
+     * @return The most rows to put in each row group.
+     */
+    int rowGroupRows() {
+        return rowGroupRows;
+    }
+
+    /**
+     * Extracts a row from a tweet's JSON.
+     *
+     * @param json The buffer holding the tweet's JSON, as UTF-8.
+     * @param offset Where the tweet starts in the buffer.
+     * @param length The length of the tweet's JSON.
+     * @param row Where to put the value of each column: a {@link Long}, {@link Double},
+     *            {@link Boolean}, {@link String}, {@link Json}, or null if it's missing.
+     * @throws IOException if the JSON isn't an object, or can't be parsed.
+     */
+    void extract(final byte[] json, final int offset, final int length, final Object[] row) throws IOException {
+        Arrays.fill(row, null);
+        final Object[] notes = resolvesText() ? new Object[NOTED_FIELDS.length] : null;
+        try (JsonParser parser = JSON.createParser(json, offset, length)) {
+            final JsonToken first = parser.nextToken();
+            if (first != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object but found " + (first == null ? "nothing" : first));
+            }
+            readObject(parser, root, row, notes, false);
+        }
+        if (notes != null) {
+            final String fullText = fullText(notes);
+            if (textColumn >= 0) {
+                row[textColumn] = fullText;
+            }
+            if (fullTextColumn >= 0) {
+                row[fullTextColumn] = fullText;
+            }
+        }
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] instanceof List) {
+                row[i] = new Json(toJSONArray((List<?>) row[i]));
+            }
+        }
+    }
+
+    private void readObject(
+        final JsonParser parser,
+        final Node node,
+        final Object[] row,
+        final Object[] notes,
+        final boolean inArray
+    ) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final Node child = node.children.get(parser.getCurrentName());
+            final JsonToken token = parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+            } else if (child.column >= 0 || child.note >= 0 && token.isScalarValue()) {
+                final Object value;
+                if (child.children.isEmpty() || token.isScalarValue()) {
+                    value = readValue(parser, token);
+                } else {
+                    // kept whole, but with fields within it to keep or note, so read it twice
+                    final TokenBuffer buffer = new TokenBuffer(parser);
+                    buffer.copyCurrentStructure(parser);
+                    try (JsonParser copy = buffer.asParser()) {
+                        value = readValue(copy, copy.nextToken());
+                    }
+                    try (JsonParser copy = buffer.asParser()) {
+                        readStructure(copy, copy.nextToken(), child, row, notes, inArray);
+                    }
+                }
+                if (child.column >= 0 && inArray) {
+                    appendTo(row, child.column, value);
+                } else if (child.column >= 0) {
+                    row[child.column] = value;
+                }
+                if (child.note >= 0 && ! inArray) {
+                    notes[child.note] = value;
+                }
+            } else {
+                readStructure(parser, token, child, row, notes, inArray);
+            }
+        }
+    }
+
+    /**
+     * Reads the fields to keep or note from within an object or array.
+     */
+    private void readStructure(
+        final JsonParser parser,
+        final JsonToken token,
+        final Node node,
+        final Object[] row,
+        final Object[] notes,
+        final boolean inArray
+    ) throws IOException {
+        if (token == JsonToken.START_OBJECT) {
+            readObject(parser, node, row, notes, inArray);
+        } else if (token == JsonToken.START_ARRAY) {
+            // apply the rest of the path to each object in the array
+            JsonToken element;
+            while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (element == JsonToken.START_OBJECT) {
+                    readObject(parser, node, row, notes, true);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * @return The tweet's full text, from the values noted, or null if it has no text.
+     */
+    private static String fullText(final Object[] notes) {
+        final String retweeted = firstOf(notes, RETWEETED_EXTENDED_FULL_TEXT, RETWEETED_FULL_TEXT, RETWEETED_TEXT);
+        if (retweeted != null && notes[RETWEETED_SCREEN_NAME] instanceof String) {
+            return "RT @" + notes[RETWEETED_SCREEN_NAME] + ": " + retweeted;
+        }
+        if (Boolean.TRUE.equals(notes[TRUNCATED]) && notes[EXTENDED_FULL_TEXT] instanceof String) {
+            return (String) notes[EXTENDED_FULL_TEXT];
+        }
+        return firstOf(notes, FULL_TEXT, TEXT);
+    }
+
+    /**
+     * @return The first of the given notes that is a string, or null.
+     */
+    private static String firstOf(final Object[] notes, final int... candidates) {
+        for (int note : candidates) {
+            if (notes[note] instanceof String) {
+                return (String) notes[note];
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendTo(final Object[] row, final int column, final Object value) {
+        if (row[column] == null) {
+            row[column] = new ArrayList<>();
+        }
+        ((List<Object>) row[column]).add(value);
+    }
+
+    private static Object readValue(final JsonParser parser, final JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+                return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+                    ? new Json(parser.getText())
+                    : (Object) parser.getLongValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_STRING:
+                return parser.getText();
+            case START_OBJECT:
+            case START_ARRAY:
+                final StringWriter text = new StringWriter(256);
+                try (JsonGenerator generator = JSON.createGenerator(text)) {
+                    generator.copyCurrentStructure(parser);
+                }
+                return new Json(text.toString());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The values found in an array's elements, as a JSON array.
+     */
+    private static String toJSONArray(final List<?> values) {
+        final StringBuilder sb = new StringBuilder("[");
+        for (Object value : values) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            if (value instanceof String) {
+                sb.append('"').append(JsonStringEncoder.getInstance().quoteAsString((String) value)).append('"');
+            } else if (value instanceof Json) {
+                sb.append(((Json) value).text);
+            } else {
+                sb.append(value);
+            }
+        }
+        return sb.append(']').toString();
+    }
+}
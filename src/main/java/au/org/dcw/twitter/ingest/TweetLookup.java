@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import twitter4j.Twitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * <p>Looks up tweets for the GUI the way {@link FetchTweets} does, with a
+ * {@link LookupEngine}: tweets in the store or cache are taken from there, tweets
+ * known to be missing are skipped, and the rest are looked up in batches, paced by
+ * a {@link RateLimiter}, with transient failures retried and refused batches split.
+ * Tweets retrieved are added to the store and cache, and tweets not returned to the
+ * {@link MissingTweets}.</p>
+ *
+ * <p>Each tweet found is handed to a {@link Listener}, on the output's own thread.
+ * IDs that can't be looked up, even after retrying, are counted as {@link #failed()}
+ * rather than {@link #notFound() not found}.</p>
+ */
+public final class TweetLookup implements Closeable {
+
+    /** The most IDs Twitter's lookup accepts. */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Receives the tweets found.
+     */
+    public interface Listener {
+        /**
+         * @param id The tweet's ID.
+         * @param json The tweet's raw JSON, as UTF-8.
+         */
+        void found(long id, byte[] json);
+    }
+
+    private final AsyncTweetWriter output;
+    private final LookupEngine engine;
+
+    /* Only touched by the thread adding IDs, but read by others. */
+    private volatile long added;
+    private volatile long foundLocally;
+    private volatile long knownMissing;
+
+    /**
+     * Constructor
+     *
+     * @param twitter The Twitter API instance to look tweets up with.
+     * @param store Tweets stored previously, checked first, and added to (may be null).
+     * @param cache Tweets fetched previously, checked before asking Twitter, and added to (may be null).
+     * @param missing Tweets known to be missing, which are skipped, and added to (may be null).
+     * @param listener What to hand the tweets found to.
+     */
+    public TweetLookup(
+        final Twitter twitter,
+        final TweetStore store,
+        final TweetCache cache,
+        final MissingTweets missing,
+        final Listener listener
+    ) {
+        this.output = new AsyncTweetWriter((out, compression, continuing) -> new ListenerStream(listener));
+        this.engine = new LookupEngine(
+            Collections.singletonMap("gui", new RawLookupTransport(twitter)), BATCH_SIZE, 1, output
+        );
+        engine.setStore(store);
+        engine.setCache(cache);
+        engine.setMissing(missing);
+        engine.start();
+    }
+
+    /**
+     * Fetches a tweet, from the store or cache if it's there, otherwise adding it to
+     * those to be looked up, unless it's known to be missing. Waits if the lookups have
+     * fallen behind. Not thread safe: add IDs from a single thread.
+     *
+     * @param id The tweet's ID.
+     * @throws IOException if lookups have stopped, e.g. as Twitter refused the credentials.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void add(final long id) throws IOException, InterruptedException {
+        switch (engine.fetch(added, id)) {
+            case FROM_STORE:
+            case FROM_CACHE:
+                foundLocally++;
+                break;
+            case KNOWN_MISSING:
+                knownMissing++;
+                break;
+            default:
+                break;
+        }
+        added++;
+    }
+
+    /**
+     * Waits for the tweets added to be looked up and handed to the listener.
+     *
+     * @throws IOException if lookups stopped, e.g. as Twitter refused the credentials.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void finish() throws IOException, InterruptedException {
+        engine.finish();
+        output.close();
+    }
+
+    /**
+     * Stops looking tweets up, e.g. when the fetch is cancelled, once the lookups
+     * already under way are done. Does nothing once finished. Call from the thread
+     * adding IDs.
+     *
+     * @throws IOException if the tweets found can't be handed over.
+     */
+    @Override
+    public void close() throws IOException {
+        engine.abandon();
+        output.close();
+    }
+
+    /**
+     * @return The number of IDs done with so far: found, not found or failed.
+     */
+    public long done() {
+        return foundLocally + knownMissing + engine.idsDone();
+    }
+
+    /**
+     * @return The number of tweets found so far, locally or by looking them up.
+     */
+    public long found() {
+        return foundLocally + engine.tweetsReturned();
+    }
+
+    /**
+     * @return The number of tweets not found so far, as Twitter didn't return them,
+     *         or they were already known to be missing.
+     */
+    public long notFound() {
+        return knownMissing + engine.idsDone() - engine.tweetsReturned() - engine.idsGivenUp();
+    }
+
+    /**
+     * @return The number of IDs that couldn't be looked up so far, even after retrying.
+     */
+    public long failed() {
+        return engine.idsGivenUp();
+    }
+
+    /**
+     * Hands each tweet written to the output to the listener, in place of a file.
+     */
+    private static final class ListenerStream extends JsonLinesOutputStream {
+
+        private final Listener listener;
+
+        ListenerStream(final Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        protected void line(final byte[] line, final int offset, final int length) throws IOException {
+            final long id = TweetArraySplitter.idOf(line, offset, length);
+            listener.found(id, Arrays.copyOfRange(line, offset, offset + length));
+        }
+
+        /**
+         * Hands over any last tweet, leaving <code>stdout</code>, which the output
+         * would otherwise go to, open.
+         */
+        @Override
+        public void close() throws IOException {
+            endLastLine();
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Strips a tweet's JSON down to a specified set of fields, e.g. to avoid keeping
+ * sensitive information. Fields are named with their path from the top of the
+ * tweet, with '.' delimiters, e.g. <code>user.screen_name</code>. A field holding an
+ * array of objects (e.g. <code>entities.media</code>) has the rest of the path
+ * applied to each object in it.</p>
+ *
+ * <p>As a courtesy to those who don't use Twitter's extended mode, the sanitised
+ * tweet's "text" is replaced by the full text of the tweet, if that has been kept.</p>
+ *
+ * <p>The fields to keep are compiled into a trie which steers a token by token copy
+ * of the tweet from a parser to a generator, skipping the fields that aren't wanted
+ * without ever building a tree of the tweet. Where the kept fields of interest start
+ * and end in the output is noted as they're copied, so the full text can be spliced
+ * into "text" afterwards. The output is the same as parsing the tweet into a
+ * {@link com.fasterxml.jackson.databind.JsonNode} tree, removing the unwanted fields,
+ * setting "text" and serialising the tree again, as earlier versions did. Tweets with
+ * repeated field names are not de-duplicated, though.</p>
+ *
+ * <p>A tweet that is to be sanitised repeatedly, with different fields to keep (e.g.
+ * as they're edited in the GUI), can be {@link #tokenise(String) tokenised} once, so
+ * it isn't parsed again each time.</p>
+ *
+ * <p>Thread safe: each thread reuses its own output buffer.</p>
+ */
+@SuppressWarnings("unchecked")
+public class TweetSanitiser {
+
+    private static final JsonFactory JSON = new ObjectMapper().getFactory();
+    private static final ThreadLocal<Filter> FILTERS = ThreadLocal.withInitial(Filter::new);
+
+    private final Trie fieldsToKeep;
+
+    /**
+     * Constructor
+     *
+     * @param fieldsToKeep The list of field names with implied structure (via '.' delimiters).
+     */
+    public TweetSanitiser(final List<String> fieldsToKeep) {
+        this.fieldsToKeep = Trie.compile(buildFieldStructure(fieldsToKeep));
+    }
+
+    /**
+     * Constructs a nested map of the fields to retain in the stripped version
+     * of the the Tweet's JSON.
+     *
+     * @param cleanFields The list of field names with implied structure (via '.' delimiters).
+     * @return A nested map version of <code>cleanFields</code>.
+     */
+    public static Map<String, Object> buildFieldStructure(final List<String> cleanFields) {
+        Map<String, Object> map = Maps.newTreeMap();
+
+        for (String f : cleanFields) {
+            if (! f.contains(".")) {
+                map.put(f, null);
+            } else {
+                final String head = f.substring(0, f.indexOf('.'));
+                final String tail = f.substring(f.indexOf('.') + 1);
+                final Map<String, Object> subMap = buildFieldStructure(Collections.singletonList(tail));
+                if (map.containsKey(head)) {
+                    final Map<String, Object> existingMap = (Map<String, Object>) map.get(head);
+                    existingMap.putAll(subMap);
+                } else {
+                    map.put(head, subMap);
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Parses a tweet's JSON into a sequence of tokens, which can be sanitised
+     * repeatedly without parsing the JSON again.
+     *
+     * @param tweetJSON The Tweet's raw JSON.
+     * @return The tweet's tokens.
+     * @throws IOException if the JSON can't be parsed.
+     */
+    public static TokenBuffer tokenise(final String tweetJSON) throws IOException {
+        try (JsonParser parser = JSON.createParser(tweetJSON)) {
+            final TokenBuffer tokens = new TokenBuffer(parser);
+            if (parser.nextToken() != null) {
+                tokens.copyCurrentStructure(parser);
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * Strips sensitive elements from the Tweet's raw JSON.
+     *
+     * @param tweetJSON The Tweet's raw JSON.
+     * @return The desensitised JSON.
+     * @throws IOException if the JSON can't be parsed.
+     */
+    public String sanitise(final String tweetJSON) throws IOException {
+        return sanitise(JSON.createParser(tweetJSON));
+    }
+
+    /**
+     * Strips sensitive elements from a Tweet that has already been tokenised.
+     *
+     * @param tweet The Tweet's tokens, from {@link #tokenise(String)}.
+     * @return The desensitised JSON.
+     * @throws IOException if the tokens aren't a JSON object.
+     */
+    public String sanitise(final TokenBuffer tweet) throws IOException {
+        return sanitise(tweet.asParser());
+    }
+
+    private String sanitise(final JsonParser tweet) throws IOException {
+        final Filter filter = FILTERS.get();
+        try (JsonParser parser = tweet) {
+            final JsonToken first = parser.nextToken();
+            if (first != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object but found " + (first == null ? "nothing" : first));
+            }
+            filter.copy(parser, fieldsToKeep);
+        }
+
+        /* As of 2017-09-27, Twitter is progressively rolling out 280 character tweets,
+         * referred to as "extended tweets", and "text" is replaced by "full_text". I am
+         * using Twitter4J in extended mode, but as a courtesy to those still running on
+         * standard mode, my "sanitised" objects will have "full_text" copied to "text", if
+         * there is no content there already.
+         *
+         * TODO think of the myriad ways in which the full_text will be hidden and how to extract it
+         * - full_text
+         * - extended_tweet.full_text
+         * - retweeted_status.extended_tweet.full_text
+         * - retweeted_status.full_text
+         */
+        int fullText = -1;
+        if (filter.has(FULL_TEXT)) {
+            fullText = FULL_TEXT;
+        }
+        if (filter.truncated && filter.has(EXTENDED_FULL_TEXT)) {
+            fullText = EXTENDED_FULL_TEXT;
+        }
+        // not quite right: missing "RT @originalPoster "
+        if (filter.has(RETWEETED_FULL_TEXT)) {
+            fullText = RETWEETED_FULL_TEXT;
+        }
+        if (filter.has(RETWEETED_EXTENDED_FULL_TEXT)) {
+            fullText = RETWEETED_EXTENDED_FULL_TEXT;
+        }
+
+        return fullText < 0 ? filter.output() : filter.outputWithText(fullText);
+    }
+
+    /* The values noted while copying a tweet: its text and where the full text might be. */
+    private static final int TEXT = 0;
+    private static final int FULL_TEXT = 1;
+    private static final int EXTENDED_FULL_TEXT = 2;
+    private static final int RETWEETED_FULL_TEXT = 3;
+    private static final int RETWEETED_EXTENDED_FULL_TEXT = 4;
+    private static final int TRUNCATED = 5;
+    private static final int NOTHING_OF_NOTE = -1;
+
+    /* Where the object being copied is in the tweet, as far as the values of note are concerned. */
+    private static final int ROOT = 0;
+    private static final int EXTENDED_TWEET = 1;
+    private static final int RETWEETED_STATUS = 2;
+    private static final int RETWEETED_EXTENDED_TWEET = 3;
+    private static final int ELSEWHERE = 4;
+
+    /**
+     * @return Which value of note the given field is, or {@link #NOTHING_OF_NOTE}.
+     */
+    private static int valueOfNote(final int place, final String field) {
+        switch (place) {
+            case ROOT:
+                return "text".equals(field) ? TEXT
+                    : "full_text".equals(field) ? FULL_TEXT
+                    : "truncated".equals(field) ? TRUNCATED
+                    : NOTHING_OF_NOTE;
+            case EXTENDED_TWEET:
+                return "full_text".equals(field) ? EXTENDED_FULL_TEXT : NOTHING_OF_NOTE;
+            case RETWEETED_STATUS:
+                return "full_text".equals(field) ? RETWEETED_FULL_TEXT : NOTHING_OF_NOTE;
+            case RETWEETED_EXTENDED_TWEET:
+                return "full_text".equals(field) ? RETWEETED_EXTENDED_FULL_TEXT : NOTHING_OF_NOTE;
+            default:
+                return NOTHING_OF_NOTE;
+        }
+    }
+
+    /**
+     * @return Where an object held in the given field will be.
+     */
+    private static int placeOf(final int parent, final String field) {
+        if (parent == ROOT && "extended_tweet".equals(field)) return EXTENDED_TWEET;
+        if (parent == ROOT && "retweeted_status".equals(field)) return RETWEETED_STATUS;
+        if (parent == RETWEETED_STATUS && "extended_tweet".equals(field)) return RETWEETED_EXTENDED_TWEET;
+        return ELSEWHERE;
+    }
+
+    /**
+     * The fields to keep, as a trie keyed by field name. A field that is kept
+     * in its entirety maps to {@link #KEEP_ALL}.
+     */
+    private static final class Trie {
+        static final Trie KEEP_ALL = new Trie(null);
+
+        final Map<String, Trie> children;
+
+        private Trie(final Map<String, Trie> children) {
+            this.children = children;
+        }
+
+        static Trie compile(final Map<String, Object> fieldStructure) {
+            final Map<String, Trie> children = new HashMap<>();
+            fieldStructure.forEach((field, subFields) ->
+                children.put(field, subFields == null ? KEEP_ALL : compile((Map<String, Object>) subFields))
+            );
+            return new Trie(children);
+        }
+
+        Trie child(final String field) {
+            return children == null ? KEEP_ALL : children.get(field);
+        }
+    }
+
+    /**
+     * Copies the kept parts of a tweet into a reusable buffer, noting where the
+     * values of note are in the output.
+     */
+    private static final class Filter {
+        final Output out = new Output();
+        final int[] starts = new int[TRUNCATED];
+        final int[] ends = new int[TRUNCATED];
+        boolean truncated;
+        JsonGenerator generator;
+
+        void copy(final JsonParser parser, final Trie toKeep) throws IOException {
+            out.length = 0;
+            Arrays.fill(starts, -1);
+            truncated = false;
+            generator = JSON.createGenerator(out);
+            try {
+                copyObject(parser, toKeep, ROOT);
+            } finally {
+                generator.close();
+                generator = null;
+            }
+        }
+
+        boolean has(final int value) {
+            return starts[value] >= 0;
+        }
+
+        String output() {
+            return new String(out.chars, 0, out.length);
+        }
+
+        /**
+         * @return The output with the given value copied into "text", in place of the
+         *         existing text or, if there isn't any, at the end of the tweet.
+         */
+        String outputWithText(final int fullText) {
+            final char[] chars = out.chars;
+            final int valueStart = starts[fullText];
+            final int valueLength = ends[fullText] - valueStart;
+            final StringBuilder sb = new StringBuilder(out.length + valueLength + 8);
+            if (has(TEXT)) {
+                sb.append(chars, 0, starts[TEXT])
+                    .append(chars, valueStart, valueLength)
+                    .append(chars, ends[TEXT], out.length - ends[TEXT]);
+            } else {
+                // the root object can't be empty, as it holds the full text
+                sb.append(chars, 0, out.length - 1)
+                    .append(",\"text\":")
+                    .append(chars, valueStart, valueLength)
+                    .append('}');
+            }
+            return sb.toString();
+        }
+
+        private void copyObject(final JsonParser parser, final Trie toKeep, final int place) throws IOException {
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final Trie subFields = toKeep.child(field);
+                final JsonToken token = parser.nextToken();
+                if (subFields == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+                generator.writeFieldName(field);
+                final int value = valueOfNote(place, field);
+                if (value == NOTHING_OF_NOTE) {
+                    copyValue(parser, token, subFields, placeOf(place, field));
+                } else if (value == TRUNCATED) {
+                    truncated = asBoolean(parser, token);
+                    copyValue(parser, token, subFields, ELSEWHERE);
+                } else {
+                    // the generator writes the ':' separator along with the value
+                    starts[value] = position() + 1;
+                    copyValue(parser, token, subFields, ELSEWHERE);
+                    ends[value] = position();
+                }
+            }
+            generator.writeEndObject();
+        }
+
+        private void copyArray(final JsonParser parser, final Trie toKeep) throws IOException {
+            generator.writeStartArray();
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                copyValue(parser, token, toKeep, ELSEWHERE);
+            }
+            generator.writeEndArray();
+        }
+
+        /**
+         * Copies a value, stripping objects (including those in arrays) down to the fields to keep.
+         */
+        private void copyValue(final JsonParser parser, final JsonToken token, final Trie toKeep, final int place)
+            throws IOException {
+            if (token == JsonToken.START_OBJECT && (toKeep != Trie.KEEP_ALL || place != ELSEWHERE)) {
+                copyObject(parser, toKeep, place);
+            } else if (token == JsonToken.START_ARRAY && toKeep != Trie.KEEP_ALL) {
+                copyArray(parser, toKeep);
+            } else {
+                generator.copyCurrentStructure(parser);
+            }
+        }
+
+        private int position() {
+            return out.length + generator.getOutputBuffered();
+        }
+
+        /**
+         * Reads a value as a boolean the way {@link com.fasterxml.jackson.databind.JsonNode#asBoolean(boolean)}
+         * would, defaulting to false.
+         */
+        private static boolean asBoolean(final JsonParser parser, final JsonToken token) throws IOException {
+            switch (token) {
+                case VALUE_TRUE:
+                    return true;
+                case VALUE_NUMBER_INT:
+                    return parser.getBigIntegerValue().signum() != 0;
+                case VALUE_STRING:
+                    return "true".equals(parser.getText().trim());
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A growable char buffer, like a {@link java.io.CharArrayWriter} without the locking
+     * and with its contents accessible.
+     */
+    private static final class Output extends Writer {
+        char[] chars = new char[16 * 1024];
+        int length;
+
+        @Override
+        public void write(final char[] source, final int offset, final int count) {
+            ensureCapacity(count);
+            System.arraycopy(source, offset, chars, length, count);
+            length += count;
+        }
+
+        @Override
+        public void write(final String source, final int offset, final int count) {
+            ensureCapacity(count);
+            source.getChars(offset, offset + count, chars, length);
+            length += count;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void ensureCapacity(final int count) {
+            if (length + count > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + count));
+            }
+        }
+    }
+}
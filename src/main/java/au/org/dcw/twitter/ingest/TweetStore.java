@@ -0,0 +1,677 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * <p>An append-only store of tweets' raw JSON, with an index by tweet ID, so a
+ * collection can be looked up by ID, or scanned in ID order, without reading all
+ * of it. Unlike the {@link TweetCache}, nothing is ever evicted.</p>
+ *
+ * <p>Tweets are appended to the active segment, a plain JSONL file in the store's
+ * directory, indexed in memory. Once it reaches the segment size (or the store is
+ * closed) the segment is sealed: its index is sorted by tweet ID and written beside
+ * it, and from then on the index is memory mapped and binary searched, so looking a
+ * tweet up takes O(log n) per segment without reading the index into memory. The
+ * newest copy of a tweet wins, so a tweet stored again supersedes its earlier copies.
+ * Compaction merges all the sealed segments into one, in ID order, dropping the
+ * superseded copies.</p>
+ *
+ * <p>A segment whose index is missing or doesn't match it, e.g. after a crash, is
+ * re-indexed from its JSON when the store is opened, first truncating any partly
+ * written line at its end. Compaction writes the merged segment under a new number,
+ * higher than those it replaces, before deleting them, so it can be interrupted at
+ * any point without losing tweets.</p>
+ *
+ * <p>The store's directory is locked while it's open, as another store appending to
+ * it, or re-indexing the active segment as if it had crashed, would corrupt it. Thread
+ * safe, but only one process (and one store) can have a directory open at once.</p>
+ */
+public class TweetStore implements Closeable {
+
+    /**
+     * Receives the tweets found by a scan.
+     */
+    public interface Visitor {
+        /**
+         * @param id The tweet's ID.
+         * @param line The tweet's JSON as UTF-8, with its terminating '\n'.
+         * @throws IOException if the tweet can't be dealt with, which stops the scan.
+         */
+        void visit(long id, byte[] line) throws IOException;
+    }
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String DATA_SUFFIX = ".jsonl";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String LOCK_FILE = "store.lock";
+
+    /**
+     * The directories of the stores open in this process, which must be checked before
+     * locking, as closing another channel to a lock file would release its lock.
+     */
+    private static final Set<Path> OPEN_DIRS = new HashSet<>();
+    private static final int INDEX_MAGIC = 0x54574958; // "TWIX"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int ENTRY_BYTES = Long.BYTES + Long.BYTES;
+    private static final int LENGTH_BITS = 24;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final FileChannel lockFile;
+    private final FileLock lock;
+    private final TreeMap<Integer, Segment> sealed = new TreeMap<>();
+
+    /** The segment being appended to, if any, with its index: tweet ID -> offset (high bits) and length. */
+    private int activeNumber;
+    private FileChannel active;
+    private long activeSize;
+    private final LongLongHashMap activeIndex = new LongLongHashMap(1 << 12);
+    private long hits;
+
+    /**
+     * A sealed segment: its JSONL and its memory mapped index, which is a header followed
+     * by an entry per tweet, sorted by ID: the tweet's ID, and the offset (high bits) and
+     * length of its JSON in the segment.
+     */
+    private static final class Segment {
+        final int number;
+        final FileChannel data;
+        final MappedByteBuffer index;
+        final int count;
+
+        Segment(final int number, final FileChannel data, final MappedByteBuffer index) {
+            this.number = number;
+            this.data = data;
+            this.index = index;
+            this.count = (int) index.getLong(INDEX_HEADER_BYTES - Long.BYTES);
+        }
+
+        long id(final int i) {
+            return index.getLong(INDEX_HEADER_BYTES + i * ENTRY_BYTES);
+        }
+
+        long location(final int i) {
+            return index.getLong(INDEX_HEADER_BYTES + i * ENTRY_BYTES + Long.BYTES);
+        }
+
+        /**
+         * @return The position of the first entry with an ID of at least the given one.
+         */
+        int lowerBound(final long id) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (id(mid) < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Opens (or creates) the store in the given directory.
+     *
+     * @param dir The directory holding the store's segments.
+     * @param segmentBytes The size at which to seal a segment and start another.
+     * @throws IOException if there's a problem reading or creating the store, or it's
+     *                     already open, e.g. in another process.
+     */
+    public TweetStore(final Path dir, final long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        synchronized (OPEN_DIRS) {
+            if (! OPEN_DIRS.add(dir.toRealPath())) {
+                throw new IOException("The tweet store in " + dir + " is already open");
+            }
+        }
+        FileChannel lockFile = null;
+        FileLock lock = null;
+        try {
+            lockFile = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockFile.tryLock();
+        } finally {
+            if (lock == null) {
+                if (lockFile != null) {
+                    lockFile.close();
+                }
+                unregister();
+            }
+        }
+        if (lock == null) {
+            throw new IOException("The tweet store in " + dir + " is in use by another process");
+        }
+        this.lockFile = lockFile;
+        this.lock = lock;
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the segments in the store's directory, re-indexing them if need be.
+     */
+    private void open() throws IOException {
+        // drop what an interrupted compaction or seal left behind, and indices without segments
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + PARTIAL_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                if (! Files.exists(file.resolveSibling(name.replace(INDEX_SUFFIX, DATA_SUFFIX)))) {
+                    Files.delete(file);
+                }
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + DATA_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                final int number = Integer.parseInt(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - DATA_SUFFIX.length())
+                );
+                sealed.put(number, openSegment(number));
+            }
+        }
+        activeNumber = sealed.isEmpty() ? 0 : sealed.lastKey() + 1;
+    }
+
+    /**
+     * Looks up a tweet's JSON.
+     *
+     * @param id The tweet's ID.
+     * @return The tweet's raw JSON or null if it's not in the store.
+     * @throws IOException if there's a problem reading the store.
+     */
+    public synchronized String get(final long id) throws IOException {
+        final long location = activeIndex.get(id);
+        if (location != LongLongHashMap.ABSENT) {
+            hits++;
+            return decode(readLine(active, location));
+        }
+        for (Segment segment : sealed.descendingMap().values()) {
+            final int i = segment.lowerBound(id);
+            if (i < segment.count && segment.id(i) == id) {
+                hits++;
+                return decode(readLine(segment.data, segment.location(i)));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a tweet's JSON to the store, superseding any copy already in it.
+     *
+     * @param id The tweet's ID.
+     * @param rawJSON The tweet's raw JSON.
+     * @throws IOException if the tweet can't be written.
+     */
+    public void put(final long id, final String rawJSON) throws IOException {
+        final byte[] json = rawJSON.getBytes(StandardCharsets.UTF_8);
+        put(id, json, 0, json.length);
+    }
+
+    /**
+     * Adds a tweet's JSON to the store, superseding any copy already in it.
+     *
+     * @param id The tweet's ID.
+     * @param buffer The buffer holding the tweet's JSON as UTF-8, on one line.
+     * @param offset Where the tweet starts in the buffer.
+     * @param length The length of the tweet's JSON.
+     * @throws IOException if the tweet can't be written.
+     */
+    public synchronized void put(final long id, final byte[] buffer, final int offset, final int length)
+        throws IOException {
+        if (length > LENGTH_MASK) {
+            throw new IOException("Tweet " + id + " is too big to store: " + length + " bytes");
+        }
+        if (active == null || (activeSize > 0 && activeSize + length + 1 > segmentBytes)) {
+            seal();
+            active = FileChannel.open(
+                dataFile(activeNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE
+            );
+        }
+        final ByteBuffer line = ByteBuffer.allocate(length + 1);
+        line.put(buffer, offset, length).put((byte) '\n').flip();
+        long position = activeSize;
+        while (line.hasRemaining()) {
+            position += active.write(line, position);
+        }
+        activeIndex.put(id, activeSize << LENGTH_BITS | length);
+        activeSize = position;
+    }
+
+    /**
+     * Visits the tweets with IDs in the given range, in ID order.
+     *
+     * @param fromID The lowest ID to visit.
+     * @param toID The highest ID to visit.
+     * @param visitor What to do with each tweet.
+     * @return The number of tweets visited.
+     * @throws IOException if there's a problem reading the store, or the visitor fails.
+     */
+    public synchronized long scan(final long fromID, final long toID, final Visitor visitor) throws IOException {
+        return merge(fromID, toID, true, visitor);
+    }
+
+    /**
+     * Merges all the segments into one, in ID order, without the copies of tweets that
+     * have been superseded.
+     *
+     * @return The number of tweets in the merged segment.
+     * @throws IOException if there's a problem reading or writing the store.
+     */
+    public synchronized long compact() throws IOException {
+        seal();
+        if (sealed.isEmpty()) {
+            return 0;
+        }
+        final int number = activeNumber++;
+        final Path data = partial(dataFile(number));
+        final long[][] index = {new long[1 << 12], new long[1 << 12]};
+        final long[] size = {0};
+        final long count;
+        try (FileChannel out = FileChannel.open(data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            final int[] n = {0};
+            count = merge(Long.MIN_VALUE, Long.MAX_VALUE, false, (id, line) -> {
+                if (buffer.remaining() < line.length) {
+                    drain(buffer, out);
+                }
+                if (line.length > buffer.capacity()) {
+                    writeFully(out, ByteBuffer.wrap(line));
+                } else {
+                    buffer.put(line);
+                }
+                if (n[0] == index[0].length) {
+                    index[0] = Arrays.copyOf(index[0], n[0] * 2);
+                    index[1] = Arrays.copyOf(index[1], n[0] * 2);
+                }
+                index[0][n[0]] = id;
+                index[1][n[0]++] = size[0] << LENGTH_BITS | (line.length - 1);
+                size[0] += line.length;
+            });
+            drain(buffer, out);
+            out.force(true);
+        }
+        final long[] ids = Arrays.copyOf(index[0], (int) count);
+        final long[] locations = Arrays.copyOf(index[1], (int) count);
+        writeIndex(number, size[0], ids, locations);
+        Files.move(data, dataFile(number), StandardCopyOption.ATOMIC_MOVE);
+
+        // the merged segment now supersedes the rest
+        final Segment merged = openSegment(number);
+        final List<Segment> replaced = new ArrayList<>(sealed.values());
+        sealed.clear();
+        sealed.put(number, merged);
+        for (Segment segment : replaced) {
+            segment.data.close();
+            delete(indexFile(segment.number));
+            delete(dataFile(segment.number));
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of lookups that found a tweet.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of tweets indexed, counting superseded copies in other segments.
+     */
+    public synchronized long size() {
+        long size = activeIndex.size();
+        for (Segment segment : sealed.values()) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of segments, including the active one.
+     */
+    public synchronized int segments() {
+        return sealed.size() + (active != null ? 1 : 0);
+    }
+
+    /**
+     * Seals the active segment, if there is one.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (! lockFile.isOpen()) {
+            return;
+        }
+        try {
+            seal();
+            for (Segment segment : sealed.values()) {
+                segment.data.close();
+            }
+            sealed.clear();
+        } finally {
+            lock.release();
+            lockFile.close();
+            unregister();
+        }
+    }
+
+    private void unregister() throws IOException {
+        synchronized (OPEN_DIRS) {
+            OPEN_DIRS.remove(dir.toRealPath());
+        }
+    }
+
+    /**
+     * Visits the tweets in the given range in ID order, taking each tweet's newest
+     * copy, by a k-way merge of the segments' indices.
+     */
+    private long merge(final long fromID, final long toID, final boolean includeActive, final Visitor visitor)
+        throws IOException {
+        final PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        for (Segment segment : sealed.values()) {
+            final Cursor cursor = new Cursor(segment.number, segment.data, segment, segment.lowerBound(fromID), null);
+            if (cursor.valid(toID)) {
+                cursors.add(cursor);
+            }
+        }
+        if (includeActive && active != null) {
+            final long[] ids = Arrays.stream(activeIndex.keys()).filter(id -> id >= fromID && id <= toID).toArray();
+            Arrays.sort(ids);
+            final Cursor cursor = new Cursor(activeNumber, active, null, 0, ids);
+            if (cursor.valid(toID)) {
+                cursors.add(cursor);
+            }
+        }
+        long visited = 0;
+        long previous = 0;
+        while (! cursors.isEmpty()) {
+            final Cursor cursor = cursors.poll();
+            final long id = cursor.id();
+            if (visited == 0 || id != previous) {
+                visitor.visit(id, readLine(cursor.data, cursor.location(), true));
+                visited++;
+                previous = id;
+            }
+            cursor.position++;
+            if (cursor.valid(toID)) {
+                cursors.add(cursor);
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * A position in a segment's index (or the active segment's sorted IDs) during a
+     * merge. Cursors are ordered by ID, then newest segment first.
+     */
+    private final class Cursor implements Comparable<Cursor> {
+        final int number;
+        final FileChannel data;
+        final Segment segment;
+        final long[] activeIDs;
+        int position;
+
+        Cursor(final int number, final FileChannel data, final Segment segment, final int position, final long[] activeIDs) {
+            this.number = number;
+            this.data = data;
+            this.segment = segment;
+            this.position = position;
+            this.activeIDs = activeIDs;
+        }
+
+        boolean valid(final long toID) {
+            return position < (segment != null ? segment.count : activeIDs.length) && id() <= toID;
+        }
+
+        long id() {
+            return segment != null ? segment.id(position) : activeIDs[position];
+        }
+
+        long location() {
+            return segment != null ? segment.location(position) : activeIndex.get(activeIDs[position]);
+        }
+
+        @Override
+        public int compareTo(final Cursor other) {
+            final int byID = Long.compare(id(), other.id());
+            return byID != 0 ? byID : Integer.compare(other.number, number);
+        }
+    }
+
+    /**
+     * Writes the active segment's index, sorted by ID, and maps it.
+     */
+    private void seal() throws IOException {
+        if (active == null) {
+            return;
+        }
+        active.force(true);
+        final long[] ids = activeIndex.keys();
+        Arrays.sort(ids);
+        final long[] locations = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            locations[i] = activeIndex.get(ids[i]);
+        }
+        writeIndex(activeNumber, activeSize, ids, locations);
+        sealed.put(activeNumber, new Segment(activeNumber, active, mapIndex(activeNumber)));
+        active = null;
+        activeSize = 0;
+        activeIndex.clear();
+        activeNumber++;
+    }
+
+    /**
+     * Opens a sealed segment, re-indexing it if its index is missing or out of date.
+     */
+    private Segment openSegment(final int number) throws IOException {
+        final FileChannel data = FileChannel.open(dataFile(number), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (! indexMatches(number, data.size())) {
+            System.err.printf("Re-indexing tweet store segment %d\n", number);
+            reindex(number, data);
+        }
+        return new Segment(number, data, mapIndex(number));
+    }
+
+    private boolean indexMatches(final int number, final long dataSize) throws IOException {
+        final Path file = indexFile(number);
+        if (! Files.exists(file) || Files.size(file) < INDEX_HEADER_BYTES) {
+            return false;
+        }
+        try (FileChannel index = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+            while (header.hasRemaining() && index.read(header) >= 0) {
+                // keep reading
+            }
+            header.flip();
+            return header.getInt() == INDEX_MAGIC
+                && header.getInt() == INDEX_VERSION
+                && header.getLong() == dataSize
+                && index.size() == INDEX_HEADER_BYTES + header.getLong() * ENTRY_BYTES;
+        }
+    }
+
+    /**
+     * Indexes a segment's lines, truncating any partly written line at its end.
+     */
+    private void reindex(final int number, final FileChannel data) throws IOException {
+        final LongLongHashMap index = new LongLongHashMap(1 << 12);
+        long position = 0;
+        data.position(0);
+        final InputStream in = new BufferedInputStream(Channels.newInputStream(data), BUFFER_SIZE);
+        byte[] line = new byte[64 * 1024];
+        int length = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b != '\n') {
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = (byte) b;
+                continue;
+            }
+            try {
+                final long id = TweetArraySplitter.idOf(line, 0, length);
+                if (id != 0 && length <= LENGTH_MASK) {
+                    index.put(id, position << LENGTH_BITS | length);
+                }
+            } catch (IOException e) {
+                System.err.printf("Skipping an unreadable tweet at byte %d of segment %d\n", position, number);
+            }
+            position += length + 1;
+            length = 0;
+        }
+        if (position < data.size()) {
+            System.err.printf("Truncating %d bytes of partial tweet from segment %d\n", data.size() - position, number);
+            data.truncate(position);
+        }
+        final long[] ids = index.keys();
+        Arrays.sort(ids);
+        final long[] locations = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            locations[i] = index.get(ids[i]);
+        }
+        writeIndex(number, position, ids, locations);
+    }
+
+    /**
+     * Writes a segment's index, replacing any it has.
+     */
+    private void writeIndex(final int number, final long dataSize, final long[] ids, final long[] locations)
+        throws IOException {
+        final Path file = partial(indexFile(number));
+        try (FileChannel index = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(dataSize).putLong(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                if (buffer.remaining() < ENTRY_BYTES) {
+                    drain(buffer, index);
+                }
+                buffer.putLong(ids[i]).putLong(locations[i]);
+            }
+            drain(buffer, index);
+            index.force(true);
+        }
+        Files.move(file, indexFile(number), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private MappedByteBuffer mapIndex(final int number) throws IOException {
+        try (FileChannel index = FileChannel.open(indexFile(number), StandardOpenOption.READ)) {
+            if (index.size() > Integer.MAX_VALUE) {
+                throw new IOException("Index of tweet store segment " + number + " is too big to map");
+            }
+            return index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+        }
+    }
+
+    private static byte[] readLine(final FileChannel data, final long location) throws IOException {
+        return readLine(data, location, false);
+    }
+
+    /**
+     * Reads a tweet's JSON from a segment, optionally with its terminating '\n'.
+     */
+    private static byte[] readLine(final FileChannel data, final long location, final boolean terminated)
+        throws IOException {
+        final long offset = location >>> LENGTH_BITS;
+        final int length = (int) (location & LENGTH_MASK) + (terminated ? 1 : 0);
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of tweet store segment");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static String decode(final byte[] json) {
+        return new String(json, StandardCharsets.UTF_8);
+    }
+
+    private static void drain(final ByteBuffer buffer, final FileChannel channel) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Deletes a replaced file, which may fail where mapped files can't be deleted (i.e.
+     * Windows), in which case it's left to be merged again, harmlessly, next time.
+     */
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Couldn't delete " + file + ": " + e.getMessage());
+        }
+    }
+
+    private Path dataFile(final int number) {
+        return dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, DATA_SUFFIX));
+    }
+
+    private Path indexFile(final int number) {
+        return dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, INDEX_SUFFIX));
+    }
+
+    private static Path partial(final Path file) {
+        return file.resolveSibling(file.getFileName() + PARTIAL_SUFFIX);
+    }
+}
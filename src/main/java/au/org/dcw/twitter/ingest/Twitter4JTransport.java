@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>Looks up tweets with Twitter4J's own, blocking, HTTP client, so each lookup
+ * completes on the calling thread, and a worker has at most one in flight.</p>
+ */
+class Twitter4JTransport implements LookupTransport {
+
+    /** The endpoint whose rate limit governs lookups. */
+    static final String LOOKUP_ENDPOINT = "/statuses/lookup";
+
+    private final Twitter twitter;
+
+    /**
+     * Constructor
+     *
+     * @param twitter The Twitter instance to look tweets up with, which must have its JSON store enabled.
+     */
+    Twitter4JTransport(final Twitter twitter) {
+        this.twitter = twitter;
+    }
+
+    @Override
+    public RateLimitStatus lookupBudget() throws TwitterException {
+        return twitter.getRateLimitStatus("statuses").get(LOOKUP_ENDPOINT);
+    }
+
+    @Override
+    public CompletableFuture<LookupResult> lookup(final long[] ids) {
+        final CompletableFuture<LookupResult> result = new CompletableFuture<>();
+        try {
+            final ResponseList<Status> response = twitter.lookup(ids);
+            final long[] returnedIDs = new long[response.size()];
+            final List<String> tweets = new ArrayList<>(response.size());
+            for (int i = 0; i < returnedIDs.length; i++) {
+                final Status tweet = response.get(i);
+                returnedIDs[i] = tweet.getId();
+                // NB get Twitter's raw JSON, don't convert Twitter4J objs to JSON
+                // via Jackson (they different structures & field names)
+                tweets.add(TwitterObjectFactory.getRawJSON(tweet));
+            }
+            result.complete(LookupResult.of(returnedIDs, tweets, response.getRateLimitStatus()));
+        } catch (TwitterException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+}
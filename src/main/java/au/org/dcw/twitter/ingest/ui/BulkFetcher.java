@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest.ui;
+
+import au.org.dcw.twitter.ingest.MissingTweets;
+import au.org.dcw.twitter.ingest.TweetCache;
+import au.org.dcw.twitter.ingest.TweetLookup;
+import au.org.dcw.twitter.ingest.TweetStore;
+import twitter4j.Twitter;
+
+import javax.swing.JProgressBar;
+import javax.swing.SwingWorker;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Fetches the tweets whose IDs (or URLs) are listed in files, one per line, in the
+ * background, adding them to a {@link FetchedTweetsModel} as they're found and
+ * showing how far it has got on a progress bar.</p>
+ *
+ * <p>Tweets are fetched with a {@link TweetLookup}, just as on the command line:
+ * from the store or cache (if any) if they're there, skipping those known to be
+ * missing (if recorded), and otherwise looked up in batches, paced to the rate limit,
+ * with transient failures retried. IDs that still can't be looked up are shown as
+ * failed, rather than not found. Lines that aren't IDs or URLs are skipped.</p>
+ *
+ * <p>Cancelling stops IDs being added, and the lookups already under way are left
+ * to finish in the background.</p>
+ */
+final class BulkFetcher extends SwingWorker<Void, BulkFetcher.Tweet> {
+
+    /** Published to update the progress bar without adding a tweet. */
+    private static final Tweet PROGRESS = new Tweet(0, null);
+
+    /** How many IDs to add between updates of the progress bar. */
+    private static final int PROGRESS_EVERY = 100;
+
+    private final Twitter twitter;
+    private final TweetStore store;
+    private final TweetCache cache;
+    private final MissingTweets missing;
+    private final List<File> files;
+    private final FetchedTweetsModel model;
+    private final JProgressBar progressBar;
+
+    /** How many IDs there are to fetch, once they've been read. */
+    private volatile int total;
+    private volatile TweetLookup lookup;
+
+    /**
+     * A tweet found, to add to the list.
+     */
+    static final class Tweet {
+        final long id;
+        final byte[] json;
+
+        Tweet(final long id, final byte[] json) {
+            this.id = id;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param twitter The Twitter API instance to look tweets up with.
+     * @param store Tweets stored previously, checked first, and added to (may be null).
+     * @param cache Tweets fetched previously, checked before asking Twitter (may be null).
+     * @param missing Tweets known to be missing, which are skipped, and added to (may be null).
+     * @param files The files of IDs or URLs to fetch.
+     * @param model Where to list the tweets fetched.
+     * @param progressBar Where to show how far the fetching has got.
+     */
+    BulkFetcher(
+        final Twitter twitter,
+        final TweetStore store,
+        final TweetCache cache,
+        final MissingTweets missing,
+        final List<File> files,
+        final FetchedTweetsModel model,
+        final JProgressBar progressBar
+    ) {
+        this.twitter = twitter;
+        this.store = store;
+        this.cache = cache;
+        this.missing = missing;
+        this.files = files;
+        this.model = model;
+        this.progressBar = progressBar;
+    }
+
+    /**
+     * Reads a tweet's ID from its ID or URL, e.g.
+     * "https://twitter.com/KathViner/status/919984305559961600" or "919984305559961600".
+     *
+     * @param idOrURL The tweet's ID or URL.
+     * @return The tweet's ID.
+     * @throws NumberFormatException if there's no ID.
+     */
+    static long parseID(final String idOrURL) {
+        String idStr = idOrURL.trim();
+        if (idStr.contains("?")) {
+            idStr = idStr.substring(0, idStr.indexOf('?'));
+        }
+        if (idStr.contains("/")) {
+            idStr = idStr.substring(idStr.lastIndexOf('/') + 1);
+        }
+        return Long.parseLong(idStr.trim());
+    }
+
+    @Override
+    protected Void doInBackground() throws IOException, InterruptedException {
+        final long[] ids = readIDs();
+        publish(PROGRESS); // announces the total
+        try (TweetLookup lookup = new TweetLookup(twitter, store, cache, missing, this::found)) {
+            this.lookup = lookup;
+            for (int i = 0; i < ids.length && ! isCancelled(); i++) {
+                lookup.add(ids[i]);
+                if (i % PROGRESS_EVERY == 0) {
+                    publish(PROGRESS);
+                }
+            }
+            if (! isCancelled()) {
+                lookup.finish();
+            }
+        }
+        publish(PROGRESS);
+        return null;
+    }
+
+    /**
+     * Passes a tweet found to the Swing thread, to add to the list.
+     */
+    private void found(final long id, final byte[] json) {
+        publish(new Tweet(id, json));
+    }
+
+    /**
+     * Reads the IDs to fetch, and notes how many there are.
+     */
+    private long[] readIDs() throws IOException {
+        long[] ids = new long[1024];
+        int count = 0;
+        int skipped = 0;
+        for (File file : files) {
+            try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.trim().isEmpty()) continue;
+                    try {
+                        final long id = parseID(line);
+                        if (count == ids.length) {
+                            ids = Arrays.copyOf(ids, count * 2);
+                        }
+                        ids[count++] = id;
+                    } catch (NumberFormatException e) {
+                        skipped++;
+                    }
+                }
+            }
+        }
+        if (skipped > 0) {
+            System.err.printf("Skipped %d lines that weren't tweet IDs or URLs\n", skipped);
+        }
+        total = count;
+        return Arrays.copyOf(ids, count);
+    }
+
+    @Override
+    protected void process(final List<Tweet> tweets) {
+        if (isCancelled()) return; // the list may already be another fetch's
+        final long[] ids = new long[tweets.size()];
+        final byte[][] jsons = new byte[tweets.size()][];
+        int count = 0;
+        for (Tweet tweet : tweets) {
+            if (tweet.json != null) {
+                ids[count] = tweet.id;
+                jsons[count++] = tweet.json;
+            }
+        }
+        model.add(ids, jsons, count);
+        final TweetLookup lookup = this.lookup;
+        final long done = lookup != null ? lookup.done() : 0;
+        progressBar.setMaximum(Math.max(total, 1));
+        progressBar.setValue((int) done);
+        progressBar.setString(String.format(
+            "Fetched %d of %d tweets (%d not found, %d failed)",
+            done, total, lookup != null ? lookup.notFound() : 0, lookup != null ? lookup.failed() : 0
+        ));
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            final TweetLookup lookup = this.lookup;
+            final long done = lookup != null ? lookup.done() : 0;
+            progressBar.setString(String.format("Stopped after %d of %d tweets", done, total));
+            return;
+        }
+        try {
+            get();
+        } catch (Exception e) {
+            progressBar.setString("Failed: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+        }
+    }
+}
@@ -7,16 +7,35 @@ import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Custom {@link TransferHandler} which causes the text of the target
  * field to be replaced, rather than allowing dropped text to be inserted
- * where it's dropped.
+ * where it's dropped. Files can also be dropped, on the field or any other
+ * component using the handler, if something is provided to deal with them.
  *
  * @see <a href="https://stackoverflow.com/questions/7976972/swing-jtextfield-dnd-replace-the-existing-text-with-the-imported-text">drag and drop - Swing JTextfield DnD replace the existing text with the imported text - Stack Overflow</a>
  */
 public class DropToReplaceTransferHandler extends TransferHandler {
+    private static final long serialVersionUID = 1L;
+
+    private final Consumer<List<File>> filesDropped;
+
+    public DropToReplaceTransferHandler() {
+        this(null);
+    }
+
+    /**
+     * @param filesDropped Deals with files dropped (may be null, to refuse them).
+     */
+    public DropToReplaceTransferHandler(final Consumer<List<File>> filesDropped) {
+        this.filesDropped = filesDropped;
+    }
+
     public int getSourceActions(JComponent c) {
         return COPY_OR_MOVE;
     }
@@ -30,11 +49,19 @@ public class DropToReplaceTransferHandler extends TransferHandler {
     }
 
     public boolean canImport(TransferSupport ts) {
-        return ts.getComponent() instanceof JTextComponent;
+        if (filesDropped != null && ts.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
+            return true;
+        }
+        return ts.getComponent() instanceof JTextComponent && ts.isDataFlavorSupported(DataFlavor.stringFlavor);
     }
 
+    @SuppressWarnings("unchecked")
     public boolean importData(TransferSupport ts) {
         try {
+            if (filesDropped != null && ts.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
+                filesDropped.accept((List<File>) ts.getTransferable().getTransferData(DataFlavor.javaFileListFlavor));
+                return true;
+            }
             ((JTextComponent) ts.getComponent()).setText(
                 (String) ts.getTransferable().getTransferData(DataFlavor.stringFlavor)
             );
@@ -43,4 +70,4 @@ public class DropToReplaceTransferHandler extends TransferHandler {
             return false;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest.ui;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.swing.AbstractListModel;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>The tweets fetched in bulk, as a list of their IDs, for a {@link javax.swing.JList}.
+ * Each tweet's JSON is kept as UTF-8 bytes, and only decoded when it's asked for,
+ * e.g. when it's selected, so thousands of tweets can be listed without keeping
+ * their JSON, or anything rendered from it, as strings.</p>
+ *
+ * <p>Only to be used on the Swing thread.</p>
+ */
+final class FetchedTweetsModel extends AbstractListModel<Long> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON = new ObjectMapper().getFactory();
+    private static final int SUMMARY_LENGTH = 140;
+
+    private long[] ids = new long[1024];
+    private byte[][] tweets = new byte[1024][];
+    private int size;
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Long getElementAt(final int index) {
+        return ids[index];
+    }
+
+    /**
+     * Adds tweets to the end of the list.
+     *
+     * @param newIDs The tweets' IDs.
+     * @param newTweets The tweets' JSON, as UTF-8.
+     * @param count The number of tweets to add.
+     */
+    void add(final long[] newIDs, final byte[][] newTweets, final int count) {
+        if (count == 0) return;
+        if (size + count > ids.length) {
+            final int capacity = Math.max(ids.length * 2, size + count);
+            ids = Arrays.copyOf(ids, capacity);
+            tweets = Arrays.copyOf(tweets, capacity);
+        }
+        System.arraycopy(newIDs, 0, ids, size, count);
+        System.arraycopy(newTweets, 0, tweets, size, count);
+        size += count;
+        fireIntervalAdded(this, size - count, size - 1);
+    }
+
+    /**
+     * Empties the list.
+     */
+    void clear() {
+        final int oldSize = size;
+        if (oldSize == 0) return;
+        Arrays.fill(tweets, 0, size, null);
+        size = 0;
+        fireIntervalRemoved(this, 0, oldSize - 1);
+    }
+
+    /**
+     * @param index The position of a tweet in the list.
+     * @return The tweet's raw JSON.
+     */
+    String json(final int index) {
+        return new String(tweets[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a line's worth of a tweet, for showing in the list: its author and the
+     * start of its text.
+     *
+     * @param index The position of a tweet in the list.
+     * @return The tweet's author and text, e.g. "@jack: just setting up my twttr".
+     */
+    String summary(final int index) {
+        String screenName = null;
+        String text = null;
+        try (JsonParser parser = JSON.createParser(tweets[index])) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return "(not a tweet)";
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME && (screenName == null || text == null)) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if (token == JsonToken.VALUE_STRING && (field.equals("full_text") || field.equals("text"))) {
+                    text = parser.getText();
+                } else if (token == JsonToken.START_OBJECT && field.equals("user")) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String userField = parser.getCurrentName();
+                        if (parser.nextToken() == JsonToken.VALUE_STRING && userField.equals("screen_name")) {
+                            screenName = parser.getText();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            return "(unreadable: " + e.getMessage() + ")";
+        }
+        final String summary = "@" + screenName + ": " + (text == null ? "" : text.replaceAll("\\s+", " "));
+        return summary.length() > SUMMARY_LENGTH ? summary.substring(0, SUMMARY_LENGTH) + "..." : summary;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest.ui;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreePath;
+import javax.swing.tree.TreeModel;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>A read-only {@link TreeModel} of a JSON document, for a {@link javax.swing.JTree}.
+ * A node's children are only created when the tree first asks for them, i.e. when
+ * the node is expanded, so the cost of showing a large tweet is proportional to how
+ * much of it is opened, not its size. Values are only pretty-printed on demand. The
+ * document is parsed by {@link #parse}, which can take a while for a large one, so
+ * should be done off the Swing thread.</p>
+ *
+ * <p>Each node knows its path in the terms of the fields to keep, e.g.
+ * <code>entities.media.media_url</code> for the URL of any of a tweet's media, as
+ * array elements don't add to a path.</p>
+ */
+final class JsonTreeModel implements TreeModel {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final int MAX_LABEL_LENGTH = 120;
+
+    private final Node root;
+    private final EventListenerList listeners = new EventListenerList();
+
+    /**
+     * A value in the document, with its name (or index) in its parent.
+     */
+    static final class Node {
+        final String name;
+        final String path;
+        final JsonNode value;
+        private final boolean inArray;
+        private Node[] children;
+
+        Node(final Node parent, final String name, final JsonNode value) {
+            this.name = name;
+            this.value = value;
+            this.inArray = parent != null && parent.value.isArray();
+            if (parent == null || parent.path.isEmpty()) {
+                this.path = parent == null ? "" : name;
+            } else {
+                this.path = inArray ? parent.path : parent.path + "." + name;
+            }
+        }
+
+        int childCount() {
+            return value.isContainerNode() ? value.size() : 0;
+        }
+
+        Node child(final int index) {
+            if (children == null) {
+                children = new Node[childCount()];
+                if (value.isArray()) {
+                    for (int i = 0; i < children.length; i++) {
+                        children[i] = new Node(this, "[" + i + "]", value.get(i));
+                    }
+                } else {
+                    final Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+                    for (int i = 0; fields.hasNext(); i++) {
+                        final Map.Entry<String, JsonNode> field = fields.next();
+                        children[i] = new Node(this, field.getKey(), field.getValue());
+                    }
+                }
+            }
+            return children[index];
+        }
+
+        int indexOf(final Node child) {
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] == child) return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return The value as indented JSON.
+         */
+        String prettyPrinted() {
+            try {
+                return JSON.writerWithDefaultPrettyPrinter().writeValueAsString(value);
+            } catch (JsonProcessingException e) {
+                return value.toString();
+            }
+        }
+
+        @Override
+        public String toString() {
+            final String label;
+            if (value.isObject()) {
+                label = "{" + value.size() + (value.size() == 1 ? " field}" : " fields}");
+            } else if (value.isArray()) {
+                label = "[" + value.size() + (value.size() == 1 ? " element]" : " elements]");
+            } else if (value.isTextual()) {
+                label = value.toString(); // quoted and escaped
+            } else {
+                label = value.asText();
+            }
+            final String text = name.isEmpty() ? label : name + ": " + label;
+            return text.length() > MAX_LABEL_LENGTH ? text.substring(0, MAX_LABEL_LENGTH) + "..." : text;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param document The JSON document, as parsed by {@link #parse}.
+     */
+    JsonTreeModel(final JsonNode document) {
+        this.root = new Node(null, "", document);
+    }
+
+    /**
+     * Parses a JSON document for a model.
+     *
+     * @param json The JSON document.
+     * @return The parsed document, or, if it can't be parsed, the text as a string.
+     */
+    static JsonNode parse(final String json) {
+        try {
+            final JsonNode document = JSON.readTree(json);
+            return document != null ? document : TextNode.valueOf(json);
+        } catch (IOException e) {
+            return TextNode.valueOf(json);
+        }
+    }
+
+    @Override
+    public Node getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(final Object parent, final int index) {
+        return ((Node) parent).child(index);
+    }
+
+    @Override
+    public int getChildCount(final Object parent) {
+        return ((Node) parent).childCount();
+    }
+
+    @Override
+    public boolean isLeaf(final Object node) {
+        return ! ((Node) node).value.isContainerNode();
+    }
+
+    @Override
+    public void valueForPathChanged(final TreePath path, final Object newValue) {
+        // read only
+    }
+
+    @Override
+    public int getIndexOfChild(final Object parent, final Object child) {
+        return parent == null || child == null ? -1 : ((Node) parent).indexOf((Node) child);
+    }
+
+    @Override
+    public void addTreeModelListener(final TreeModelListener listener) {
+        listeners.add(TreeModelListener.class, listener);
+    }
+
+    @Override
+    public void removeTreeModelListener(final TreeModelListener listener) {
+        listeners.remove(TreeModelListener.class, listener);
+    }
+}
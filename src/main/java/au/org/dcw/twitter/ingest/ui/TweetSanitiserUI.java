@@ -15,12 +15,11 @@
  */
 package au.org.dcw.twitter.ingest.ui;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import au.org.dcw.twitter.ingest.MissingTweets;
+import au.org.dcw.twitter.ingest.TweetCache;
+import au.org.dcw.twitter.ingest.TweetSanitiser;
+import au.org.dcw.twitter.ingest.TweetStore;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import twitter4j.Status;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
@@ -28,23 +27,37 @@ import twitter4j.TwitterObjectFactory;
 
 import javax.swing.ActionMap;
 import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.InputMap;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.JTree;
 import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.DefaultEditorKit;
 import javax.swing.text.JTextComponent;
 import javax.swing.text.TextAction;
+import javax.swing.tree.TreePath;
 import java.awt.BorderLayout;
+import java.awt.CardLayout;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.GridBagConstraints;
@@ -57,17 +70,23 @@ import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionEvent;
 import java.awt.event.InputEvent;
-import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -77,71 +96,136 @@ import java.util.stream.Stream;
  * the JSON for the Tweet, and a valid JSON subset of the Tweet. The text from the
  * sanitised field can be copied by clicking on the text. Fields which are retained
  * in the subset are passed in via the constructor and can be edited in the UI.</p>
+ *
+ * <p>The tweet is parsed once when it's fetched or pasted, and re-sanitised from
+ * its tokens, off the Swing thread, once editing of the fields to keep pauses. A
+ * re-sanitisation that's overtaken by another is cancelled, and its result dropped.</p>
+ *
+ * <p>A file (or files) of tweet IDs or URLs, one per line, can be dropped on the UI
+ * to fetch them all, in the background, into a list from which they can be selected
+ * one at a time to be sanitised.</p>
+ *
+ * <p>Either JSON can be shown as a tree instead of text, which only builds and
+ * renders the parts of the tweet that are opened, so large tweets stay quick to
+ * show. Double-clicking a field in the tree adds it to the fields to keep.</p>
  */
 @SuppressWarnings("unchecked")
 public class TweetSanitiserUI extends JPanel {
 
-    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final long serialVersionUID = 1L;
 
     private static final Font TEXT_FONT = new Font("Courier New", Font.PLAIN, 10);
     private static final Font ID_URL_FONT = new Font("Arial", Font.PLAIN, 16);
     private static final String INDENT = "  ";
 
+    /** How long editing of the fields to keep must pause before the tweet is re-sanitised. */
+    private static final int RESANITISE_DELAY_MS = 250;
+
+    /** How many of the tweets fetched most recently to keep in memory. */
+    private static final int RECENT_TWEETS = 100;
+
+    /** How many tweets may be fetched at once, e.g. while a superseded fetch finishes. */
+    private static final int FETCH_THREADS = 2;
+
     private final boolean debug;
-    private boolean errorState;
+    private final Twitter twitter;
+    private final TweetStore store;
+    private final TweetCache cache;
+    private final MissingTweets missing;
+    private boolean errorState; // only touched on the Swing thread
 
     private JTextField tweetIdText;
     private JTextArea fullJsonTextArea;
     private JTextArea sanitisedJsonTextArea;
+    private JsonView fullJsonView;
+    private JsonView sanitisedJsonView;
+    private JCheckBox treeViewCheckbox;
     private JCheckBox skipMediaCheckbox;
     private JTextArea ftkTextArea;
     private JSplitPane splitPane;
+    private JPanel fetchedPanel;
+    private JProgressBar fetchProgressBar;
+    private final FetchedTweetsModel fetchedTweets = new FetchedTweetsModel();
+    private BulkFetcher bulkFetcher;
+
+    /**
+     * Fetches tweets a few at a time, holding only the latest fetch asked for when
+     * they're busy, so fetches that have been superseded are dropped before they start.
+     */
+    private final ExecutorService fetcher = new ThreadPoolExecutor(
+        FETCH_THREADS, FETCH_THREADS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1), r -> {
+            final Thread thread = new Thread(r, "tweet-fetcher");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardOldestPolicy()
+    );
+
+    /** The tweets fetched most recently, by ID, least recently shown first. */
+    private final Map<Long, String> recentTweets = Collections.synchronizedMap(
+        new LinkedHashMap<Long, String>(RECENT_TWEETS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, String> eldest) {
+                return size() > RECENT_TWEETS;
+            }
+        }
+    );
+
+    /* The fetch most recently asked for. Only touched on the Swing thread. */
+    private long fetchGeneration;
+    private long latestFetchID;
+    private Future<?> latestFetch;
+
+    /** Re-sanitises the tweet once editing of the fields to keep pauses. */
+    private Timer resanitiseTimer;
+
+    /* Only touched on the Swing thread. */
+    private SwingWorker<String, Void> sanitising;
+    private List<String> sanitiserFields;
+    private TweetSanitiser sanitiser;
+
+    /** The tweet last parsed, shared with the sanitising workers. */
+    private volatile ParsedTweet parsedTweet;
+
+    /**
+     * A tweet's raw JSON and its tokens.
+     */
+    private static final class ParsedTweet {
+        final String json;
+        final TokenBuffer tokens;
+
+        ParsedTweet(final String json, final TokenBuffer tokens) {
+            this.json = json;
+            this.tokens = tokens;
+        }
+    }
 
 
     /**
      * Constructor
      *
      * @param twitter The reference to Twitter's API, provided by {@link au.org.dcw.twitter.ingest.FetchTweets}.
+     * @param store Tweets stored previously, checked first, and added to (may be null).
+     * @param cache Tweets fetched previously, checked before asking Twitter (may be null).
+     * @param missing Tweets known to be missing, skipped when fetching in bulk (may be null).
      * @param debug If true, print out debug statements.
      */
     public TweetSanitiserUI(
         final Twitter twitter,
+        final TweetStore store,
+        final TweetCache cache,
+        final MissingTweets missing,
         final List<String> cleanFields,
         final boolean debug
     ) {
         this.debug = debug;
-        if (debug) System.out.println(str(buildFieldStructure(cleanFields), 0));
+        this.twitter = twitter;
+        this.store = store;
+        this.cache = cache;
+        this.missing = missing;
+        if (debug) System.out.println(str(TweetSanitiser.buildFieldStructure(cleanFields), 0));
         buildUI(twitter, cleanFields);
     }
 
-    /**
-     * Constructs a nested map of the fields to retain in the stripped version
-     * of the the Tweet's JSON.
-     *
-     * @param cleanFields The list of field names with implied structure (via '.' delimiters).
-     * @return A nested map version of <code>cleanFields</code>.
-     */
-    private static Map<String, Object> buildFieldStructure(final List<String> cleanFields) {
-        Map<String, Object> map = Maps.newTreeMap();
-
-        for (String f : cleanFields) {
-            if (! f.contains(".")) {
-                map.put(f, null);
-            } else {
-                final String head = f.substring(0, f.indexOf('.'));
-                final String tail = f.substring(f.indexOf('.') + 1);
-                final Map<String, Object> subMap = buildFieldStructure(Collections.singletonList(tail));
-                if (map.containsKey(head)) {
-                    final Map<String, Object> existingMap = (Map<String, Object>) map.get(head);
-                    existingMap.putAll(subMap);
-                } else {
-                    map.put(head, subMap);
-                }
-            }
-        }
-        return map;
-    }
-
     /**
      * Builds the UI.
      *
@@ -167,18 +251,25 @@ public class TweetSanitiserUI extends JPanel {
         int row = 1;
         final JLabel tweetIdLabel = new JLabel();
         tweetIdLabel.setText("ID or URL:");
-        tweetIdLabel.setToolTipText("Paste or drag your tweet/status ID or URL here");
+        tweetIdLabel.setToolTipText(
+            "Paste or drag your tweet/status ID or URL here, or drop a file of them to fetch them all"
+        );
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(0, 0, 0, 5);
         top.add(tweetIdLabel, gbc);
 
         tweetIdText = new JTextField();
-        tweetIdText.setToolTipText("Paste or drag your tweet/status ID or URL here");
+        tweetIdText.setToolTipText(
+            "Paste or drag your tweet/status ID or URL here, or drop a file of them to fetch them all"
+        );
         tweetIdText.setFont(ID_URL_FONT);
         tweetIdLabel.setLabelFor(tweetIdText);
         tweetIdText.setDragEnabled(true);
         // dragging text to the field _replaces_ the text, rather than inserting it where it's dropped
-        tweetIdText.setTransferHandler(new DropToReplaceTransferHandler());
+        // and dropping files of IDs, there or anywhere else, fetches them all
+        final DropToReplaceTransferHandler dropHandler = new DropToReplaceTransferHandler(this::fetchInBulk);
+        tweetIdText.setTransferHandler(dropHandler);
+        setTransferHandler(dropHandler);
 
         // example tweet
         tweetIdText.setText(getInitialTweetURL());
@@ -210,7 +301,68 @@ public class TweetSanitiserUI extends JPanel {
         top.add(fetchButton, gbc);
 
 
-        // Row Top.2: titled panel with scrollable JSON text area and copy button
+        // Row Top.2: titled panel with progress of a bulk fetch and a list of the tweets fetched
+        row++;
+        fetchedPanel = makeTitledPanel(" Fetched tweets ");
+        fetchedPanel.setVisible(false); // until files of IDs are dropped
+
+        fetchProgressBar = new JProgressBar();
+        fetchProgressBar.setStringPainted(true);
+
+        gbc = new GridBagConstraints();
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.weightx = 1.0;
+        fetchedPanel.add(fetchProgressBar, gbc);
+
+        final JButton stopButton = new JButton("Stop");
+        stopButton.setToolTipText("Stop fetching, keeping the tweets fetched so far");
+
+        gbc = new GridBagConstraints();
+        gbc.gridx = 1;
+        gbc.insets = new Insets(0, 5, 0, 0);
+        fetchedPanel.add(stopButton, gbc);
+
+        // only the visible rows are rendered, each summarised from its tweet as it's drawn
+        final JList<Long> fetchedList = new JList<>(fetchedTweets);
+        fetchedList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        fetchedList.setFont(TEXT_FONT);
+        fetchedList.setFixedCellHeight(fetchedList.getFontMetrics(TEXT_FONT).getHeight() + 2);
+        fetchedList.setFixedCellWidth(250);
+        fetchedList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(
+                JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus
+            ) {
+                final String text = index < 0 ? String.valueOf(value) : value + "  " + fetchedTweets.summary(index);
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        fetchedList.setToolTipText("Select a tweet to show and sanitise it");
+
+        final JScrollPane fetchedScrollPane = new JScrollPane(fetchedList);
+        fetchedScrollPane.setPreferredSize(new Dimension(250, 150));
+
+        gbc = new GridBagConstraints();
+        gbc.gridy = 1;
+        gbc.gridwidth = 2;
+        gbc.fill = GridBagConstraints.BOTH;
+        gbc.weightx = 1.0;
+        gbc.weighty = 1.0;
+        gbc.insets = new Insets(5, 0, 0, 0);
+        fetchedPanel.add(fetchedScrollPane, gbc);
+
+        gbc = new GridBagConstraints();
+        gbc.gridx = 0;
+        gbc.gridy = row - 1;
+        gbc.fill = GridBagConstraints.BOTH;
+        gbc.weightx = 1.0;
+        gbc.weighty = 0.5;
+        gbc.gridwidth = 4;
+        gbc.insets = new Insets(5, 0, 0, 0);
+        top.add(fetchedPanel, gbc);
+
+
+        // Row Top.3: titled panel with scrollable JSON text area and copy button
         row++;
         fullJsonTextArea = new JTextArea(); // Row 2.1
         final JPanel fullJsonPanel = makeTitledPanel(" Full JSON ");
@@ -225,12 +377,14 @@ public class TweetSanitiserUI extends JPanel {
         final JScrollPane jsonScrollPane1 = new JScrollPane(fullJsonTextArea);
         jsonScrollPane1.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         jsonScrollPane1.setPreferredSize(new Dimension(250, 250));
+        fullJsonView = new JsonView(fullJsonTextArea, jsonScrollPane1);
 
         gbc = new GridBagConstraints();
         gbc.fill = GridBagConstraints.BOTH;
         gbc.weightx = 1.0;
         gbc.weighty = 1.0;
-        fullJsonPanel.add(jsonScrollPane1, gbc);
+        gbc.gridwidth = 2;
+        fullJsonPanel.add(fullJsonView.cards, gbc);
 
         // Row 2.2: sneak in a paste-from-clipboard button within the group panel
         /* NB I can't rely on selecting within the text area and hitting Ctrl-V, because
@@ -242,8 +396,21 @@ public class TweetSanitiserUI extends JPanel {
         gbc = new GridBagConstraints();
         gbc.gridy = 1; // fullJsonTextArea is gridy == 0
         gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.weightx = 1.0;
         fullJsonPanel.add(pasteFromClipboardButton, gbc);
 
+        // Row 2.3: and a switch between showing the JSON as text or as a tree
+        treeViewCheckbox = new JCheckBox("Show as tree");
+        treeViewCheckbox.setToolTipText(
+            "Show the JSON as a tree, opened a field at a time. Double-click a field to keep it"
+        );
+
+        gbc = new GridBagConstraints();
+        gbc.gridx = 1;
+        gbc.gridy = 1;
+        gbc.insets = new Insets(0, 5, 0, 0);
+        fullJsonPanel.add(treeViewCheckbox, gbc);
+
         // add full JSON titled panel to outer
         gbc = new GridBagConstraints();
         gbc.gridx = 0;
@@ -286,12 +453,13 @@ public class TweetSanitiserUI extends JPanel {
         final JScrollPane jsonScrollPane = new JScrollPane(sanitisedJsonTextArea);
         jsonScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         jsonScrollPane.setPreferredSize(new Dimension(250, 250));
+        sanitisedJsonView = new JsonView(sanitisedJsonTextArea, jsonScrollPane);
 
         gbc = new GridBagConstraints();
         gbc.fill = GridBagConstraints.BOTH;
         gbc.weightx = 1.0;
         gbc.weighty = 1.0;
-        sanitisedJsonPanel.add(jsonScrollPane, gbc);
+        sanitisedJsonPanel.add(sanitisedJsonView.cards, gbc);
 
         sanitisedJsonPanel.setToolTipText(makeExplanatoryTooltip());
         sanitisedJsonTextArea.setToolTipText(
@@ -347,6 +515,27 @@ public class TweetSanitiserUI extends JPanel {
         // clear the text field
         clearButton.addActionListener(e -> tweetIdText.setText(""));
 
+        // stop a bulk fetch
+        stopButton.addActionListener(e -> {
+            if (bulkFetcher != null) bulkFetcher.cancel(false); // it stops between batches
+        });
+
+        // selecting a fetched tweet shows it and sanitises it
+        fetchedList.addListSelectionListener(e -> {
+            final int index = fetchedList.getSelectedIndex();
+            if (e.getValueIsAdjusting() || index < 0) return;
+            errorState = false;
+            final String rawJSON = fetchedTweets.json(index);
+            updateTextArea(fullJsonView, rawJSON);
+            updateSanitisedJson(rawJSON);
+        });
+
+        // switch between showing the JSON as text and as trees
+        treeViewCheckbox.addActionListener(e -> {
+            fullJsonView.showTree(treeViewCheckbox.isSelected());
+            sanitisedJsonView.showTree(treeViewCheckbox.isSelected());
+        });
+
         // clicking the tweet ID/URL field selects all the text in it
         tweetIdText.addMouseListener(new SelectAllTextOnClickListener(tweetIdText));
 
@@ -354,7 +543,7 @@ public class TweetSanitiserUI extends JPanel {
         fullJsonTextArea.addMouseListener(new SelectAllTextOnClickListener(fullJsonTextArea));
 
         // update the stripped JSON anytime the checkbox is changed
-        skipMediaCheckbox.addActionListener(e -> updateSanitisedJson(fullJsonTextArea.getText()));
+        skipMediaCheckbox.addActionListener(e -> updateSanitisedJson(fullJsonView.getText()));
 
         // paste from clipboard to the full json text area
         pasteFromClipboardButton.addActionListener(e -> {
@@ -364,7 +553,7 @@ public class TweetSanitiserUI extends JPanel {
                 final String hopefullyJSON = (String) clipboard.getData(DataFlavor.stringFlavor);
                 if (hopefullyJSON != null) {
                     // update the text areas
-                    updateTextArea(fullJsonTextArea, hopefullyJSON);
+                    updateTextArea(fullJsonView, hopefullyJSON);
                     updateSanitisedJson(hopefullyJSON);
                 }
             } catch (UnsupportedFlavorException | IOException e1) {
@@ -394,7 +583,7 @@ public class TweetSanitiserUI extends JPanel {
                 new TextAction("update-sanitised-text-area") {
                     @Override
                     public void actionPerformed(ActionEvent e) {
-                        updateSanitisedJson(fullJsonTextArea.getText());
+                        updateSanitisedJson(fullJsonView.getText());
                     }
                 }
             )
@@ -405,7 +594,7 @@ public class TweetSanitiserUI extends JPanel {
             @Override
             public void mouseClicked(MouseEvent e) {
                 sanitisedJsonTextArea.setSelectionStart(0);
-                final String text = sanitisedJsonTextArea.getText();
+                final String text = sanitisedJsonView.getText();
                 sanitisedJsonTextArea.setSelectionEnd(text.length());
                 if (debug) System.out.println("Pushing '" + text + "' to the clipboard");
                 pushToClipboard(text);
@@ -414,51 +603,162 @@ public class TweetSanitiserUI extends JPanel {
         sanitisedJsonTextArea.addMouseListener(copyAction);
         sanitisedJsonPanel.addMouseListener(copyAction);
 
-        // fetch button - fetch tweet JSON and update text areas
-        fetchButton.addActionListener(e -> {
-            final String txt = tweetIdText.getText();
-            // Be nice, do this on a background thread
-            new Thread(() -> {
-                try {
-                    errorState = false;
-                    // allow the user to paste in a full status URL or just the ID
-                    // e.g. "https://twitter.com/KathViner/status/919984305559961600" or "919984305559961600"
-                    final String idStr = txt.contains("/")
-                        ? txt.substring(txt.lastIndexOf('/') + 1).trim()
-                        : txt.trim();
-
-                    System.out.println("Retrieving tweet: " + idStr);
-
-                    final long tweetID = Long.parseLong(idStr);
-                    final Status tweet = twitter.showStatus(tweetID);
-                    final String rawJSON = TwitterObjectFactory.getRawJSON(tweet);
-
-                    updateTextArea(fullJsonTextArea, rawJSON);
-                    updateSanitisedJson(rawJSON);
-                    pushToClipboard(rawJSON);
-
-                } catch (NumberFormatException nfe) {
-                    String errMsg = "ERROR: \"" + txt + "\" is not a valid tweet ID or URL.";
-                    SwingUtilities.invokeLater(() -> fullJsonTextArea.setText(errMsg));
-                    errorState = true;
-                } catch (TwitterException twerr) {
-                    String errMsg = "ERROR: Failed to retrieve tweet:\n" + twerr.getErrorMessage();
-                    SwingUtilities.invokeLater(() -> fullJsonTextArea.setText(errMsg));
-                    twerr.printStackTrace();
-                    errorState = true;
-                }
-            }).start();
-        });
+        // fetch button (or Enter in the ID field) - fetch tweet JSON and update text areas
+        fetchButton.addActionListener(e -> fetch(tweetIdText.getText()));
+        tweetIdText.addActionListener(e -> fetch(tweetIdText.getText()));
+
+        // fields to keep text area, commit once typing pauses
+        resanitiseTimer = new Timer(RESANITISE_DELAY_MS, e -> updateSanitisedJson(fullJsonView.getText()));
+        resanitiseTimer.setRepeats(false);
+        ftkTextArea.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                resanitiseTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                resanitiseTimer.restart();
+            }
 
-        // fields to keep text area, commit as you type
-        ftkTextArea.addKeyListener(new KeyAdapter() {
             @Override
-            public void keyTyped(KeyEvent e) {
-                updateSanitisedJson(fullJsonTextArea.getText());
+            public void changedUpdate(DocumentEvent e) {
+                // attributes only
+            }
+        });
+    }
+
+    /**
+     * Fetches a tweet in the background, and shows it and its sanitised JSON and puts
+     * it on the clipboard, unless another fetch has been asked for meanwhile, in which
+     * case it's cancelled. Asking for the tweet already being fetched does nothing more,
+     * and a tweet fetched recently is shown straight away.
+     *
+     * @param idOrURL The tweet's ID or URL.
+     */
+    private void fetch(final String idOrURL) {
+        final long tweetID;
+        try {
+            // allow the user to paste in a full status URL or just the ID
+            tweetID = BulkFetcher.parseID(idOrURL);
+        } catch (NumberFormatException nfe) {
+            showFetchError("ERROR: \"" + idOrURL + "\" is not a valid tweet ID or URL.");
+            return;
+        }
+        if (latestFetch != null && ! latestFetch.isDone()) {
+            if (latestFetchID == tweetID) return; // it's on its way
+            // not interrupted, as that would close the store's and cache's files under it;
+            // if it's already running, its result is dropped as superseded instead
+            latestFetch.cancel(false);
+        }
+        final long generation = ++fetchGeneration;
+        latestFetchID = tweetID;
+        latestFetch = null;
+
+        final String recentJSON = recentTweets.get(tweetID);
+        if (recentJSON != null) {
+            if (debug) System.out.println("Found tweet " + tweetID + " among those fetched recently");
+            showFetchedTweet(recentJSON);
+            return;
+        }
+
+        System.out.println("Retrieving tweet: " + tweetID);
+        latestFetch = fetcher.submit(() -> {
+            String rawJSON = null;
+            String errMsg = null;
+            try {
+                rawJSON = lookUp(tweetID);
+                recentTweets.put(tweetID, rawJSON);
+            } catch (TwitterException twerr) {
+                errMsg = "ERROR: Failed to retrieve tweet:\n" + twerr.getErrorMessage();
+                twerr.printStackTrace();
+            } catch (IOException ioe) {
+                errMsg = "ERROR: Failed to read or update the tweet store:\n" + ioe.getMessage();
             }
+            final String fetchedJSON = rawJSON;
+            final String error = errMsg;
+            SwingUtilities.invokeLater(() -> {
+                if (generation != fetchGeneration) return; // superseded
+                if (error != null) {
+                    showFetchError(error);
+                } else {
+                    showFetchedTweet(fetchedJSON);
+                }
+            });
         });
     }
 
+    /**
+     * Looks a tweet up in the store, the cache or, failing those, Twitter, adding
+     * it to the store and cache if they don't have it.
+     *
+     * @param tweetID The tweet's ID.
+     * @return The tweet's raw JSON.
+     * @throws TwitterException if Twitter can't provide the tweet.
+     * @throws IOException if the store can't be read or updated.
+     */
+    private String lookUp(final long tweetID) throws TwitterException, IOException {
+        String rawJSON = store != null ? store.get(tweetID) : null;
+        if (rawJSON != null) {
+            if (debug) System.out.println("Found tweet " + tweetID + " in the store");
+            return rawJSON;
+        }
+        rawJSON = cache != null ? cache.get(tweetID) : null;
+        if (rawJSON == null) {
+            final Status tweet = twitter.showStatus(tweetID);
+            rawJSON = TwitterObjectFactory.getRawJSON(tweet);
+            if (cache != null) {
+                cache.put(tweetID, rawJSON);
+            }
+        } else if (debug) {
+            System.out.println("Found tweet " + tweetID + " in the cache");
+        }
+        if (store != null) {
+            store.put(tweetID, rawJSON);
+        }
+        return rawJSON;
+    }
+
+    /**
+     * Shows a fetched tweet, sanitises it and puts it on the clipboard. Only called
+     * on the Swing thread.
+     */
+    private void showFetchedTweet(final String rawJSON) {
+        errorState = false;
+        updateTextArea(fullJsonView, rawJSON);
+        updateSanitisedJson(rawJSON);
+        pushToClipboard(rawJSON);
+    }
+
+    /**
+     * Shows why a tweet couldn't be fetched. Only called on the Swing thread.
+     */
+    private void showFetchError(final String errMsg) {
+        errorState = true;
+        fullJsonView.setText(errMsg);
+    }
+
+    /**
+     * Fetches the tweets listed in files, in the background, replacing any fetched
+     * before and stopping any fetch under way.
+     *
+     * @param files The files of tweet IDs or URLs, one per line.
+     */
+    private void fetchInBulk(final List<File> files) {
+        if (bulkFetcher != null) {
+            // not interrupted, as that would close the store's and cache's files under it
+            bulkFetcher.cancel(false);
+        }
+        fetchedTweets.clear();
+        fetchProgressBar.setValue(0);
+        fetchProgressBar.setString("Reading IDs...");
+        fetchedPanel.setVisible(true);
+        revalidate();
+
+        bulkFetcher = new BulkFetcher(twitter, store, cache, missing, files, fetchedTweets, fetchProgressBar);
+        bulkFetcher.execute();
+    }
+
     private String getInitialTweetURL() {
         return System.getProperty(
             "initial.tweet.id",
@@ -477,41 +777,85 @@ public class TweetSanitiserUI extends JPanel {
      * Updates the sanitised JSON area, taking into account whether images are wanted
      * and using the fields specified in {@link #ftkTextArea} to decide which fields
      * to keep. Does nothing when the input is invalid. May be called from the Swing
-     * thread or off of it.
+     * thread or off of it, but the sanitising is done off it, in the background,
+     * cancelling any still under way.
      *
      * @param rawJSON The raw JSON to consider.
      */
     private void updateSanitisedJson(final String rawJSON) {
-        if (errorState || rawJSON == null || rawJSON.length() == 0) return;
+        if (rawJSON == null || rawJSON.length() == 0) return;
+
+        if (! SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> updateSanitisedJson(rawJSON));
+            return;
+        }
+        if (errorState) return;
+        resanitiseTimer.stop(); // this supersedes any pending edit
 
-        final List<String> fieldsToKeep = Stream.of(ftkTextArea.getText().split("\n"))
+        final List<String> fieldsToKeep = readFieldsToKeep();
+
+        if (skipMediaCheckbox.isSelected()) {
+            fieldsToKeep.remove("entities.media"); // media-safe list
+        }
+        if (! fieldsToKeep.equals(sanitiserFields)) {
+            sanitiserFields = fieldsToKeep;
+            sanitiser = new TweetSanitiser(fieldsToKeep);
+        }
+
+        if (sanitising != null) {
+            sanitising.cancel(true);
+        }
+        final TweetSanitiser currentSanitiser = sanitiser;
+        sanitising = new SwingWorker<String, Void>() {
+            @Override
+            protected String doInBackground() {
+                return sanitiseJSON(rawJSON, currentSanitiser);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || sanitising != this) return;
+                try {
+                    updateTextArea(sanitisedJsonView, get());
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        sanitising.execute();
+    }
+
+    /**
+     * @return The fields to keep, as listed in {@link #ftkTextArea}.
+     */
+    private List<String> readFieldsToKeep() {
+        return Stream.of(ftkTextArea.getText().split("\n"))
             .map(l -> l.contains(",") ? Stream.of(l.split("[, ]")) : Stream.of(l))
             .flatMap(x -> x)
             .map(String::trim)
             .collect(Collectors.toList());
+    }
 
-        final List<String> fieldsToKeepNoMedia = Lists.newArrayList(fieldsToKeep);
-        fieldsToKeepNoMedia.remove("entities.media"); // media-safe list
-
-        final Map<String, Object> toKeep =
-            buildFieldStructure(skipMediaCheckbox.isSelected() ? fieldsToKeepNoMedia : fieldsToKeep);
-
-        final String sanitisedJSON = sanitiseJSON(rawJSON, toKeep);
-
-        updateTextArea(sanitisedJsonTextArea, sanitisedJSON);
+    /**
+     * Adds a field to those listed in {@link #ftkTextArea}, if it's not there already,
+     * which leads to the tweet being re-sanitised.
+     *
+     * @param field The field's path, e.g. <code>user.screen_name</code>.
+     */
+    private void keepField(final String field) {
+        if (field.isEmpty() || readFieldsToKeep().contains(field)) return;
+        final String fields = ftkTextArea.getText().trim();
+        ftkTextArea.setText(fields.isEmpty() ? field : fields + ", " + field);
     }
 
     /**
-     * Updates a {@link JTextArea} safely, from on or off the UI thread.
+     * Updates a {@link JsonView} safely, from on or off the UI thread.
      *
-     * @param textArea The text area to update.
+     * @param view The view to update.
      * @param text The text to put into it.
      */
-    private void updateTextArea(final JTextArea textArea, final String text) {
-        SwingUtilities.invokeLater(() -> {
-            textArea.setText(text);
-            textArea.setCaretPosition(0); // scroll back to top
-        });
+    private void updateTextArea(final JsonView view, final String text) {
+        SwingUtilities.invokeLater(() -> view.setText(text));
     }
 
     /**
@@ -542,47 +886,21 @@ public class TweetSanitiserUI extends JPanel {
     }
 
     /**
-     * Strips sensitive elements from the Tweet's raw JSON.
+     * Strips sensitive elements from the Tweet's raw JSON, or describes why it couldn't.
+     * The tweet is only parsed if it's not the one parsed last time.
      *
      * @param tweetJSON The Tweet's raw JSON.
-     * @param fieldsToKeep Keep the fields in this nested map.
-     * @return The desensitised JSON.
+     * @param sanitiser Keeps the fields to keep.
+     * @return The desensitised JSON, or a JSON description of the error.
      */
-    private String sanitiseJSON(final String tweetJSON, Map<String, Object> fieldsToKeep) {
+    private String sanitiseJSON(final String tweetJSON, final TweetSanitiser sanitiser) {
         try {
-            JsonNode root = JSON.readValue(tweetJSON, JsonNode.class);
-
-            stripFields(root, fieldsToKeep);
-
-            /* As of 2017-09-27, Twitter is progressively rolling out 280 character tweets,
-             * referred to as "extended tweets", and "text" is replaced by "full_text". I am
-             * using Twitter4J in extended mode, but as a courtesy to those still running on
-             * standard mode, my "sanitised" objects will have "full_text" copied to "text", if
-             * there is no content there already.
-             *
-             * TODO think of the myriad ways in which the full_text will be hidden and how to extract it
-             * - full_text
-             * - extended_tweet.full_text
-             * - retweeted_status.extended_tweet.full_text
-             * - retweeted_status.full_text
-             */
-            if (root.has("full_text")) {
-                ((ObjectNode) root).set("text", root.get("full_text").deepCopy());
-            }
-            if (root.hasNonNull("truncated") &&
-                root.get("truncated").asBoolean(false) &&
-                has(root, "extended_tweet.full_text")) {
-                ((ObjectNode) root).set("text", get(root, "extended_tweet.full_text").deepCopy());
+            ParsedTweet tweet = parsedTweet;
+            if (tweet == null || ! tweet.json.equals(tweetJSON)) {
+                tweet = new ParsedTweet(tweetJSON, TweetSanitiser.tokenise(tweetJSON));
+                parsedTweet = tweet;
             }
-            // not quite right: missing "RT @originalPoster "
-            if (root.hasNonNull("retweeted_status") && has(root, "retweeted_status.full_text")) {
-                ((ObjectNode) root).set("text", get(root, "retweeted_status.full_text").deepCopy());
-            }
-            if (root.hasNonNull("retweeted_status") && has(root, "retweeted_status.extended_tweet.full_text")) {
-                ((ObjectNode) root).set("text", get(root, "retweeted_status.extended_tweet.full_text").deepCopy());
-            }
-
-            return JSON.writeValueAsString(root);
+            return sanitiser.sanitise(tweet.tokens);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -593,57 +911,6 @@ public class TweetSanitiserUI extends JPanel {
         }
     }
 
-    private boolean has(final JsonNode n, final String path) {
-        if (path.contains(".")) {
-            final String head = path.substring(0, path.indexOf('.'));
-            final String tail = path.substring(path.indexOf('.') + 1);
-            return n.has(head) && has(n.get(head), tail);
-        } else {
-            return n.has(path);
-        }
-    }
-
-    private JsonNode get(final JsonNode n, final String path) {
-        if (path.contains(".")) {
-            final String head = path.substring(0, path.indexOf('.'));
-            final String tail = path.substring(path.indexOf('.') + 1);
-            if (n.has(head)) {
-                return get(n.get(head), tail);
-            } else {
-                return JsonNodeFactory.instance.nullNode(); // shouldn't happen if you use "has()" first
-            }
-        } else {
-            return n.get(path);
-        }
-    }
-
-    /**
-     * Strips unwanted fields directly from a {@link JsonNode} tree structure.
-     *
-     * @param root The root of the tree.
-     * @param toKeep The fields to keep - i.e. remove the others.
-     */
-    private void stripFields(final JsonNode root, final Map<String, Object> toKeep) {
-
-        List<String> toRemove = Lists.newArrayList();
-
-        final Iterator<String> fieldIterator = root.fieldNames();
-        while (fieldIterator.hasNext()) {
-            String field = fieldIterator.next();
-            if (! toKeep.containsKey(field)) {
-                toRemove.add(field);
-            }
-        }
-        ((ObjectNode) root).remove(toRemove);
-
-        for (String field: toKeep.keySet()) {
-            Map<String, Object> value = (Map<String, Object>) toKeep.get(field);
-            if (value != null && root.has(field)) {
-                stripFields(root.get(field), value);
-            }
-        }
-    }
-
     /**
      * Put the provided text into the global copy buffer.
      *
@@ -668,7 +935,7 @@ public class TweetSanitiserUI extends JPanel {
         m.forEach((k, v) -> {
             sb.append(leadingSpaces(indentLevel)).append("- ").append(k).append("\n");
 
-            Map mapValue = (Map) v;
+            Map<String, Object> mapValue = (Map<String, Object>) v;
             if (v != null) {
                 sb.append(str(mapValue, indentLevel + 1));
             }
@@ -686,10 +953,139 @@ public class TweetSanitiserUI extends JPanel {
         return IntStream.range(0, tabs).mapToObj(i -> INDENT).collect(Collectors.joining());
     }
 
+    /**
+     * Shows JSON in a text area or, in tree view, a tree. The JSON is parsed for the
+     * tree in the background, and the tree is built lazily from it, so only what's
+     * opened is created and rendered, and the text area isn't updated while it's
+     * hidden. Only used on the Swing thread.
+     */
+    private final class JsonView {
+        private static final String TEXT = "text";
+        private static final String TREE = "tree";
+
+        final JPanel cards = new JPanel(new CardLayout());
+        private final JTextArea textArea;
+        private final JTree tree = new JTree((JsonTreeModel) null);
+        private boolean treeShown;
+        private String hiddenText; // the text the text area should have, while the tree is shown
+        private long treeGeneration; // of the latest text to show in the tree, so older ones are dropped
+
+        JsonView(final JTextArea textArea, final JScrollPane textScrollPane) {
+            this.textArea = textArea;
+            tree.setFont(TEXT_FONT);
+            tree.setRowHeight(tree.getFontMetrics(TEXT_FONT).getHeight() + 2);
+            tree.setLargeModel(true); // i.e. only render what's visible
+            tree.setShowsRootHandles(true);
+            tree.setToggleClickCount(0); // double-click keeps a field, rather than opening it
+
+            final JMenuItem keepItem = new JMenuItem("Keep this field");
+            final JMenuItem copyItem = new JMenuItem("Copy as pretty-printed JSON");
+            final JPopupMenu popup = new JPopupMenu();
+            popup.add(keepItem);
+            popup.add(copyItem);
+            keepItem.addActionListener(e -> keepField(selected().path));
+            copyItem.addActionListener(e -> pushToClipboard(selected().prettyPrinted()));
+
+            tree.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    maybeShowPopup(e);
+                }
+
+                @Override
+                public void mouseReleased(MouseEvent e) {
+                    maybeShowPopup(e);
+                }
+
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    final TreePath path = tree.getPathForLocation(e.getX(), e.getY());
+                    if (path != null && e.getClickCount() == 2) {
+                        keepField(((JsonTreeModel.Node) path.getLastPathComponent()).path);
+                    }
+                }
+
+                private void maybeShowPopup(final MouseEvent e) {
+                    final TreePath path = tree.getPathForLocation(e.getX(), e.getY());
+                    if (e.isPopupTrigger() && path != null) {
+                        tree.setSelectionPath(path);
+                        keepItem.setEnabled(! selected().path.isEmpty());
+                        popup.show(tree, e.getX(), e.getY());
+                    }
+                }
+            });
+
+            cards.add(textScrollPane, TEXT);
+            cards.add(new JScrollPane(tree), TREE);
+        }
+
+        private JsonTreeModel.Node selected() {
+            return (JsonTreeModel.Node) tree.getLastSelectedPathComponent();
+        }
+
+        String getText() {
+            return hiddenText != null ? hiddenText : textArea.getText();
+        }
+
+        void setText(final String text) {
+            if (treeShown) {
+                hiddenText = text;
+                showInTree(text);
+            } else {
+                textArea.setText(text);
+                textArea.setCaretPosition(0); // scroll back to top
+            }
+        }
+
+        void showTree(final boolean show) {
+            if (show == treeShown) return;
+            if (show) {
+                showInTree(textArea.getText());
+            } else {
+                if (hiddenText != null) {
+                    textArea.setText(hiddenText);
+                    textArea.setCaretPosition(0);
+                    hiddenText = null;
+                }
+                tree.setModel(null);
+                treeGeneration++;
+            }
+            treeShown = show;
+            ((CardLayout) cards.getLayout()).show(cards, show ? TREE : TEXT);
+        }
+
+        /**
+         * Parses JSON in the background and then shows it in the tree, unless other
+         * JSON has been given to show in the meantime, or the tree has been hidden.
+         */
+        private void showInTree(final String text) {
+            final long generation = ++treeGeneration;
+            tree.setModel(null);
+            new SwingWorker<JsonTreeModel, Void>() {
+                @Override
+                protected JsonTreeModel doInBackground() {
+                    return new JsonTreeModel(JsonTreeModel.parse(text));
+                }
+
+                @Override
+                protected void done() {
+                    if (generation != treeGeneration) return; // superseded
+                    try {
+                        tree.setModel(get());
+                    } catch (InterruptedException | ExecutionException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }.execute();
+        }
+    }
+
     /**
      * Wraps two {@link TextAction}s and pretends they're one.
      */
     private class ProxyTextAction extends TextAction {
+        private static final long serialVersionUID = 1L;
+
         private final TextAction action1;
         private final TextAction action2;
 
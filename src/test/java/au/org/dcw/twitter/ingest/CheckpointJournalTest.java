@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergesRangesRecordedOutOfOrder() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("journal");
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            journal.record(200, 300);
+            journal.record(0, 100);
+            journal.record(400, 500);
+            journal.record(100, 200);
+        }
+
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            assertEquals(400, journal.previouslyDone());
+            assertDone(journal, 0, 300, 400, 500, 600);
+        }
+        // rewritten in the merged form
+        assertEquals(Arrays.asList("0,300", "400,500"), Files.readAllLines(file));
+    }
+
+    @Test
+    public void syncsRecordsWhileNothingMoreIsRecorded() throws IOException, InterruptedException {
+        final Path file = folder.getRoot().toPath().resolve("journal");
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            journal.record(0, 100);
+            final long giveUpAt = System.currentTimeMillis() + 5000;
+            while (Files.size(file) == 0 && System.currentTimeMillis() < giveUpAt) {
+                Thread.sleep(50);
+            }
+            assertEquals(Arrays.asList("0,100"), Files.readAllLines(file));
+        }
+    }
+
+    @Test
+    public void mergesOverlappingAndNestedRanges() throws IOException {
+        final Path file = write("10,20", "0,15", "30,40", "32,35", "40,45");
+
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            assertEquals(35, journal.previouslyDone());
+            assertDone(journal, 0, 20, 30, 45, 50);
+        }
+    }
+
+    @Test
+    public void ignoresUnreadableAndEmptyLines() throws IOException {
+        final Path file = write("0,10", "nonsense", "20,30", "50,40", "60,60");
+
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            assertEquals(20, journal.previouslyDone());
+            assertDone(journal, 0, 10, 20, 30, 70);
+        }
+    }
+
+    @Test
+    public void ignoresALastLineCutShort() throws IOException {
+        final Path file = write("0,10", "20,30");
+        Files.write(file, "40,4".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND); // was "40,45\n"
+
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            assertEquals(20, journal.previouslyDone());
+            assertDone(journal, 0, 10, 20, 30, 50);
+        }
+    }
+
+    @Test
+    public void carriesOnAfterEachResume() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("journal");
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            journal.record(0, 100);
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            assertTrue(journal.isDone(99));
+            assertFalse(journal.isDone(100));
+            journal.record(100, 200);
+        }
+
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            assertEquals(200, journal.previouslyDone());
+        }
+    }
+
+    @Test
+    public void startsAfreshUnlessResuming() throws IOException {
+        final Path file = write("0,100");
+
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            assertEquals(0, journal.previouslyDone());
+            assertFalse(journal.isDone(0));
+        }
+        assertEquals(0, Files.size(file));
+    }
+
+    private Path write(final String... lines) throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("journal");
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Checks that each position up to the last bound is done exactly when it lies within
+     * one of the ranges the bounds make up, e.g. 0, 10, 20, 30 for [0, 10) and [20, 30).
+     */
+    private static void assertDone(final CheckpointJournal journal, final long... bounds) {
+        int range = 0;
+        for (long ordinal = 0; ordinal < bounds[bounds.length - 1]; ordinal++) {
+            while (range < bounds.length && bounds[range] <= ordinal) {
+                range++;
+            }
+            assertEquals("position " + ordinal, range % 2 == 1, journal.isDone(ordinal));
+        }
+    }
+}
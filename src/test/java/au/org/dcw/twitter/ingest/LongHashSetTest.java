@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashSetTest {
+
+    @Test
+    public void addsEachValueOnce() {
+        final LongHashSet set = new LongHashSet();
+
+        assertTrue(set.add(919984305559961600L));
+        assertFalse(set.add(919984305559961600L));
+        assertTrue(set.contains(919984305559961600L));
+        assertFalse(set.contains(919984305559961601L));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void holdsZeroAndExtremes() {
+        final LongHashSet set = new LongHashSet();
+
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertTrue(set.add(-1));
+
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertTrue(set.contains(Long.MAX_VALUE));
+        assertTrue(set.contains(-1));
+        assertEquals(4, set.size());
+    }
+
+    @Test
+    public void growsFromSmallWithoutLosingMembers() {
+        final LongHashSet set = new LongHashSet();
+        final long memoryAtFirst = set.memoryUsed();
+        final Set<Long> expected = new HashSet<>();
+        final Random random = new Random(42);
+
+        // many times the starting capacity, so every segment grows several times
+        for (int i = 0; i < 200_000; i++) {
+            final long value = random.nextLong();
+            assertEquals(expected.add(value), set.add(value));
+        }
+
+        assertEquals(expected.size(), set.size());
+        for (long value : expected) {
+            assertTrue(set.contains(value));
+        }
+        assertTrue(set.memoryUsed() > memoryAtFirst);
+    }
+
+    @Test
+    public void findsCollidingValuesPastEachOther() {
+        // sequential IDs from a sized set, so most slots are taken and probes run on and wrap around
+        final LongHashSet set = new LongHashSet(10_000);
+        for (long id = 1; id <= 10_000; id++) {
+            assertTrue(set.add(id));
+        }
+        for (long id = 1; id <= 10_000; id++) {
+            assertFalse(set.add(id));
+            assertTrue(set.contains(id));
+        }
+        for (long id = 10_001; id <= 20_000; id++) {
+            assertFalse(set.contains(id));
+        }
+        assertEquals(10_000, set.size());
+    }
+
+    @Test
+    public void remembersRepeatsOfTweetIDs() {
+        final LongHashSet set = new LongHashSet();
+        final Random random = new Random(7);
+        final long[] ids = new long[50_000];
+        for (int i = 0; i < ids.length; i++) {
+            // snowflake IDs: a timestamp, then the same few worker and sequence bits
+            ids[i] = (1_500_000_000_000L + random.nextInt(1_000_000)) << 22 | random.nextInt(4) << 12;
+        }
+        final Set<Long> expected = new HashSet<>();
+        for (long id : ids) {
+            assertEquals(expected.add(id), set.add(id));
+        }
+        for (long id : ids) {
+            assertFalse(set.add(id));
+        }
+        assertEquals(expected.size(), set.size());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongLongHashMapTest {
+
+    @Test
+    public void putsGetsAndReplaces() {
+        final LongLongHashMap map = new LongLongHashMap(16);
+
+        assertEquals(LongLongHashMap.ABSENT, map.get(42));
+        map.put(42, 1);
+        map.put(-42, 2);
+        map.put(42, 3);
+
+        assertEquals(3, map.get(42));
+        assertEquals(2, map.get(-42));
+        assertEquals(2, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesZeroAsAKey() {
+        new LongLongHashMap(16).put(0, 1);
+    }
+
+    @Test
+    public void growsWithoutLosingEntries() {
+        final LongLongHashMap map = new LongLongHashMap(1);
+        for (long key = 1; key <= 100_000; key++) {
+            map.put(key, key * 10);
+        }
+
+        assertEquals(100_000, map.size());
+        for (long key = 1; key <= 100_000; key++) {
+            assertEquals(key * 10, map.get(key));
+        }
+        assertEquals(LongLongHashMap.ABSENT, map.get(100_001));
+    }
+
+    @Test
+    public void keepsCollidingEntriesReachableAsOthersAreRemoved() {
+        // a small key space in a small map, so probe runs are long and removals shift entries back
+        final LongLongHashMap map = new LongLongHashMap(16);
+        final Map<Long, Long> expected = new HashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            final long key = 1 + random.nextInt(64);
+            if (random.nextBoolean()) {
+                map.put(key, i);
+                expected.put(key, (long) i);
+            } else {
+                assertEquals(expected.remove(key) != null, map.remove(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = 1; key <= 64; key++) {
+            final Long value = expected.get(key);
+            assertEquals(value != null ? value : LongLongHashMap.ABSENT, map.get(key));
+        }
+    }
+
+    @Test
+    public void removesOnlyWhatsThere() {
+        final LongLongHashMap map = new LongLongHashMap(16);
+        map.put(7, 70);
+
+        assertFalse(map.remove(0));
+        assertFalse(map.remove(8));
+        assertTrue(map.remove(7));
+        assertFalse(map.remove(7));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void listsAndClearsItsEntries() {
+        final LongLongHashMap map = new LongLongHashMap(16);
+        for (long key = 1; key <= 5; key++) {
+            map.put(key, -key);
+        }
+        final long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertArrayEquals(new long[] {1, 2, 3, 4, 5}, keys);
+        final long[] sum = new long[1];
+        map.forEach((key, value) -> sum[0] += key + value);
+        assertEquals(0, sum[0]);
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(0, map.keys().length);
+        assertEquals(LongLongHashMap.ABSENT, map.get(3));
+    }
+}
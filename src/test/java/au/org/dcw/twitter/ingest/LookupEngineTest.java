@@ -0,0 +1,323 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import twitter4j.RateLimitStatus;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterFactory;
+import twitter4j.conf.ConfigurationBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Looks tweets up with a {@link LookupEngine} from a {@link StubTwitterServer}, which
+ * fails calls as asked, to check what the engine does about each kind of failure.
+ */
+public class LookupEngineTest {
+
+    private static final int IDS = 250;
+    private static final long FIRST_ID = 1_000_000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<StubTwitterServer> stubs = new ArrayList<>();
+    private MissingTweets missing;
+    private DeadLetters deadLetters;
+
+    @After
+    public void tearDown() throws IOException {
+        stubs.forEach(StubTwitterServer::close);
+        if (missing != null) {
+            missing.close();
+        }
+        if (deadLetters != null) {
+            deadLetters.close();
+        }
+    }
+
+    @Test
+    public void looksUpEveryID() throws Exception {
+        final LookupEngine engine = run(transport(healthy()));
+
+        assertEquals(ids(FIRST_ID, IDS), fetched());
+        assertEquals(IDS, engine.idsDone());
+        assertEquals(IDS, engine.tweetsReturned());
+        assertEquals(0, missing.found());
+    }
+
+    @Test
+    public void recordsTweetsNotReturnedAsMissing() throws Exception {
+        final StubTwitterServer.Options options = options();
+        options.missingRate = 0.2;
+        final LookupEngine engine = run(transport(stub(options)));
+
+        final Set<Long> fetched = fetched();
+        assertTrue(fetched.size() < IDS);
+        assertEquals(IDS - fetched.size(), missing.found());
+        for (long id = FIRST_ID; id < FIRST_ID + IDS; id++) {
+            assertEquals(! fetched.contains(id), missing.isMissing(id));
+        }
+        assertEquals(IDS, engine.idsDone());
+        assertEquals(0, engine.idsGivenUp());
+    }
+
+    @Test
+    public void recordsEveryIDAsMissingWhenNoneAreFound() throws Exception {
+        final StubTwitterServer.Options notFound = options();
+        notFound.notFoundRate = 1;
+        final LookupEngine engine = run(transport(stub(notFound)));
+
+        assertTrue(fetched().isEmpty());
+        assertEquals(IDS, missing.found());
+        assertEquals(IDS, engine.idsDone());
+        assertEquals(0, engine.idsGivenUp());
+    }
+
+    @Test
+    public void recordsEveryIDAsMissingWhenNoneAreReturned() throws Exception {
+        final StubTwitterServer.Options empty = options();
+        empty.emptyRate = 1;
+        run(transport(stub(empty)));
+
+        assertTrue(fetched().isEmpty());
+        assertEquals(IDS, missing.found());
+    }
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        final StubTwitterServer.Options overCapacity = options();
+        overCapacity.errorRate = 1;
+        final LookupEngine engine = run(firstCallsTo(transport(stub(overCapacity)), 1, transport(healthy())));
+
+        assertEquals(ids(FIRST_ID, IDS), fetched());
+        assertEquals(0, engine.idsGivenUp());
+        assertEquals(0, deadLetters.count());
+    }
+
+    @Test
+    public void waitsOutTheRateLimit() throws Exception {
+        final StubTwitterServer.Options throttled = options();
+        throttled.throttleRate = 1; // with a reset a second away
+        final long startedAt = System.nanoTime();
+        run(firstCallsTo(transport(stub(throttled)), 1, transport(healthy())));
+
+        assertEquals(ids(FIRST_ID, IDS), fetched());
+        assertTrue(System.nanoTime() - startedAt >= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void splitsABatchTwitterRefusesAndGivesUpOnTheIDItRefuses() throws Exception {
+        final long refused = FIRST_ID + 42;
+        final LookupTransport healthy = transport(healthy());
+        final LookupEngine engine = run(new LookupTransport() {
+            @Override
+            public RateLimitStatus lookupBudget() throws TwitterException {
+                return healthy.lookupBudget();
+            }
+
+            @Override
+            public CompletableFuture<LookupResult> lookup(final long[] ids) {
+                for (long id : ids) {
+                    if (id == refused) {
+                        final CompletableFuture<LookupResult> result = new CompletableFuture<>();
+                        result.completeExceptionally(new TwitterException("Forbidden", null, 403));
+                        return result;
+                    }
+                }
+                return healthy.lookup(ids);
+            }
+        });
+
+        final Set<Long> expected = ids(FIRST_ID, IDS);
+        expected.remove(refused);
+        assertEquals(expected, fetched());
+        assertEquals(1, engine.idsGivenUp());
+        assertEquals(1, deadLetters.count());
+        assertEquals(IDS, engine.idsDone());
+        assertFalse(missing.isMissing(refused));
+        assertTrue(Files.readAllLines(folder.getRoot().toPath().resolve("dead-letters")).contains(
+            Long.toString(refused)
+        ));
+    }
+
+    @Test
+    public void stopsWhenTwitterRefusesTheCredentials() throws Exception {
+        final StubTwitterServer.Options unauthorised = options();
+        unauthorised.unauthorisedRate = 1;
+        try {
+            run(transport(stub(unauthorised)));
+            fail("Carried on with credentials Twitter refused");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("refused the credentials"));
+        }
+        assertTrue(fetched().isEmpty());
+        assertEquals(0, missing.found());
+    }
+
+    @Test
+    public void stopsTheWorkersWhenAbandonedAfterAnInterrupt() throws Exception {
+        try (AsyncTweetWriter output = new AsyncTweetWriter(
+            output(), AsyncTweetWriter.Compression.NONE, 0, 0, null, false
+        )) {
+            final LookupEngine engine =
+                new LookupEngine(Collections.singletonMap("test", transport(healthy())), 100, 1, output);
+            engine.start();
+            for (int i = 0; i < IDS; i++) {
+                engine.add(i, FIRST_ID + i);
+            }
+
+            Thread.currentThread().interrupt();
+            engine.abandon();
+            output.close();
+            assertTrue(Thread.interrupted()); // kept for the caller
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().equals("lookup-test") && thread.isAlive());
+        }
+        assertTrue(fetched().size() <= 200); // the batch being filled was dropped
+    }
+
+    /**
+     * Looks up {@link #IDS} IDs, from {@link #FIRST_ID}, in batches of 100, with the
+     * tweets written to a file, and those missing and given up on recorded.
+     */
+    private LookupEngine run(final LookupTransport transport) throws IOException, InterruptedException {
+        missing = new MissingTweets(folder.getRoot().toPath().resolve("missing"), 0);
+        deadLetters = new DeadLetters(folder.getRoot().toPath().resolve("dead-letters"));
+        try (AsyncTweetWriter output = new AsyncTweetWriter(
+            output(), AsyncTweetWriter.Compression.NONE, 0, 0, null, false
+        )) {
+            final LookupEngine engine = new LookupEngine(Collections.singletonMap("test", transport), 100, 1, output);
+            engine.setMissing(missing);
+            engine.setDeadLetters(deadLetters);
+            engine.start();
+            try {
+                for (int i = 0; i < IDS; i++) {
+                    engine.add(i, FIRST_ID + i);
+                }
+                engine.finish();
+            } finally {
+                engine.abandon();
+            }
+            return engine;
+        }
+    }
+
+    private Path output() {
+        return folder.getRoot().toPath().resolve("tweets.jsonl");
+    }
+
+    /**
+     * @return The IDs of the tweets written out.
+     */
+    private Set<Long> fetched() throws IOException {
+        final Set<Long> ids = new HashSet<>();
+        if (Files.exists(output())) {
+            for (String line : Files.readAllLines(output(), StandardCharsets.UTF_8)) {
+                final byte[] json = line.getBytes(StandardCharsets.UTF_8);
+                assertTrue(ids.add(TweetArraySplitter.idOf(json, 0, json.length)));
+            }
+        }
+        return ids;
+    }
+
+    private static Set<Long> ids(final long first, final int count) {
+        final Set<Long> ids = new HashSet<>();
+        for (long id = first; id < first + count; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static StubTwitterServer.Options options() {
+        final StubTwitterServer.Options options = new StubTwitterServer.Options();
+        options.corpus = "test.json";
+        options.latencyMillis = 0;
+        options.synthesise = true;
+        options.rateLimit = 100_000;
+        return options;
+    }
+
+    private StubTwitterServer healthy() throws IOException {
+        return stub(options());
+    }
+
+    private StubTwitterServer stub(final StubTwitterServer.Options options) throws IOException {
+        final StubTwitterServer stub = new StubTwitterServer(options);
+        stubs.add(stub);
+        return stub;
+    }
+
+    private static LookupTransport transport(final StubTwitterServer stub) {
+        final Properties credentials = StubTwitterServer.credentials("test");
+        final Twitter twitter = new TwitterFactory(new ConfigurationBuilder()
+            .setTweetModeExtended(true)
+            .setOAuthConsumerKey(credentials.getProperty("oauth.consumerKey"))
+            .setOAuthConsumerSecret(credentials.getProperty("oauth.consumerSecret"))
+            .setOAuthAccessToken(credentials.getProperty("oauth.accessToken"))
+            .setOAuthAccessTokenSecret(credentials.getProperty("oauth.accessTokenSecret"))
+            .setRestBaseURL(stub.baseURL())
+            .build()
+        ).getInstance();
+        return new RawLookupTransport(twitter);
+    }
+
+    /**
+     * @return A transport that sends the first few lookups to one stub, e.g. one that
+     *         fails them, and the rest to another.
+     */
+    private static LookupTransport firstCallsTo(
+        final LookupTransport first,
+        final int calls,
+        final LookupTransport rest
+    ) {
+        final AtomicInteger made = new AtomicInteger();
+        return new LookupTransport() {
+            @Override
+            public RateLimitStatus lookupBudget() throws TwitterException {
+                return rest.lookupBudget();
+            }
+
+            @Override
+            public CompletableFuture<LookupResult> lookup(final long[] ids) {
+                return made.getAndIncrement() < calls ? first.lookup(ids) : rest.lookup(ids);
+            }
+        };
+    }
+}
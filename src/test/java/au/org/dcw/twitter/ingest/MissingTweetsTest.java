@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MissingTweetsTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void remembersMissingTweetsAcrossRuns() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("missing");
+        try (MissingTweets missing = new MissingTweets(file, DAY)) {
+            missing.add(10);
+            missing.add(20);
+            assertTrue(missing.isMissing(10));
+            assertFalse(missing.isMissing(30));
+            assertEquals(2, missing.found());
+        }
+
+        try (MissingTweets missing = new MissingTweets(file, DAY)) {
+            assertTrue(missing.isMissing(10));
+            assertTrue(missing.isMissing(20));
+            assertFalse(missing.isMissing(30));
+            assertEquals(0, missing.found());
+        }
+    }
+
+    @Test
+    public void forgetsMissingTweetsOnceExpired() throws IOException, InterruptedException {
+        final Path file = folder.getRoot().toPath().resolve("missing");
+        try (MissingTweets missing = new MissingTweets(file, 0)) {
+            missing.add(10);
+        }
+        Thread.sleep(20);
+
+        try (MissingTweets missing = new MissingTweets(file, 0)) {
+            assertTrue(missing.isMissing(10)); // no expiry
+        }
+        try (MissingTweets missing = new MissingTweets(file, 10)) {
+            assertFalse(missing.isMissing(10));
+        }
+        assertEquals(0, Files.size(file)); // expired entries are dropped when opened
+    }
+
+    @Test
+    public void keepsOneEntryPerTweet() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("missing");
+        try (MissingTweets missing = new MissingTweets(file, DAY)) {
+            missing.add(10);
+            missing.add(10);
+            missing.add(20);
+        }
+        assertEquals(3 * 16, Files.size(file));
+
+        try (MissingTweets missing = new MissingTweets(file, DAY)) {
+            assertTrue(missing.isMissing(10));
+        }
+        assertEquals(2 * 16, Files.size(file)); // rewritten without the superseded entry
+    }
+
+    @Test
+    public void dropsAPartlyWrittenEntry() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("missing");
+        try (MissingTweets missing = new MissingTweets(file, DAY)) {
+            missing.add(10);
+        }
+        Files.write(file, new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (MissingTweets missing = new MissingTweets(file, DAY)) {
+            assertTrue(missing.isMissing(10));
+        }
+        assertEquals(16, Files.size(file));
+    }
+
+    @Test
+    public void listsTweetsFoundMissingAndSkipped() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("missing");
+        final Path listing = folder.getRoot().toPath().resolve("missing.txt");
+        try (MissingTweets missing = new MissingTweets(file, DAY)) {
+            missing.listTo(listing);
+            missing.add(10);
+            missing.skipped(20);
+            assertEquals(1, missing.skipped());
+        }
+
+        assertEquals(Arrays.asList("10", "20"), Files.readAllLines(listing));
+    }
+}
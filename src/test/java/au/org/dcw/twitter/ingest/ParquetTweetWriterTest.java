@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes tweets to Parquet and reads the file back: its metadata, with a minimal
+ * reader of Thrift's compact protocol, and the values of a column.
+ */
+public class ParquetTweetWriterTest {
+
+    private static final String[] TWEETS = {
+        "{\"id\":30,\"created_at\":\"Wed Oct 11 02:46:58 +0000 2017\",\"text\":\"one\",\"score\":0.0}",
+        "{\"id\":10,\"created_at\":\"Wed Oct 11 02:47:58 +0000 2017\",\"text\":\"two\",\"score\":2.5}",
+        "{\"id\":20,\"created_at\":\"Wed Oct 11 02:48:58 +0000 2017\",\"text\":\"three\",\"score\":0.0}",
+    };
+
+    @Test
+    public void writesAFileThatReadsBack() throws IOException {
+        final byte[] file = write(TWEETS, 2);
+        final Map<Integer, Object> footer = footer(file);
+
+        assertEquals(3L, footer.get(3)); // num_rows
+        final List<?> schema = (List<?>) footer.get(2);
+        assertEquals(5, schema.size());
+        assertEquals("id", string(field(schema.get(1), 4)));
+        assertEquals("score", string(field(schema.get(4), 4)));
+
+        // one row group for every two rows, and the ids read back from each
+        final List<?> rowGroups = (List<?>) footer.get(4);
+        assertEquals(2, rowGroups.size());
+        assertArrayEquals(new long[] {30, 10}, readInt64s(file, rowGroups.get(0), 0));
+        assertArrayEquals(new long[] {20}, readInt64s(file, rowGroups.get(1), 0));
+    }
+
+    @Test
+    public void ordersEachColumnByItsType() throws IOException {
+        final Map<Integer, Object> footer = footer(write(TWEETS, 10));
+
+        // column_orders: a TypeDefinedOrder (an empty struct) for each column
+        final List<?> columnOrders = (List<?>) footer.get(7);
+        assertEquals(4, columnOrders.size());
+        for (Object order : columnOrders) {
+            assertEquals(new HashMap<>(), field(order, 1));
+        }
+    }
+
+    @Test
+    public void recordsTheMinimumAndMaximum() throws IOException {
+        final Map<Integer, Object> footer = footer(write(TWEETS, 10));
+        final Object rowGroup = ((List<?>) footer.get(4)).get(0);
+
+        final Object idStatistics = field(columnMetadata(rowGroup, 0), 12);
+        assertEquals(30L, int64((byte[]) field(idStatistics, 5)));
+        assertEquals(10L, int64((byte[]) field(idStatistics, 6)));
+
+        // zero could be either sign, so the minimum is -0.0, as the format has it
+        final Object scoreStatistics = field(columnMetadata(rowGroup, 3), 12);
+        assertEquals(Double.doubleToLongBits(2.5), int64((byte[]) field(scoreStatistics, 5)));
+        assertEquals(Double.doubleToLongBits(-0.0), int64((byte[]) field(scoreStatistics, 6)));
+    }
+
+    @Test
+    public void writesAFileWithNoRows() throws IOException {
+        final Map<Integer, Object> footer = footer(write(new String[0], 10));
+
+        assertEquals(0L, footer.get(3));
+        assertEquals(0, ((List<?>) footer.get(4)).size());
+        assertEquals(4, ((List<?>) footer.get(7)).size());
+    }
+
+    private static byte[] write(final String[] tweets, final int rowGroupRows) throws IOException {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        final TweetColumns columns =
+            new TweetColumns(Arrays.asList("id", "created_at", "text", "score"), rowGroupRows);
+        try (ParquetTweetWriter writer = new ParquetTweetWriter(file, columns, AsyncTweetWriter.Compression.NONE)) {
+            for (String tweet : tweets) {
+                writer.write((tweet + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file.toByteArray();
+    }
+
+    /**
+     * Checks the file starts and ends with the magic number, and reads its metadata.
+     */
+    private static Map<Integer, Object> footer(final byte[] file) throws IOException {
+        final byte[] magic = "PAR1".getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(magic, Arrays.copyOfRange(file, 0, 4));
+        assertArrayEquals(magic, Arrays.copyOfRange(file, file.length - 4, file.length));
+        final int length = ByteBuffer.wrap(file, file.length - 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        final CompactReader reader = new CompactReader(file, file.length - 8 - length);
+        final Map<Integer, Object> footer = reader.struct();
+        assertEquals(file.length - 8, reader.position);
+        return footer;
+    }
+
+    private static Object columnMetadata(final Object rowGroup, final int column) {
+        return field(((List<?>) field(rowGroup, 1)).get(column), 3);
+    }
+
+    /**
+     * Reads the values of an INT64 column, with no nulls, from a row group's uncompressed
+     * data page.
+     */
+    private static long[] readInt64s(final byte[] file, final Object rowGroup, final int column)
+        throws IOException {
+        final Object metadata = columnMetadata(rowGroup, column);
+        final CompactReader reader = new CompactReader(file, (int) (long) (Long) field(metadata, 9));
+        final Map<Integer, Object> pageHeader = reader.struct();
+        final int numValues = (Integer) field(pageHeader.get(5), 1);
+        assertEquals(0, pageHeader.get(1)); // a data page
+        assertEquals((long) numValues, field(metadata, 5));
+
+        // skip the definition levels (all 1s), which are prefixed with their length
+        final ByteBuffer page = ByteBuffer.wrap(file, reader.position, (Integer) pageHeader.get(2))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        page.position(page.position() + 4 + page.getInt());
+        final long[] values = new long[numValues];
+        for (int i = 0; i < numValues; i++) {
+            values[i] = page.getLong();
+        }
+        return values;
+    }
+
+    private static Object field(final Object struct, final int id) {
+        return ((Map<?, ?>) struct).get(id);
+    }
+
+    private static String string(final Object binary) {
+        return new String((byte[]) binary, StandardCharsets.UTF_8);
+    }
+
+    private static long int64(final byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    }
+
+    /**
+     * Reads structs written with Thrift's compact protocol into maps of field IDs to
+     * values, with lists as lists, and binary fields as byte arrays.
+     */
+    private static final class CompactReader {
+
+        private final byte[] bytes;
+        private int position;
+
+        CompactReader(final byte[] bytes, final int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        Map<Integer, Object> struct() throws IOException {
+            final Map<Integer, Object> fields = new HashMap<>();
+            int lastId = 0;
+            while (true) {
+                final int header = bytes[position++] & 0xff;
+                if (header == 0) {
+                    return fields;
+                }
+                final int delta = header >>> 4;
+                final int id = delta != 0 ? lastId + delta : (int) zigzag(varint());
+                fields.put(id, value(header & 0x0f));
+                lastId = id;
+            }
+        }
+
+        private Object value(final int type) throws IOException {
+            switch (type) {
+                case 1: return true;
+                case 2: return false;
+                case 5: return (int) zigzag(varint());
+                case 6: return zigzag(varint());
+                case 8:
+                    final int length = (int) varint();
+                    position += length;
+                    return Arrays.copyOfRange(bytes, position - length, position);
+                case 9:
+                    final int header = bytes[position++] & 0xff;
+                    final int size = (header >>> 4) == 15 ? (int) varint() : header >>> 4;
+                    final List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(value(header & 0x0f));
+                    }
+                    return list;
+                case 12: return struct();
+                default: throw new IOException("Unexpected compact protocol type " + type);
+            }
+        }
+
+        private long varint() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = bytes[position++] & 0xff;
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private static long zigzag(final long n) {
+            return (n >>> 1) ^ -(n & 1);
+        }
+    }
+}
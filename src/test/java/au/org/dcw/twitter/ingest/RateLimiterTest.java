@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RateLimiterTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final long resetAt = System.currentTimeMillis() + 10 * MINUTE;
+    private final RateLimiter limiter = new RateLimiter("test", 900, 500, resetAt);
+
+    @Test
+    public void takesFewerCallsRemainingInTheSameWindow() {
+        limiter.update(900, 450, resetAt);
+        assertEquals(450, limiter.remaining());
+    }
+
+    @Test
+    public void ignoresMoreCallsRemainingReportedLateInTheSameWindow() {
+        limiter.update(900, 450, resetAt);
+        limiter.update(900, 480, resetAt);
+        assertEquals(450, limiter.remaining());
+    }
+
+    @Test
+    public void takesMoreCallsRemainingInANewWindow() {
+        limiter.update(900, 450, resetAt);
+        limiter.update(900, 899, resetAt + 15 * MINUTE);
+        assertEquals(899, limiter.remaining());
+    }
+
+    @Test
+    public void ignoresResponsesFromAWindowThatsOver() {
+        limiter.update(900, 10, System.currentTimeMillis() - MINUTE);
+        assertEquals(500, limiter.remaining());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Sanitises tweets the way {@link TweetSanitiser} did before it streamed them:
+ * by parsing each tweet into a {@link JsonNode} tree, stripping the fields not to
+ * keep from it, and writing what's left. Kept as the reference that
+ * {@link TweetSanitiserTest} checks the streaming path's output against, and as a
+ * baseline for <code>SanitiseBenchmark</code>, so the streaming path's gains can be
+ * measured rather than remembered.</p>
+ */
+@SuppressWarnings("unchecked")
+final class TreeSanitiser {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final Map<String, Object> fieldsToKeep;
+
+    /**
+     * Constructor
+     *
+     * @param fieldsToKeep The list of field names with implied structure (via '.' delimiters).
+     */
+    TreeSanitiser(final List<String> fieldsToKeep) {
+        this.fieldsToKeep = TweetSanitiser.buildFieldStructure(fieldsToKeep);
+    }
+
+    /**
+     * Strips sensitive elements from the Tweet's raw JSON.
+     *
+     * @param tweetJSON The Tweet's raw JSON.
+     * @return The desensitised JSON.
+     * @throws IOException if the JSON can't be parsed.
+     */
+    String sanitise(final String tweetJSON) throws IOException {
+        JsonNode root = JSON.readValue(tweetJSON, JsonNode.class);
+        if (! root.isObject()) {
+            throw new IOException("Expected a JSON object but found " + root.getNodeType());
+        }
+
+        stripFields(root, fieldsToKeep);
+
+        if (root.has("full_text")) {
+            ((ObjectNode) root).set("text", root.get("full_text").deepCopy());
+        }
+        if (root.hasNonNull("truncated") &&
+            root.get("truncated").asBoolean(false) &&
+            has(root, "extended_tweet.full_text")) {
+            ((ObjectNode) root).set("text", get(root, "extended_tweet.full_text").deepCopy());
+        }
+        if (root.hasNonNull("retweeted_status") && has(root, "retweeted_status.full_text")) {
+            ((ObjectNode) root).set("text", get(root, "retweeted_status.full_text").deepCopy());
+        }
+        if (root.hasNonNull("retweeted_status") && has(root, "retweeted_status.extended_tweet.full_text")) {
+            ((ObjectNode) root).set("text", get(root, "retweeted_status.extended_tweet.full_text").deepCopy());
+        }
+
+        return JSON.writeValueAsString(root);
+    }
+
+    private static boolean has(final JsonNode n, final String path) {
+        if (path.contains(".")) {
+            final String head = path.substring(0, path.indexOf('.'));
+            final String tail = path.substring(path.indexOf('.') + 1);
+            return n.has(head) && has(n.get(head), tail);
+        } else {
+            return n.has(path);
+        }
+    }
+
+    private static JsonNode get(final JsonNode n, final String path) {
+        if (path.contains(".")) {
+            final String head = path.substring(0, path.indexOf('.'));
+            final String tail = path.substring(path.indexOf('.') + 1);
+            if (n.has(head)) {
+                return get(n.get(head), tail);
+            } else {
+                return JsonNodeFactory.instance.nullNode(); // shouldn't happen if you use "has()" first
+            }
+        } else {
+            return n.get(path);
+        }
+    }
+
+    /**
+     * Strips unwanted fields directly from a {@link JsonNode} tree structure. Arrays
+     * have each of their object elements stripped, and other values are left alone.
+     *
+     * @param root The root of the tree.
+     * @param toKeep The fields to keep - i.e. remove the others.
+     */
+    private static void stripFields(final JsonNode root, final Map<String, Object> toKeep) {
+        if (root.isArray()) {
+            root.forEach(element -> stripFields(element, toKeep));
+            return;
+        }
+        if (! root.isObject()) {
+            return;
+        }
+
+        List<String> toRemove = Lists.newArrayList();
+
+        final Iterator<String> fieldIterator = root.fieldNames();
+        while (fieldIterator.hasNext()) {
+            String field = fieldIterator.next();
+            if (! toKeep.containsKey(field)) {
+                toRemove.add(field);
+            }
+        }
+        ((ObjectNode) root).remove(toRemove);
+
+        for (String field: toKeep.keySet()) {
+            Map<String, Object> value = (Map<String, Object>) toKeep.get(field);
+            if (value != null && root.has(field)) {
+                stripFields(root.get(field), value);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TweetArraySplitterTest {
+
+    /* Tweets with an "id" in a nested object, in a string and after other fields. */
+    private static final String TWEET_1 =
+        "{\"id\":919984305559961600,\"text\":\"braces { [ and \\\"quotes\\\", \\\\\",\"user\":{\"id\":42}}";
+    private static final String TWEET_2 =
+        "{\"text\":\"\\\"id\\\":7\",\"entities\":{\"urls\":[{\"id\":1},{}]},\"id\":919984305559961601}";
+    private static final String TWEET_3 = "{\"id_str\":\"3\",\"id\": 3 ,\"caf\u00e9\":\"\u00e9\"}";
+
+    @Test
+    public void splitsCompactJSONInPlace() throws IOException {
+        final byte[] body = bytes("[" + TWEET_1 + "," + TWEET_2 + "," + TWEET_3 + "]");
+        final LookupResult result = TweetArraySplitter.split(body, body.length, null);
+
+        assertEquals(3, result.size());
+        assertEquals(919984305559961600L, result.id(0));
+        assertEquals(919984305559961601L, result.id(1));
+        assertEquals(3L, result.id(2));
+        assertEquals(TWEET_1, result.json(0));
+        assertEquals(TWEET_2, result.json(1));
+        assertEquals(TWEET_3, result.json(2));
+
+        // the separators are now line terminators, so the tweets are lines of output
+        assertEquals("[" + TWEET_1 + "\n" + TWEET_2 + "\n" + TWEET_3 + "\n", new String(body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void splitsSpacedOutJSON() throws IOException {
+        final byte[] body = bytes(" [\n  " + TWEET_1 + " ,\n  " + TWEET_2 + "\n]\n");
+        final LookupResult result = TweetArraySplitter.split(body, body.length, null);
+
+        assertEquals(2, result.size());
+        assertEquals(TWEET_1, result.json(0));
+        assertEquals(TWEET_2, result.json(1));
+    }
+
+    @Test
+    public void splitsOnlyTheBodyInTheBuffer() throws IOException {
+        final byte[] json = bytes("[" + TWEET_3 + "]");
+        final byte[] buffer = Arrays.copyOf(json, json.length + 100);
+        Arrays.fill(buffer, json.length, buffer.length, (byte) '}');
+
+        final LookupResult result = TweetArraySplitter.split(buffer, json.length, null);
+        assertEquals(1, result.size());
+        assertEquals(TWEET_3, result.json(0));
+    }
+
+    @Test
+    public void splitsAnEmptyArray() throws IOException {
+        assertEquals(0, TweetArraySplitter.split(bytes("[]"), 2, null).size());
+        assertEquals(0, TweetArraySplitter.split(bytes(" [ ] "), 5, null).size());
+    }
+
+    @Test
+    public void splitsAFullBatch() throws IOException {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 1; i <= 100; i++) {
+            json.append(i > 1 ? "," : "").append("{\"id\":").append(i).append(",\"n\":[").append(i).append("]}");
+        }
+        final byte[] body = bytes(json.append(']').toString());
+        final LookupResult result = TweetArraySplitter.split(body, body.length, null);
+
+        assertEquals(100, result.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i + 1, result.id(i));
+            assertEquals("{\"id\":" + (i + 1) + ",\"n\":[" + (i + 1) + "]}", result.json(i));
+        }
+    }
+
+    @Test
+    public void refusesWhatIsntAnArrayOfTweets() {
+        assertRefused("{\"errors\":[{\"code\":144}]}");
+        assertRefused("");
+        assertRefused("[1,2]");
+        assertRefused("[" + TWEET_1 + ";" + TWEET_2 + "]");
+        assertRefused("[" + TWEET_1 + "," + TWEET_2);
+        assertRefused("[" + TWEET_1 + ",");
+        assertRefused("[{\"text\":\"unterminated}]");
+    }
+
+    @Test
+    public void readsTheIdOfALine() throws IOException {
+        final byte[] line = bytes("xx" + TWEET_2 + "yy");
+        assertEquals(919984305559961601L, TweetArraySplitter.idOf(line, 2, line.length - 4));
+        assertEquals(0L, TweetArraySplitter.idOf(bytes("{\"id_str\":\"5\"}"), 0, 14));
+        try {
+            TweetArraySplitter.idOf(bytes("[]"), 0, 2);
+            fail("Read an ID from an array");
+        } catch (IOException expected) {
+            // as it should
+        }
+    }
+
+    private static void assertRefused(final String json) {
+        final byte[] body = bytes(json);
+        try {
+            TweetArraySplitter.split(body, body.length, null);
+            fail("Split " + json);
+        } catch (IOException expected) {
+            // as it should
+        }
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the streaming {@link TweetSanitiser} writes exactly what the
+ * {@link TreeSanitiser} it replaced did, byte for byte, for every tweet in
+ * <code>test.json</code> (a mix of original tweets, retweets and extended tweets).
+ */
+public class TweetSanitiserTest {
+
+    @Test
+    public void sanitisesAsTheTreeDidWithTheDefaultFields() throws IOException {
+        assertSanitisesAsTheTreeDid(FetchTweets.loadFieldsToKeep(null));
+    }
+
+    @Test
+    public void sanitisesAsTheTreeDidWithAKeepFile() throws IOException {
+        assertSanitisesAsTheTreeDid(FetchTweets.loadFieldsToKeep("data/test/properties-to-keep.txt"));
+    }
+
+    private static void assertSanitisesAsTheTreeDid(final List<String> fieldsToKeep) throws IOException {
+        final TweetSanitiser sanitiser = new TweetSanitiser(fieldsToKeep);
+        final TreeSanitiser treeSanitiser = new TreeSanitiser(fieldsToKeep);
+        int lineNumber = 0;
+        int tweets = 0;
+        for (String line : Files.readAllLines(Paths.get("test.json"), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final byte[] expected = treeSanitiser.sanitise(line).getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals("line " + lineNumber, expected, bytes(sanitiser.sanitise(line)));
+            assertArrayEquals(
+                "line " + lineNumber + ", tokenised", expected, bytes(sanitiser.sanitise(TweetSanitiser.tokenise(line)))
+            );
+            tweets++;
+        }
+        assertTrue(tweets > 0);
+    }
+
+    private static byte[] bytes(final String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
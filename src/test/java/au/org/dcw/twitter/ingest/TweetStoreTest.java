@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Derek Weber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.org.dcw.twitter.ingest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TweetStoreTest {
+
+    /** Small enough that a few tweets fill a segment. */
+    private static final long SEGMENT_BYTES = 100;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot().toPath().resolve("store");
+    }
+
+    @Test
+    public void findsTweetsInTheActiveAndSealedSegments() throws IOException {
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            for (long id = 1; id <= 20; id++) {
+                store.put(id, tweet(id, "v1"));
+            }
+            assertTrue(store.segments() > 1);
+            for (long id = 1; id <= 20; id++) {
+                assertEquals(tweet(id, "v1"), store.get(id));
+            }
+            assertNull(store.get(21));
+        }
+    }
+
+    @Test
+    public void sealsTheActiveSegmentWhenClosed() throws IOException {
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            store.put(1, tweet(1, "v1"));
+        }
+        assertTrue(Files.exists(segment(dir, 0, ".idx")));
+
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            assertEquals(tweet(1, "v1"), store.get(1));
+            store.put(2, tweet(2, "v1"));
+            assertEquals(2, store.segments()); // a new active segment, after the sealed one
+        }
+    }
+
+    @Test
+    public void takesTheNewestCopyOfATweet() throws IOException {
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            store.put(5, tweet(5, "v1"));
+            for (long id = 10; id < 20; id++) {
+                store.put(id, tweet(id, "v1")); // so 5 is sealed before it's stored again
+            }
+            store.put(5, tweet(5, "v2"));
+            assertEquals(tweet(5, "v2"), store.get(5));
+        }
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            assertEquals(tweet(5, "v2"), store.get(5));
+        }
+    }
+
+    @Test
+    public void scansARangeInIDOrder() throws IOException {
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            for (long id : new long[] {9, 3, 7, 1, 5, 3, 8}) {
+                store.put(id, tweet(id, "v" + id));
+            }
+            store.put(7, tweet(7, "newer")); // still in the active segment
+
+            final List<String> lines = new ArrayList<>();
+            assertEquals(4, store.scan(3, 8, (id, line) -> lines.add(new String(line, StandardCharsets.UTF_8))));
+            assertEquals(Arrays.asList(
+                tweet(3, "v3") + "\n", tweet(5, "v5") + "\n", tweet(7, "newer") + "\n", tweet(8, "v8") + "\n"
+            ), lines);
+        }
+    }
+
+    @Test
+    public void compactsTheSegmentsIntoOne() throws IOException {
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            for (int round = 1; round <= 3; round++) {
+                for (long id = 1; id <= 10; id++) {
+                    store.put(id, tweet(id, "v" + round));
+                }
+            }
+            assertEquals(30, store.size());
+
+            assertEquals(10, store.compact());
+            assertEquals(1, store.segments());
+            assertEquals(10, store.size());
+            for (long id = 1; id <= 10; id++) {
+                assertEquals(tweet(id, "v3"), store.get(id));
+            }
+            store.put(11, tweet(11, "v1")); // and it carries on after the merged segment
+        }
+        assertEquals(4, files("segment-*").size()); // data and index of the merged and new segments
+
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            assertEquals(11, store.size());
+            assertEquals(tweet(10, "v3"), store.get(10));
+            assertEquals(tweet(11, "v1"), store.get(11));
+        }
+    }
+
+    @Test
+    public void recoversTheActiveSegmentAfterACrash() throws IOException {
+        final Path copy = folder.getRoot().toPath().resolve("crashed");
+        try (TweetStore store = new TweetStore(dir, 1024 * 1024)) {
+            for (long id = 1; id <= 10; id++) {
+                store.put(id, tweet(id, "v1"));
+            }
+            // as the store was when it crashed: the active segment has no index
+            Files.createDirectories(copy);
+            for (Path file : files("segment-*")) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        Files.write(segment(copy, 0, ".jsonl"), "{\"id\":11,\"te".getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+
+        try (TweetStore store = new TweetStore(copy, 1024 * 1024)) {
+            assertEquals(10, store.size());
+            assertEquals(tweet(10, "v1"), store.get(10));
+            assertNull(store.get(11)); // the partly written line is dropped
+            store.put(11, tweet(11, "v1"));
+            assertEquals(tweet(11, "v1"), store.get(11));
+        }
+    }
+
+    @Test
+    public void cleansUpAfterAnInterruptedCompaction() throws IOException {
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            for (long id = 1; id <= 10; id++) {
+                store.put(id, tweet(id, "v1"));
+            }
+        }
+        Files.write(segment(dir, 99, ".jsonl.partial"), "{\"id\":1}\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(segment(dir, 98, ".idx"), new byte[32]);
+        Files.delete(segment(dir, 0, ".idx")); // and a lost index, to rebuild
+
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            assertEquals(10, store.size());
+            assertEquals(tweet(1, "v1"), store.get(1));
+        }
+        assertFalse(Files.exists(segment(dir, 99, ".jsonl.partial")));
+        assertFalse(Files.exists(segment(dir, 98, ".idx")));
+        assertTrue(Files.exists(segment(dir, 0, ".idx")));
+    }
+
+    @Test
+    public void locksItsDirectoryWhileOpen() throws IOException {
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            store.put(1, tweet(1, "v1"));
+            try {
+                new TweetStore(dir, SEGMENT_BYTES);
+                fail("Opened the store twice");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().contains("already open"));
+            }
+            store.put(2, tweet(2, "v1")); // still usable
+        }
+
+        try (TweetStore store = new TweetStore(dir, SEGMENT_BYTES)) {
+            assertEquals(2, store.size());
+        }
+    }
+
+    private List<Path> files(final String glob) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private static Path segment(final Path dir, final int number, final String suffix) {
+        return dir.resolve(String.format("segment-%06d%s", number, suffix));
+    }
+
+    private static String tweet(final long id, final String text) {
+        return "{\"id\":" + id + ",\"text\":\"" + text + "\"}";
+    }
+}